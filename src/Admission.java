@@ -0,0 +1,65 @@
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control: how many connections the server takes at once, in
+ * all and from one address, so a storm of reconnections can't take every
+ * socket and buffer there is
+ *
+ * Connections over a limit are closed as soon as they're accepted, before
+ * a reactor or thread is given them.
+ */
+final class
+Admission
+{
+        // Connections open, and by address when those are limited
+        private static final AtomicInteger open = new AtomicInteger();
+        private static final ConcurrentHashMap<InetAddress, Integer> by_address = new ConcurrentHashMap<>();
+
+        private
+        Admission ()
+        {
+        }
+
+        /**
+         * Count a connection just accepted, if the limits let it in
+         *
+         * @param address the peer's
+         * @return boolean false if it must be closed, uncounted
+         */
+        static boolean
+        admit (InetAddress address)
+        {
+                if (open.incrementAndGet() > Config.MAX_CONNECTIONS && Config.MAX_CONNECTIONS > 0)
+                {
+                        open.decrementAndGet();
+                        Metrics.connections_rejected.increment();
+                        return false;
+                }
+
+                if (Config.MAX_CONNECTIONS_PER_IP > 0
+                    && by_address.merge(address, 1, Integer::sum) > Config.MAX_CONNECTIONS_PER_IP)
+                {
+                        release(address);
+                        Metrics.connections_rejected_ip.increment();
+                        return false;
+                }
+                return true;
+        }
+
+        /**
+         * Uncount a connection admitted, as it's closed
+         *
+         * @param address the peer's, as given to admit
+         */
+        static void
+        release (InetAddress address)
+        {
+                open.decrementAndGet();
+                if (Config.MAX_CONNECTIONS_PER_IP > 0)
+                {
+                        by_address.computeIfPresent(address, (key, count) -> count == 1 ? null : count - 1);
+                }
+        }
+}
@@ -0,0 +1,229 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a connection's input into the frames of the binary protocol
+ *
+ * As with LineFramer, complete frames are handed out straight from the
+ * read buffer; only the unfinished one at the end of a read is kept, in a
+ * buffer of our own that grows up to the maximum frame length. A frame
+ * longer than that is skipped.
+ */
+class
+BinaryFramer
+{
+        private static final int INITIAL_CAPACITY = 256;
+
+        private final int max_frame_length;
+
+        // Bytes of the frame still being received, allocated on first use
+        private ByteBuffer partial;
+
+        // The frame last handed out was in partial, to be dropped next time
+        private boolean handed_out = false;
+
+        // Bytes left of a frame that was too long
+        private long skipping = 0;
+        private boolean overflowed = false;
+
+        /**
+         * Constructor
+         *
+         * @param max_frame_length
+         */
+        public BinaryFramer (int max_frame_length)
+        {
+                this.max_frame_length = max_frame_length;
+        }
+
+        /**
+         * Take the next complete frame out of the input
+         *
+         * When there is none, the rest of the input is kept for later and
+         * the input is left empty.
+         *
+         * @param input read buffer, between position and limit
+         * @return ByteBuffer the frame, without its length, valid until the
+         * next call, or null
+         * @throws ProtocolException if a length is malformed
+         */
+        public ByteBuffer
+        next_frame (ByteBuffer input)
+        throws ProtocolException
+        {
+                if (this.handed_out)
+                {
+                        this.handed_out = false;
+                        clear_partial();
+                }
+
+                while (true)
+                {
+                        if (this.skipping > 0)
+                        {
+                                int skipped = (int) Math.min(this.skipping, input.remaining());
+                                input.position(input.position() + skipped);
+                                this.skipping -= skipped;
+                                if (this.skipping > 0)
+                                {
+                                        return null;
+                                }
+                        }
+
+                        int buffered = this.partial == null ? 0 : this.partial.position();
+                        if (buffered == 0)
+                        {
+                                int start = input.position();
+                                long header = header(input, start, input.limit());
+                                if (header >= 0)
+                                {
+                                        int size = (int) (header & 0xff);
+                                        long length = header >>> 8;
+                                        if (length > this.max_frame_length)
+                                        {
+                                                this.overflowed = true;
+                                                this.skipping = length;
+                                                input.position(start + size);
+                                                continue;
+                                        }
+
+                                        if (input.limit() - start - size >= length)
+                                        {
+                                                input.position(start + size + (int) length);
+                                                return input.slice(start + size, (int) length);
+                                        }
+                                }
+
+                                keep(input, start, input.limit() - start);
+                                input.position(input.limit());
+                                return null;
+                        }
+
+                        // Finish the frame buffered, taking its length a byte at a
+                        // time until it's whole
+                        long header = header(this.partial, 0, buffered);
+                        int size = (int) (header & 0xff);
+                        long length = header >>> 8;
+                        if (header >= 0 && length > this.max_frame_length)
+                        {
+                                this.overflowed = true;
+                                this.skipping = length - (buffered - size);
+                                clear_partial();
+                                continue;
+                        }
+
+                        int wanted = header < 0 ? 1 : (int) (size + length - buffered);
+                        int taken = Math.min(wanted, input.remaining());
+                        if (taken == 0)
+                        {
+                                return null;
+                        }
+                        keep(input, input.position(), taken);
+                        input.position(input.position() + taken);
+
+                        if (header >= 0 && taken == wanted)
+                        {
+                                this.handed_out = true;
+                                return this.partial.slice(size, (int) length);
+                        }
+                }
+        }
+
+        /**
+         * Check, and forget, whether a frame was dropped for being too long
+         *
+         * @return boolean
+         */
+        public boolean
+        take_overflow ()
+        {
+                boolean overflowed = this.overflowed;
+                this.overflowed = false;
+                return overflowed;
+        }
+
+        /**
+         * Read the length in front of a frame
+         *
+         * @param buffer
+         * @param from
+         * @param to
+         * @return long the length << 8 | bytes it took, or -1 if it isn't
+         * all there yet
+         * @throws ProtocolException
+         */
+        private static long
+        header (ByteBuffer buffer, int from, int to)
+        throws ProtocolException
+        {
+                long length = 0;
+                for (int i = 0; i < BinaryProtocol.HEADER_MAX; ++i)
+                {
+                        if (from + i >= to)
+                        {
+                                return -1;
+                        }
+
+                        byte b = buffer.get(from + i);
+                        length |= (long) (b & 0x7f) << (7 * i);
+                        if (b >= 0)
+                        {
+                                return length << 8 | (i + 1);
+                        }
+                }
+                throw new ProtocolException("Malformed frame length");
+        }
+
+        /**
+         * Keep part of a frame until the rest of it arrives
+         *
+         * @param input
+         * @param start
+         * @param length
+         */
+        private void
+        keep (ByteBuffer input, int start, int length)
+        {
+                if (length == 0)
+                {
+                        return;
+                }
+
+                int buffered = this.partial == null ? 0 : this.partial.position();
+                if (this.partial == null || this.partial.remaining() < length)
+                {
+                        int capacity = Math.max(INITIAL_CAPACITY, this.partial == null ? 0 : this.partial.capacity());
+                        while (capacity < buffered + length)
+                        {
+                                capacity *= 2;
+                        }
+
+                        ByteBuffer grown = ByteBuffer.allocate(Math.min(capacity, BinaryProtocol.HEADER_MAX + this.max_frame_length));
+                        if (this.partial != null)
+                        {
+                                this.partial.flip();
+                                grown.put(this.partial);
+                        }
+                        this.partial = grown;
+                }
+
+                this.partial.put(this.partial.position(), input, start, length);
+                this.partial.position(buffered + length);
+        }
+
+        /**
+         * Forget the buffered frame, giving back big buffers
+         */
+        private void
+        clear_partial ()
+        {
+                if (this.partial != null && this.partial.capacity() > INITIAL_CAPACITY)
+                {
+                        this.partial = null;
+                }
+                else if (this.partial != null)
+                {
+                        this.partial.clear();
+                }
+        }
+}
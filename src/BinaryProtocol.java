@@ -0,0 +1,443 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary protocol, which a client opts into by sending "/proto binary"
+ * before its nickname, or "/proto deflate" to also have what it receives
+ * compressed; the server answers OK in text, then both sides switch
+ *
+ * Every frame is a varint length, then that many bytes: a type byte and
+ * the fields of that type. Varints are unsigned LEB128 of at most 5
+ * bytes; a string is its length in bytes as a varint, then UTF-8.
+ *
+ * From the server, the type is a MessageType ordinal, DEFINE, COMPRESSED or
+ * ROOM:
+ *   OK, BYE, PING       nothing
+ *   ERROR               string, the reason
+ *   RESUME              string, the token
+ *   JOINED, LEFT        name
+ *   NEW_NICKNAME        name, name
+ *   MESSAGE, PRIVATE    name, string
+ *   DEFINE              varint ID, string
+ *   COMPRESSED          varint context, raw deflate data
+ *   ROOM                name, the room, then the type and fields of
+ *                       what was said there, for clients in several rooms
+ * A name is a varint: ID << 1 for a nickname or room name sent by ID, or
+ * its length << 1 | 1 followed by the name itself. The client keeps
+ * NAME_SLOTS names, DEFINE putting one at slot ID % NAME_SLOTS, and the
+ * server only sends an ID it defined in its slot since. Nicknames and
+ * room names share the IDs, so a slot holds either.
+ *
+ * COMPRESSED holds one frame, length included, deflated in a context that
+ * carries over from one frame to the next: context 0 is the connection's
+ * own, any other a room's, shared by all its members that aren't in
+ * several rooms; ROOM frames only go in the connection's. A new room
+ * context ID starts afresh. Each frame's data ends in a sync flush,
+ * without the 00 00 FF FF it ends with.
+ *
+ * From the client, the type is COMMAND plus a CommandType ordinal, or the
+ * MESSAGE ordinal for text said in the room:
+ *   NICK, JOIN, PROTO   string
+ *   RESUME              string, the token
+ *   PART                string, the room
+ *   LEAVE, BYE, PONG    nothing
+ *   PRIVATE             string, the receiver, then string
+ *   SAY                 string, the room, then string
+ *   MESSAGE             string
+ */
+final class
+BinaryProtocol
+{
+        // Type byte of a name definition
+        static final int DEFINE = 0x40;
+
+        // Type byte of a frame compressed in a context
+        static final int COMPRESSED = 0x41;
+
+        // Type byte ahead of a room's, for clients in several rooms
+        static final int ROOM = 0x42;
+
+        // Type byte of the first command
+        static final int COMMAND = 0x20;
+
+        // Names a client keeps by ID; a power of two
+        static final int NAME_SLOTS = 256;
+
+        // Room left ahead of a frame for its length
+        static final int HEADER_MAX = 5;
+
+        private
+        BinaryProtocol ()
+        {
+        }
+
+        /**
+         * Start a frame in a cleared buffer, leaving room for its length
+         *
+         * @param out
+         * @param type
+         */
+        static void
+        begin_frame (ByteBuffer out, int type)
+        {
+                out.position(HEADER_MAX);
+                out.put((byte) type);
+        }
+
+        /**
+         * Put the length in front of a frame started by begin_frame, and
+         * bound the buffer to it
+         *
+         * @param out
+         */
+        static void
+        end_frame (ByteBuffer out)
+        {
+                int end = out.position();
+                int length = end - HEADER_MAX;
+                int start = HEADER_MAX - varint_size(length);
+
+                out.position(start);
+                put_varint(out, length);
+                out.position(start).limit(end);
+        }
+
+        /**
+         * Encode the definition of a name's ID
+         *
+         * @param name
+         * @return Frame holding one reference, for the caller
+         */
+        static Frame
+        define (Name name)
+        {
+                byte[] text = name.get_text().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer out = BufferPool.lease(HEADER_MAX + 1 + 2 * HEADER_MAX + text.length);
+
+                begin_frame(out, DEFINE);
+                put_varint(out, name.get_id());
+                put_varint(out, text.length);
+                out.put(text);
+                end_frame(out);
+                return new Frame(out);
+        }
+
+        /**
+         * Encode a line typed in the text protocol as a binary command,
+         * for clients
+         *
+         * @param line
+         * @return ByteBuffer the frame, empty for an empty line, or null for
+         * an unknown command
+         */
+        static ByteBuffer
+        encode_command (String line)
+        {
+                if (!line.startsWith("/"))
+                {
+                        line = line.trim();
+                        return line.length() == 0 ? ByteBuffer.allocate(0) : frame(MessageType.MESSAGE.ordinal(), line, null);
+                }
+
+                // The same rules as the text protocol, in ChatServer.processInput
+                int from = 1;
+                int to = line.length();
+                while (from < to && line.charAt(from) <= ' ')
+                {
+                        ++from;
+                }
+                while (to > from && line.charAt(to - 1) <= ' ')
+                {
+                        --to;
+                }
+
+                int[] tokens = new int[4];
+                // Whether we're in several rooms is the server's to say
+                CommandType command = ChatServer.ROOM_COMMANDS.match(line, from, to, tokens);
+                if (command == null)
+                {
+                        command = ChatServer.COMMANDS.match(line, from, to, tokens);
+                }
+                if (command == null)
+                {
+                        // Refused once we have a nickname, by the server
+                        command = ChatServer.RESUME_COMMANDS.match(line, from, to, tokens);
+                }
+                if (command == null)
+                {
+                        return from < to && line.charAt(from) == '/'
+                               ? frame(MessageType.MESSAGE.ordinal(), line.substring(from, to), null)
+                               : null;
+                }
+
+                int type = COMMAND + command.ordinal();
+                switch (command)
+                {
+                        case NICK:
+                        case JOIN:
+                        case PROTO:
+                        case RESUME:
+                        case PART:
+                                return frame(type, line.substring(tokens[0], tokens[1]), null);
+                        case PRIVATE:
+                        case SAY:
+                                return frame(type, line.substring(tokens[0], tokens[1]), line.substring(tokens[2], tokens[3]));
+                        default:
+                                return frame(type, null, null);
+                }
+        }
+
+        /**
+         * @param type
+         * @param first string field, or null
+         * @param second string field, or null
+         * @return ByteBuffer a whole frame, flipped
+         */
+        private static ByteBuffer
+        frame (int type, String first, String second)
+        {
+                byte[] first_bytes = first == null ? new byte[0] : first.getBytes(StandardCharsets.UTF_8);
+                byte[] second_bytes = second == null ? new byte[0] : second.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer out = ByteBuffer.allocate(HEADER_MAX + 1 + 2 * HEADER_MAX + first_bytes.length + second_bytes.length);
+
+                begin_frame(out, type);
+                if (first != null)
+                {
+                        put_varint(out, first_bytes.length);
+                        out.put(first_bytes);
+                }
+                if (second != null)
+                {
+                        put_varint(out, second_bytes.length);
+                        out.put(second_bytes);
+                }
+                end_frame(out);
+                return out;
+        }
+
+        /**
+         * @param value taken as unsigned
+         * @return int bytes its varint takes
+         */
+        static int
+        varint_size (int value)
+        {
+                int size = 1;
+                while ((value & ~0x7f) != 0)
+                {
+                        value >>>= 7;
+                        ++size;
+                }
+                return size;
+        }
+
+        /**
+         * @param out
+         * @param value taken as unsigned
+         */
+        static void
+        put_varint (ByteBuffer out, int value)
+        {
+                while ((value & ~0x7f) != 0)
+                {
+                        out.put((byte) ((value & 0x7f) | 0x80));
+                        value >>>= 7;
+                }
+                out.put((byte) value);
+        }
+
+        /**
+         * @param in
+         * @return int
+         * @throws IllegalArgumentException if it runs over 5 bytes
+         */
+        static int
+        get_varint (ByteBuffer in)
+        {
+                int value = 0;
+                for (int shift = 0; shift < 35; shift += 7)
+                {
+                        byte b = in.get();
+                        value |= (b & 0x7f) << shift;
+                        if (b >= 0)
+                        {
+                                return value;
+                        }
+                }
+                throw new IllegalArgumentException("Malformed varint");
+        }
+
+        /**
+         * @param out with room for the string, as UTF-8, and its length
+         * @param encoder a UTF-8 encoder that replaces what it can't map
+         * @param text
+         */
+        static void
+        put_string (ByteBuffer out, CharsetEncoder encoder, String text)
+        {
+                put_varint(out, utf8_length(text));
+                encoder.reset();
+                encoder.encode(CharBuffer.wrap(text), out, true);
+                encoder.flush(out);
+        }
+
+        /**
+         * @param out
+         * @param encoder
+         * @param text
+         * @param name text interned, to send by ID, or null to send the text
+         */
+        static void
+        put_name (ByteBuffer out, CharsetEncoder encoder, String text, Name name)
+        {
+                if (name != null)
+                {
+                        put_varint(out, name.get_id() << 1);
+                        return;
+                }
+
+                put_varint(out, utf8_length(text) << 1 | 1);
+                encoder.reset();
+                encoder.encode(CharBuffer.wrap(text), out, true);
+                encoder.flush(out);
+        }
+
+        /**
+         * @param in
+         * @param scratch where the bytes are copied when in has no array
+         * @return String
+         */
+        static String
+        get_string (ByteBuffer in, byte[] scratch)
+        {
+                return get_utf8(in, get_varint(in), scratch);
+        }
+
+        /**
+         * A string that can stand for a nickname or room name, as [^ .]+
+         *
+         * @param in
+         * @param scratch
+         * @return String
+         * @throws IllegalArgumentException if it can't
+         */
+        static String
+        get_token (ByteBuffer in, byte[] scratch)
+        {
+                String token = get_string(in, scratch);
+                if (token.isEmpty() || token.indexOf(' ') >= 0 || token.indexOf('.') >= 0)
+                {
+                        throw new IllegalArgumentException("Malformed name");
+                }
+                return token;
+        }
+
+        /**
+         * A string that fits on one line of the text protocol, as text
+         * clients get it too
+         *
+         * @param in
+         * @param scratch
+         * @return String
+         * @throws IllegalArgumentException if it doesn't
+         */
+        static String
+        get_text (ByteBuffer in, byte[] scratch)
+        {
+                String text = get_string(in, scratch);
+                if (text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0)
+                {
+                        throw new IllegalArgumentException("Malformed text");
+                }
+                return text;
+        }
+
+        /**
+         * @param in
+         * @param names the client's names by slot
+         * @param scratch
+         * @return String
+         * @throws IllegalArgumentException for an ID not defined
+         */
+        static String
+        get_name (ByteBuffer in, Name[] names, byte[] scratch)
+        {
+                int reference = get_varint(in);
+                if ((reference & 1) != 0)
+                {
+                        return get_utf8(in, reference >>> 1, scratch);
+                }
+
+                int id = reference >>> 1;
+                Name name = names[id & (NAME_SLOTS - 1)];
+                if (name == null || name.get_id() != id)
+                {
+                        throw new IllegalArgumentException("Undefined name " + id);
+                }
+                return name.get_text();
+        }
+
+        /**
+         * @param in
+         * @param length
+         * @param scratch
+         * @return String
+         */
+        private static String
+        get_utf8 (ByteBuffer in, int length, byte[] scratch)
+        {
+                if (length < 0 || length > in.remaining())
+                {
+                        throw new IllegalArgumentException("Malformed string");
+                }
+
+                int start = in.position();
+                in.position(start + length);
+                if (in.hasArray())
+                {
+                        return new String(in.array(), in.arrayOffset() + start, length, StandardCharsets.UTF_8);
+                }
+                in.get(start, scratch, 0, length);
+                return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @param text
+         * @return int bytes the text takes in UTF-8, where a lone surrogate
+         * is replaced by '?'
+         */
+        private static int
+        utf8_length (String text)
+        {
+                int length = 0;
+                for (int i = 0; i < text.length(); ++i)
+                {
+                        char c = text.charAt(i);
+                        if (c < 0x80)
+                        {
+                                ++length;
+                        }
+                        else if (c < 0x800)
+                        {
+                                length += 2;
+                        }
+                        else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                                 && Character.isLowSurrogate(text.charAt(i + 1)))
+                        {
+                                length += 4;
+                                ++i;
+                        }
+                        else if (Character.isSurrogate(c))
+                        {
+                                ++length;
+                        }
+                        else
+                        {
+                                length += 3;
+                        }
+                }
+                return length;
+        }
+}
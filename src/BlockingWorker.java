@@ -0,0 +1,495 @@
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Serves one connection with blocking channel I/O on two threads of its
+ * own: one reads and runs the commands, the other writes the output queue,
+ * so a receiver that is slow to read never blocks whoever sends to it
+ *
+ * The threads are virtual when the JDK has them (21 and later), platform
+ * threads otherwise.
+ */
+class
+BlockingWorker
+implements Runnable, Worker
+{
+        // Smaller than a reactor's, as there is one per connection
+        private static final int BUFFER_SIZE = 4096;
+
+        // How long a closing connection may take to write what is left
+        private static final long CLOSE_TIMEOUT_MS = 1000;
+
+        // Idle timeouts of every connection, run by a thread of their own,
+        // or null when they're off; guarded by itself
+        private static final TimingWheel wheel = ChatServer.new_idle_wheel();
+
+        // Thread.ofVirtual() and what it returns, when there are virtual threads
+        private static final Method OF_VIRTUAL;
+        private static final Method BUILDER_NAME;
+        private static final Method BUILDER_START;
+
+        static
+        {
+                Method of_virtual = null;
+                Method builder_name = null;
+                Method builder_start = null;
+                try
+                {
+                        of_virtual = Thread.class.getMethod("ofVirtual");
+                        Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                        builder_name = builder.getMethod("name", String.class);
+                        builder_start = builder.getMethod("start", Runnable.class);
+
+                        // A preview on 19 and 20, refused unless enabled
+                        of_virtual.invoke(null);
+                }
+                catch (ReflectiveOperationException | RuntimeException e)
+                {
+                        of_virtual = null;
+                }
+                OF_VIRTUAL = of_virtual;
+                BUILDER_NAME = builder_name;
+                BUILDER_START = builder_start;
+        }
+
+        private final ByteBuffer buffer = BufferPool.lease(BUFFER_SIZE);
+        private final byte[] line_bytes = new byte[this.buffer.capacity()];
+        private final int[] tokens = new int[4];
+        private final Slice slice = new Slice();
+        private final User user;
+
+        // Where the writer gathers the frames of each write
+        private final ByteBuffer[] gather_views = new ByteBuffer[Config.FLUSH_FRAMES];
+        private final Frame[] gather_frames = new Frame[Config.FLUSH_FRAMES];
+
+        // Kept for the logs, and admission, as a closed socket no longer
+        // tells its peer
+        private final String peer;
+        private final InetAddress address;
+
+        // Run by the reader once its reads were held, or by whoever hands
+        // them over once it's done reading; guarded by itself
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean reading = true;
+
+        private final AtomicBoolean flush_requested = new AtomicBoolean();
+        private volatile boolean closing = false;
+        private volatile Thread reader;
+        private volatile Thread writer;
+
+        /**
+         * Constructor
+         *
+         * @param sc a connected, blocking channel
+         */
+        public BlockingWorker (SocketChannel sc)
+        {
+                this.user = new User(sc, this);
+                this.peer = sc.socket().toString();
+                this.address = sc.socket().getInetAddress();
+        }
+
+        /**
+         * @return boolean true if connections get virtual threads
+         */
+        static boolean
+        is_virtual ()
+        {
+                return OF_VIRTUAL != null;
+        }
+
+        /**
+         * Start a thread, virtual if possible
+         *
+         * @param name
+         * @param task
+         * @return Thread
+         */
+        static Thread
+        start_thread (String name, Runnable task)
+        {
+                if (OF_VIRTUAL != null)
+                {
+                        try
+                        {
+                                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                                return (Thread) BUILDER_START.invoke(builder, task);
+                        }
+                        catch (ReflectiveOperationException roe)
+                        {
+                                throw new IllegalStateException("Can't start a virtual thread", roe);
+                        }
+                }
+
+                Thread thread = new Thread(task, name);
+                thread.start();
+                return thread;
+        }
+
+        /**
+         * Start the thread running the idle timeouts, if they're on
+         */
+        static void
+        start_idle_timer ()
+        {
+                if (wheel == null)
+                {
+                        return;
+                }
+
+                Thread timer = new Thread(BlockingWorker::idle_loop, "idle-timer");
+                timer.setDaemon(true);
+                timer.start();
+        }
+
+        /**
+         * Run the idle timeouts due, once a tick
+         */
+        private static void
+        idle_loop ()
+        {
+                long tick_nanos = Config.IDLE_TICK_MS * 1000000L;
+                while (true)
+                {
+                        long due_in;
+                        synchronized (wheel)
+                        {
+                                long now = System.nanoTime();
+                                wheel.advance(now, BlockingWorker::expired);
+                                due_in = wheel.due_in(now);
+                        }
+                        LockSupport.parkNanos(Math.min(due_in, tick_nanos));
+                }
+        }
+
+        /**
+         * @param user whose idle timeout came due
+         * @param now
+         * @return long when it comes due again, or -1
+         */
+        private static long
+        expired (User user, long now)
+        {
+                long next = ChatServer.check_idle(user, now);
+                if (next == -1)
+                {
+                        // The reader finds the channel closed, and closes the rest
+                        BlockingWorker worker = (BlockingWorker) user.get_worker();
+                        worker.close_channel();
+                        LockSupport.unpark(worker.reader);
+                }
+                return next;
+        }
+
+        /**
+         * Read and process input until the connection ends
+         */
+        @Override
+        public void
+        run ()
+        {
+                this.reader = Thread.currentThread();
+                this.writer = start_thread(this.reader.getName() + "-writer", this::write_loop);
+                if (wheel != null)
+                {
+                        synchronized (wheel)
+                        {
+                                wheel.schedule(this.user.get_timeout(), ChatServer.idle_deadline(this.user));
+                        }
+                }
+
+                try
+                {
+                        while (!this.user.is_disconnected() && ChatServer.processInput(this, this.user))
+                        {
+                                this.user.touch(System.nanoTime());
+                                wait_for_writer();
+                                wait_for_penalty();
+                                wait_for_tasks();
+                        }
+                }
+                catch (IOException ie)
+                {
+                        // Closed below
+                }
+
+                ChatServer.close_client(this.user);
+
+                // Held reads still get their answer, to undo what it was for
+                synchronized (this.tasks)
+                {
+                        this.reading = false;
+                }
+                run_tasks();
+                BufferPool.release(this.buffer);
+        }
+
+        /**
+         * Stop reading from a client that doesn't read its replies, until it
+         * has caught up
+         */
+        private void
+        wait_for_writer ()
+        {
+                if (this.user.get_queued() < Config.WRITE_HIGH_WATERMARK)
+                {
+                        return;
+                }
+
+                Metrics.reads_suspended.increment();
+                while (this.user.get_queued() > Config.WRITE_LOW_WATERMARK
+                       && this.user.get_socket().isOpen())
+                {
+                        LockSupport.park(this);
+                }
+        }
+
+        /**
+         * Stop reading from a client over its rate limits until its penalty
+         * is over
+         */
+        private void
+        wait_for_penalty ()
+        {
+                if (!this.user.is_read_suspended())
+                {
+                        return;
+                }
+
+                long left;
+                while ((left = this.user.get_resume_at() - System.nanoTime()) > 0
+                       && this.user.get_socket().isOpen())
+                {
+                        LockSupport.parkNanos(this, left);
+                }
+                this.user.resume_reads();
+        }
+
+        /**
+         * @param user
+         * @param until
+         */
+        @Override
+        public void
+        suspend_reads (User user, long until)
+        {
+                // The reader waits it out after this read
+                user.suspend_reads(until);
+        }
+
+        /**
+         * Stop reading while the user waits on another node, running the
+         * tasks handed over meanwhile
+         */
+        private void
+        wait_for_tasks ()
+        {
+                while (this.user.is_claiming() && this.user.get_socket().isOpen())
+                {
+                        run_tasks();
+                        if (this.user.is_claiming())
+                        {
+                                LockSupport.park(this);
+                        }
+                }
+                run_tasks();
+        }
+
+        private void
+        run_tasks ()
+        {
+                while (true)
+                {
+                        Runnable task;
+                        synchronized (this.tasks)
+                        {
+                                task = this.tasks.poll();
+                        }
+                        if (task == null)
+                        {
+                                return;
+                        }
+                        task.run();
+                }
+        }
+
+        /**
+         * @param user
+         */
+        @Override
+        public void
+        hold_reads (User user)
+        {
+                // The reader waits for the task after this read
+        }
+
+        /**
+         * @param user
+         * @param task
+         */
+        @Override
+        public void
+        release_reads (User user, Runnable task)
+        {
+                synchronized (this.tasks)
+                {
+                        this.tasks.add(task);
+                        if (this.reading)
+                        {
+                                LockSupport.unpark(this.reader);
+                                return;
+                        }
+                }
+                run_tasks();
+        }
+
+        /**
+         * Write the output queue whenever asked to, until closing
+         */
+        private void
+        write_loop ()
+        {
+                try
+                {
+                        while (true)
+                        {
+                                if (!this.flush_requested.getAndSet(false))
+                                {
+                                        if (this.closing)
+                                        {
+                                                break;
+                                        }
+                                        LockSupport.park(this);
+                                        continue;
+                                }
+
+                                this.user.flush_blocking(this.gather_views, this.gather_frames);
+                                LockSupport.unpark(this.reader);
+                        }
+                }
+                catch (IOException ie)
+                {
+                        // The reader notices the channel is gone
+                        close_channel();
+                }
+        }
+
+        /**
+         * @param user
+         */
+        @Override
+        public void
+        schedule_flush (User user)
+        {
+                if (user.is_overflowed())
+                {
+                        // The writer may be stuck in a write: cut it off, and the
+                        // reader closes the rest
+                        Metrics.slow_clients.increment();
+                        System.out.println("Disconnecting slow client " + this.peer);
+                        close_channel();
+                        LockSupport.unpark(this.reader);
+                        return;
+                }
+
+                this.flush_requested.set(true);
+                LockSupport.unpark(this.writer);
+        }
+
+        /**
+         * @param user
+         */
+        @Override
+        public void
+        close (User user)
+        {
+                // The writer sends what is queued, such as BYE, then stops
+                this.closing = true;
+                LockSupport.unpark(this.writer);
+                try
+                {
+                        this.writer.join(CLOSE_TIMEOUT_MS);
+                }
+                catch (InterruptedException ie)
+                {
+                        Thread.currentThread().interrupt();
+                }
+                user.close_outbound();
+                if (wheel != null)
+                {
+                        synchronized (wheel)
+                        {
+                                wheel.cancel(user.get_timeout());
+                        }
+                }
+
+                Admission.release(this.address);
+                if (Config.LOG_CONNECTIONS)
+                {
+                        System.out.println("Closing connection to " + this.peer);
+                }
+                close_channel();
+        }
+
+        /**
+         * Close the channel, waking up any thread blocked on it
+         */
+        private void
+        close_channel ()
+        {
+                try
+                {
+                        this.user.get_socket().close();
+                }
+                catch (IOException ie)
+                {
+                        System.err.println("Error closing socket " + this.peer + ": " + ie);
+                }
+        }
+
+        /**
+         * @return ByteBuffer
+         */
+        @Override
+        public ByteBuffer
+        get_buffer ()
+        {
+                return this.buffer;
+        }
+
+        /**
+         * @return byte[]
+         */
+        @Override
+        public byte[]
+        get_line_bytes ()
+        {
+                return this.line_bytes;
+        }
+
+        /**
+         * @return int[]
+         */
+        @Override
+        public int[]
+        get_tokens ()
+        {
+                return this.tokens;
+        }
+
+        /**
+         * @return Slice
+         */
+        @Override
+        public Slice
+        get_slice ()
+        {
+                return this.slice;
+        }
+}
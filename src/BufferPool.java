@@ -0,0 +1,184 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-classed pool of direct buffers
+ *
+ * Socket reads and writes from heap buffers are copied through a temporary
+ * direct buffer by the JDK; leasing direct buffers from here avoids that
+ * copy without paying for allocateDirect on every message. Sizes are
+ * powers of two from MIN_SIZE to MAX_SIZE; bigger requests get a direct
+ * buffer of their own, which is not kept on release.
+ */
+final class
+BufferPool
+{
+        private static final int MIN_SHIFT = 8;
+        private static final int MAX_SHIFT = 16;
+        static final int MIN_SIZE = 1 << MIN_SHIFT;
+        static final int MAX_SIZE = 1 << MAX_SHIFT;
+
+        /**
+         * Idle buffers of one size, as a stack
+         */
+        private static final class
+        SizeClass
+        {
+                final int size;
+                final ByteBuffer[] idle;
+                int count;
+
+                SizeClass (int size)
+                {
+                        this.size = size;
+                        this.idle = new ByteBuffer[Math.max(1, Config.POOL_IDLE_BYTES / size)];
+                }
+        }
+
+        private static final SizeClass[] classes = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+
+        // Occupancy, in bytes
+        private static final AtomicLong leased_bytes = new AtomicLong();
+        private static final AtomicLong idle_bytes = new AtomicLong();
+        private static final LongAdder allocations = new LongAdder();
+        private static final LongAdder oversized = new LongAdder();
+
+        static
+        {
+                for (int i = 0; i < classes.length; ++i)
+                {
+                        classes[i] = new SizeClass(1 << (MIN_SHIFT + i));
+                }
+        }
+
+        private
+        BufferPool ()
+        {
+        }
+
+        /**
+         * Lease a cleared buffer holding at least size bytes
+         *
+         * @param size
+         * @return ByteBuffer
+         */
+        static ByteBuffer
+        lease (int size)
+        {
+                if (size > MAX_SIZE)
+                {
+                        oversized.increment();
+                        return ByteBuffer.allocateDirect(size);
+                }
+
+                SizeClass size_class = classes[class_of(size)];
+                leased_bytes.addAndGet(size_class.size);
+
+                synchronized (size_class)
+                {
+                        if (size_class.count > 0)
+                        {
+                                ByteBuffer buffer = size_class.idle[--size_class.count];
+                                size_class.idle[size_class.count] = null;
+                                idle_bytes.addAndGet(-size_class.size);
+                                return buffer.clear();
+                        }
+                }
+
+                allocations.increment();
+                return ByteBuffer.allocateDirect(size_class.size);
+        }
+
+        /**
+         * Give a leased buffer back; it must not be used afterwards
+         *
+         * @param buffer
+         */
+        static void
+        release (ByteBuffer buffer)
+        {
+                int size = buffer.capacity();
+                if (size > MAX_SIZE)
+                {
+                        return;
+                }
+
+                SizeClass size_class = classes[class_of(size)];
+                leased_bytes.addAndGet(-size);
+
+                synchronized (size_class)
+                {
+                        // A full class lets the buffer go to the garbage collector
+                        if (size_class.count < size_class.idle.length)
+                        {
+                                size_class.idle[size_class.count++] = buffer;
+                                idle_bytes.addAndGet(size);
+                        }
+                }
+        }
+
+        /**
+         * Account for a leased buffer that was lost instead of released
+         *
+         * @param size capacity of the buffer
+         */
+        static void
+        forget (int size)
+        {
+                if (size <= MAX_SIZE)
+                {
+                        leased_bytes.addAndGet(-size);
+                }
+        }
+
+        /**
+         * @return long bytes in buffers leased and not yet released
+         */
+        static long
+        get_leased_bytes ()
+        {
+                return leased_bytes.get();
+        }
+
+        /**
+         * @return long bytes in buffers waiting to be leased
+         */
+        static long
+        get_idle_bytes ()
+        {
+                return idle_bytes.get();
+        }
+
+        /**
+         * @return long buffers allocated because none was idle
+         */
+        static long
+        get_allocations ()
+        {
+                return allocations.sum();
+        }
+
+        /**
+         * @return long buffers too big for any class
+         */
+        static long
+        get_oversized ()
+        {
+                return oversized.sum();
+        }
+
+        /**
+         * @param size
+         * @return int smallest class holding size bytes
+         */
+        private static int
+        class_of (int size)
+        {
+                if (size <= MIN_SIZE)
+                {
+                        return 0;
+                }
+                return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+        }
+}
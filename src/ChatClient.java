@@ -1,18 +1,14 @@
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
-import java.nio.CharBuffer;
-import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
-import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This is the main class for the Chat Client
@@ -29,12 +25,19 @@ ChatClient
         // Se for necessário adicionar variáveis ao objecto ChatClient, devem
         // ser colocadas aqui
 
-        // Socket info
-        private SocketChannel client_socket;
+        // Connection to the server, on a thread of its own; speaks the binary
+        // protocol with -Dchatclient.proto=binary, or has it compressed too
+        // with deflate
+        private final ClientEngine engine;
 
-        // Decoder and enconder for transmitting text
-        private final Charset charset = StandardCharsets.UTF_8;
-        private final CharsetEncoder encoder = charset.newEncoder();
+        // Messages to show, rendered on the event dispatch thread in one
+        // batch at most FPS times a second; the chat area keeps the last
+        // SCROLLBACK lines. FPS is kept between 1 and 120, so the timer has
+        // a delay and never spins the event dispatch thread
+        private final ConcurrentLinkedQueue<Message> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending_count = new AtomicInteger();
+        private static final int FPS = Math.max(1, Math.min(Integer.getInteger("chatclient.fps", 30), 120));
+        private static final int SCROLLBACK = Integer.getInteger("chatclient.scrollback", 5000);
 
         /**
          * Método a usar para acrescentar uma string à caixa de texto
@@ -90,15 +93,12 @@ ChatClient
 
                 // Se for necessário adicionar código de inicialização ao
                 // construtor, deve ser colocado aqui
+                new Timer(1000 / FPS, event -> render()).start();
 
                 // Socket information
-                try {
-                        client_socket = SocketChannel.open();
-                        client_socket.configureBlocking(true);
-                        client_socket.connect(new InetSocketAddress(server, port));
-                } catch (IOException ex) {
-                        // Fail graciously if the server is offline.
-                }
+                engine = new ClientEngine(new InetSocketAddress(server, port),
+                                          System.getProperty("chatclient.proto", "text"),
+                                          this::received);
         }
 
         /**
@@ -128,7 +128,7 @@ ChatClient
         throws IOException
         {
                 // PREENCHER AQUI com código que envia a mensagem ao servidor
-                client_socket.write(encoder.encode(CharBuffer.wrap(message + "\n")));
+                engine.send(message);
         }
 
         /**
@@ -141,41 +141,88 @@ ChatClient
         throws IOException
         {
                 // PREENCHER AQUI
-                try
-                {
-                        while (!client_socket.finishConnect())
-                        {;} /* Deliberately blank. */
-                }
-                catch (IOException ce)
+                engine.run();
+
+                System.out.println("Terminated.");
+                System.exit(0);
+        }
+
+        /**
+         * Print a message received in the chat area; on the engine's thread
+         *
+         * @param message
+         */
+        private void
+        received (Message message)
+        {
+                System.out.print("RECEIVED: " + message);
+                show(message);
+        }
+
+        /**
+         * Queue a message to be shown in the chat area with the next batch
+         *
+         * @param message
+         */
+        private void
+        show (Message message)
+        {
+                pending.add(message);
+                pending_count.incrementAndGet();
+        }
+
+        /**
+         * Show the messages queued since the last frame, in a single append
+         * and scroll; on the event dispatch thread
+         */
+        private void
+        render ()
+        {
+                int count = pending_count.get();
+                if (count == 0)
                 {
-                        System.err.println("Unable to connect to the server...");
-                        System.exit(0);
                         return;
                 }
 
-                BufferedReader input_reader =
-                        new BufferedReader(new InputStreamReader(client_socket.socket().getInputStream()));
-
-                // Listen loop
-                while (true)
+                // Those the scrollback wouldn't keep aren't worth rendering
+                int skip = count - SCROLLBACK;
+                StringBuilder batch = new StringBuilder();
+                for (int i = 0; i < count; ++i)
                 {
-                        String message = input_reader.readLine();
-
-                        if (message == null)
+                        Message message = pending.poll();
+                        if (i >= skip)
                         {
-                                break;
+                                batch.append(message.toString(true));
                         }
+                }
+                pending_count.addAndGet(-count);
 
-                        System.out.println("RECEIVED: " + message);
-                        message = message.trim();
+                printMessage(batch.toString());
+                trim();
+                chatArea.setCaretPosition(chatArea.getDocument().getLength()); // Scroll to bottom
+        }
 
-                        printMessage(Message.parse_string(message).toString(true));
-                        int len = chatArea.getDocument().getLength();  // Length of chat text in lines
-                        chatArea.setCaretPosition(len);                // Scroll to bottom
+        /**
+         * Drop the oldest lines in bulk, once there are an eighth more than
+         * the scrollback keeps
+         */
+        private void
+        trim ()
+        {
+                // The last line is the empty one after the last newline
+                int lines = chatArea.getLineCount() - 1;
+                if (lines <= SCROLLBACK + SCROLLBACK / 8)
+                {
+                        return;
                 }
 
-                System.out.println("Terminated.");
-                client_socket.close();
-                System.exit(0);
+                try
+                {
+                        chatArea.replaceRange(null, 0, chatArea.getLineStartOffset(lines - SCROLLBACK));
+                }
+                catch (BadLocationException ble)
+                {
+                        // Counted on this thread, so it can't be
+                }
         }
 }
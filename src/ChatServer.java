@@ -2,21 +2,33 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
-import java.util.TreeSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Commands a client can send
+ */
+enum CommandType
+{
+        NICK, JOIN, LEAVE, BYE, PRIVATE, PROTO, PONG, RESUME, SAY, PART
+}
 
 /**
  * This is the main class for the Chat Server
@@ -24,29 +36,92 @@ import java.util.regex.Pattern;
 public class
 ChatServer
 {
-        // A pre-allocated buffer for the received data
-        private static final ByteBuffer buffer = ByteBuffer.allocate(16384);
+        /**
+         * The rest of a command that claims a nickname, run on the thread
+         * reading the user once the nickname is known to be the user's or not
+         */
+        private interface
+        Claimed
+        {
+                /**
+                 * @param granted
+                 * @throws IOException
+                 */
+                void claimed (boolean granted) throws IOException;
+        }
 
-        // Decoder and encoder for transmitting text
+        // Charset for transmitting text, with an encoder per reactor thread
+        // since a CharsetEncoder can't be shared
         private static final Charset charset = StandardCharsets.UTF_8;
-        private static final CharsetDecoder decoder = charset.newDecoder();
-        private static final CharsetEncoder encoder = charset.newEncoder();
+        private static final ThreadLocal<CharsetEncoder> encoders = ThreadLocal.withInitial(
+                () -> charset.newEncoder()
+                             .onMalformedInput(CodingErrorAction.REPLACE)
+                             .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+        // Grammar for message process, tried in this order; the verbs added
+        // to the original ones only match at the start, so text escaped with
+        // "//" is never taken for them
+        static final Grammar<CommandType> COMMANDS = new Grammar<CommandType>(7)
+                .verb("nick ", Grammar.Shape.NAME, CommandType.NICK)
+                .verb("join ", Grammar.Shape.NAME, CommandType.JOIN)
+                .verb("leave", Grammar.Shape.EXACT, CommandType.LEAVE)
+                .verb("bye", Grammar.Shape.EXACT, CommandType.BYE)
+                .verb("priv ", Grammar.Shape.NAME_TEXT, CommandType.PRIVATE)
+                .prefix("proto ", Grammar.Shape.NAME, CommandType.PROTO)
+                .verb("pong", Grammar.Shape.EXACT, CommandType.PONG);
+
+        // Tried after the others, and only for users without a nickname, as
+        // resuming is what gives them theirs back
+        static final Grammar<CommandType> RESUME_COMMANDS = new Grammar<CommandType>(1)
+                .prefix("resume ", Grammar.Shape.NAME, CommandType.RESUME);
+
+        // Commands of users in several rooms, tried before the others and
+        // only at the start, so what's said is never taken for a command
+        static final Grammar<CommandType> ROOM_COMMANDS = new Grammar<CommandType>(2)
+                .prefix("say ", Grammar.Shape.NAME_TEXT, CommandType.SAY)
+                .prefix("leave ", Grammar.Shape.NAME, CommandType.PART);
+
+        private static final CommandType[] COMMAND_TYPES = CommandType.values();
+
+        private static final long IDLE_NANOS = Config.IDLE_TIMEOUT_MS * 1000000L;
+        private static final long PONG_NANOS = Config.IDLE_PONG_MS * 1000000L;
+
+        // Users by nickname and rooms by name, shared by all the reactors
+        private static final Registry<User> users = new Registry<>();
+        private static final Registry<Room> rooms = new Registry<>();
+        private static final Registry.Factory<Room> NEW_ROOM = ChatServer::new_room;
+
+        // Nicknames in use are interned for the binary protocol, each
+        // user's by the user
+        private static final Function<String, Name> INTERNED = nickname -> {
+                User user = users.get(nickname);
+                Name name = user == null ? null : user.get_name();
+                return name != null && name.get_text().equals(nickname) ? name : null;
+        };
+        private static final Function<String, Name> INLINE = nickname -> null;
 
-        // Regex for message process
-        private static final String REGEX_MSG_NEW_NICKNAME = "nick " + Message.REGEX_NICKNAME;
-        private static final String REGEX_MSG_JOIN = "join " + Message.REGEX_ROOM_NAME;
-        private static final String REGEX_MSG_LEAVE = "leave";
-        private static final String REGEX_MSG_BYE = "bye";
-        private static final String REGEX_MSG_PRIVATE = "priv " + Message.REGEX_NICKNAME + " " + Message.REGEX_TEXT;
+        // Rooms' names too, which only go out ahead of what's said in one
+        // to clients in several
+        private static final Function<String, Name> INTERNED_ROOMS = room_name -> {
+                Room room = rooms.get(room_name);
+                return room == null ? null : room.get_interned();
+        };
 
-        // Users info
-        private static final HashMap<String, User> nickname_user = new HashMap<>();
-        private static final HashMap<String, Room> nickname_room = new HashMap<>();
+        // The listening socket, and the selector accepting on it, closed to
+        // hand the port over on a hot restart; commands that change who's
+        // where are refused from then on
+        private static volatile ServerSocketChannel listener;
+        private static volatile Selector acceptor;
+        private static volatile boolean draining = false;
+
+        // Reactors handed connections in the accept batch going on, by
+        // index; only the acceptor's
+        private static boolean[] handed;
 
         /**
          * Run the server
          *
-         * @param args
+         * @param args port [reactors]
          */
         public static void
         main (String[] args)
@@ -54,8 +129,46 @@ ChatServer
                 // Port to listen
                 int server_port = Integer.parseInt(args[0]);
 
+                // Number of worker selectors
+                int reactor_count = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
                 try
                 {
+                        if (Config.METRICS_PORT != 0)
+                        {
+                                Metrics.start(Config.METRICS_PORT);
+                        }
+                        Cluster.start();
+
+                        // Users handed over by the server this one replaces
+                        // are held for before anyone can connect
+                        Snapshot.restore();
+                        Mailbox.start();
+                        if (Snapshot.is_enabled())
+                        {
+                                Runtime.getRuntime().addShutdownHook(new Thread(ChatServer::drain, "drain"));
+                        }
+
+                        if (Config.ENGINE.equals("threads"))
+                        {
+                                serve_threads(server_port);
+                                return;
+                        }
+                        else if (!Config.ENGINE.equals("reactor"))
+                        {
+                                System.err.println("Unknown engine " + Config.ENGINE + ", use reactor or threads");
+                                return;
+                        }
+
+                        // Start the reactors; this thread is left as the acceptor
+                        Reactor[] reactors = new Reactor[reactor_count];
+                        for (int i = 0; i < reactor_count; ++i)
+                        {
+                                reactors[i] = new Reactor();
+                                new Thread(reactors[i], "reactor-" + i).start();
+                        }
+                        handed = new boolean[reactor_count];
+
                         // Instead of creating a ServerSocket, create a ServerSocketChannel
                         ServerSocketChannel ssc = ServerSocketChannel.open();
 
@@ -66,15 +179,17 @@ ChatServer
                         // it to the listening port
                         ServerSocket ss = ssc.socket();
                         InetSocketAddress isa = new InetSocketAddress(server_port);
-                        ss.bind(isa);
+                        ss.bind(isa, Config.ACCEPT_BACKLOG);
 
                         // Create a new Selector for selecting
                         Selector selector = Selector.open();
+                        listener = ssc;
+                        acceptor = selector;
 
                         // Register the ServerSocketChannel, so we can listen
                         // for incoming connections
                         ssc.register(selector, SelectionKey.OP_ACCEPT);
-                        System.out.println("Listening on port " + server_port);
+                        System.out.println("Listening on port " + server_port + " with " + reactor_count + " reactor(s)");
 
                         while (true)
                         {
@@ -97,43 +212,9 @@ ChatServer
                                         // What kind of activity is it?
                                         if (key.isAcceptable())
                                         {
-                                                // It's an incoming connection.  Register this socket with
-                                                // the Selector so we can listen for input on it
-                                                Socket s = ss.accept();
-                                                System.out.println("Got connection from " + s + ".");
-
-                                                // Make sure to make it non-blocking, so we can use a selector
-                                                // on it.
-                                                SocketChannel sc = s.getChannel();
-                                                sc.configureBlocking(false);
-
-                                                // Register it with the selector, for reading
-                                                sc.register(selector, SelectionKey.OP_READ, new User(sc));
-                                        }
-                                        else if (key.isReadable())
-                                        {
-                                                SocketChannel sc = null;
-
-                                                try
-                                                {
-                                                        // It's incoming data on a connection -- process it
-                                                        sc = (SocketChannel) key.channel();
-                                                        boolean ok = processInput(key, sc);
-
-                                                        // If the connection is dead, remove it from the selector
-                                                        // and close it
-                                                        if (!ok)
-                                                        {
-                                                                key.cancel();
-                                                                close_client(key, sc);
-                                                        }
-                                                }
-                                                catch (IOException ie)
-                                                {
-                                                        // On exception, remove this channel from the selector
-                                                        key.cancel();
-                                                        close_client(key, sc);
-                                                }
+                                                // Incoming connections.  Hand them over to the
+                                                // least loaded reactors, which will listen for input on them
+                                                accept_batch(ssc, reactors);
                                         }
                                 }
 
@@ -148,308 +229,1397 @@ ChatServer
         }
 
         /**
-         * Close a connection with a client
+         * Serve each connection on threads of its own, with blocking I/O,
+         * instead of the reactors
          *
-         * @param key
-         * @param sc
+         * @param server_port
+         * @throws IOException
          */
         private static void
-        close_client (SelectionKey key, SocketChannel sc)
+        serve_threads (int server_port)
+        throws IOException
         {
-                User sender = (User)key.attachment();
-                if (sender.get_state() == State.INSIDE)
-                {
-                        Room room = sender.get_room();
-                        room.left_user(sender);
-                        TreeSet<User> user_list = room.get_users();
+                ServerSocketChannel ssc = ServerSocketChannel.open();
+                ssc.bind(new InetSocketAddress(server_port), Config.ACCEPT_BACKLOG);
+                listener = ssc;
+                System.out.println("Listening on port " + server_port + " with a "
+                                   + (BlockingWorker.is_virtual() ? "virtual" : "platform")
+                                   + " thread per connection");
+                BlockingWorker.start_idle_timer();
 
-                        for (User user : user_list)
+                for (long connection = 0; ; ++connection)
+                {
+                        SocketChannel sc;
+                        try
                         {
-                                try
-                                {
-                                        send_left_message(user, sender.get_nickname());
-                                }
-                                catch (IOException ie)
-                                {
-                                        System.err.println("Error sending left message: " + ie);
-                                }
+                                sc = ssc.accept();
                         }
-
-                        if (user_list.size() == 0)
+                        catch (ClosedChannelException ce)
                         {
-                                nickname_room.remove(room.get_name());
+                                // Handed over to the server replacing this one
+                                return;
+                        }
+                        long start = System.nanoTime();
+                        if (!admit(sc))
+                        {
+                                continue;
                         }
-                }
 
-                nickname_user.remove(sender.get_nickname());
-                key.cancel();
+                        BlockingWorker.start_thread("connection-" + connection, new BlockingWorker(sc));
+                        Metrics.accept_nanos.record(System.nanoTime() - start);
+                }
+        }
 
-                Socket s = sc.socket();
-                try
+        /**
+         * Accept the connections waiting, up to a batch, handing each to the
+         * least loaded reactor, then wake up each reactor handed any once,
+         * clearing handed for the next batch
+         *
+         * @param ssc
+         * @param reactors
+         * @throws IOException
+         */
+        private static void
+        accept_batch (ServerSocketChannel ssc, Reactor[] reactors)
+        throws IOException
+        {
+                long start = System.nanoTime();
+                for (int i = 0; i < Config.ACCEPT_BATCH; ++i)
                 {
-                        System.out.println("Closing connection to " + s);
-                        sc.close();
+                        SocketChannel sc = ssc.accept();
+                        if (sc == null)
+                        {
+                                break;
+                        }
+                        if (!admit(sc))
+                        {
+                                continue;
+                        }
+
+                        int reactor = least_loaded(reactors);
+                        reactors[reactor].register(sc);
+                        handed[reactor] = true;
+                        Metrics.accept_nanos.record(System.nanoTime() - start);
                 }
-                catch (IOException ie)
+
+                for (int i = 0; i < reactors.length; ++i)
                 {
-                        System.err.println("Error closing socket " + s + ": " + ie);
+                        if (handed[i])
+                        {
+                                handed[i] = false;
+                                reactors[i].wakeup();
+                        }
                 }
         }
 
         /**
-         * Read a message from the socket and process it
+         * Let a connection just accepted in, or close it at once if it's
+         * over a limit
          *
-         * @param key
          * @param sc
-         * @return boolean false if connection closed, true otherwise
-         * @throws IOException
+         * @return boolean false if it was closed
          */
         private static boolean
-        processInput (SelectionKey key, SocketChannel sc)
-        throws IOException
+        admit (SocketChannel sc)
         {
-                // Read the message to the buffer
-                buffer.clear();
-                sc.read(buffer);
-                buffer.flip();
-
-                // If no data, close the connection
-                if (buffer.limit() == 0)
+                Socket s = sc.socket();
+                if (!Admission.admit(s.getInetAddress()))
                 {
+                        try
+                        {
+                                // Reset, so nothing lingers for a client turned away
+                                s.setSoLinger(true, 0);
+                                sc.close();
+                        }
+                        catch (IOException ie)
+                        {
+                                // Gone already
+                        }
                         return false;
                 }
 
-                // Decode and add to buffer
-                User sender = (User)key.attachment();
-                sender.add_to_buffer(decoder.decode(buffer).toString());
-                String instructions = sender.get_buffer().toString();
+                if (Config.LOG_CONNECTIONS)
+                {
+                        System.out.println("Got connection from " + s + ".");
+                }
+                Metrics.connections_accepted.increment();
+                return true;
+        }
+
+        /**
+         * Pick the reactor with the fewest connections
+         *
+         * @param reactors
+         * @return int its index
+         */
+        private static int
+        least_loaded (Reactor[] reactors)
+        {
+                int best = 0;
+                for (int i = 1; i < reactors.length; ++i)
+                {
+                        if (reactors[i].get_connections() < reactors[best].get_connections())
+                        {
+                                best = i;
+                        }
+                }
+                return best;
+        }
 
-                // // Print byte representation of incoming package
-                // for (final char c : instructions.toCharArray()) {
-                //         System.out.print((int) c + " ");
-                // }
-                // System.out.println();
+        /**
+         * Hand the users over to the server replacing this one, on the way
+         * out: stop listening, so it can bind the port, give every user
+         * with a nickname a token to resume with there, save them, and wait
+         * a while for what's queued to be written out
+         */
+        private static void
+        drain ()
+        {
+                long start = System.nanoTime();
+                draining = true;
+                try
+                {
+                        if (listener != null)
+                        {
+                                listener.close();
+                        }
+                        // The acceptor only lets go of the socket on its next select
+                        if (acceptor != null)
+                        {
+                                acceptor.wakeup();
+                        }
+                }
+                catch (IOException ie)
+                {
+                        System.err.println("Error closing the listening socket: " + ie);
+                }
 
-                // We only want to process full instructions
-                if (!instructions.endsWith("\n"))
+                List<User> resumable = new ArrayList<>();
+                users.for_each(user -> {
+                        if (user.get_nickname() != null && !user.is_disconnected())
+                        {
+                                resumable.add(user);
+                        }
+                });
+                if (resumable.isEmpty())
                 {
-                        return true;
+                        return;
                 }
 
-                for (String instruction : instructions.split("\n"))
+                List<Snapshot.Entry> entries = new ArrayList<>(resumable.size());
+                for (User user : resumable)
                 {
-                        Matcher tokens;
-                        if (instruction.startsWith("/"))
+                        Room[] joined = user.get_rooms();
+                        String[] names = new String[joined.length];
+                        for (int i = 0; i < joined.length; ++i)
                         {
-                                String cmd = instruction.substring(1).trim();
+                                names[i] = joined[i].get_name();
+                        }
+                        entries.add(Snapshot.issue(user.get_nickname(), user.is_multi_room(), names));
+                }
+                try
+                {
+                        Snapshot.save(entries);
+                }
+                catch (IOException ie)
+                {
+                        System.err.println("Error saving snapshot: " + ie);
+                        return;
+                }
 
-                                if ((tokens = Pattern.compile(REGEX_MSG_NEW_NICKNAME).matcher(cmd)).find())
-                                {
-                                        send_nickname_command(sender, tokens.group(1));
-                                }
-                                else if ((tokens = Pattern.compile(REGEX_MSG_JOIN).matcher(cmd)).find())
-                                {
-                                        send_join_command(sender, tokens.group(1));
-                                }
-                                else if (Pattern.matches(REGEX_MSG_LEAVE, cmd))
-                                {
-                                        send_leave_command(sender);
-                                }
-                                else if (Pattern.matches(REGEX_MSG_BYE, cmd))
-                                {
-                                        send_bye_command(key, sender);
-                                }
-                                else if ((tokens = Pattern.compile(REGEX_MSG_PRIVATE).matcher(cmd)).find())
-                                {
-                                        send_private_command(
-                                            sender,
-                                            // Emitter
-                                            tokens.group(1),
-                                            // Message
-                                            tokens.group(2)
-                                        );
-                                }
-                                else if (cmd.startsWith("/"))
+                for (int i = 0; i < entries.size(); ++i)
+                {
+                        send_message(resumable.get(i), new Message(MessageType.RESUME, entries.get(i).token));
+                }
+
+                long deadline = start + Config.SNAPSHOT_DRAIN_MS * 1000000L;
+                for (User user : resumable)
+                {
+                        while (user.get_queued() > 0 && !user.is_disconnected() && System.nanoTime() - deadline < 0)
+                        {
+                                try
                                 {
-                                        send_public_message(sender, cmd);
+                                        Thread.sleep(1);
                                 }
-                                else
+                                catch (InterruptedException ie)
                                 {
-                                        send_error_message(sender, "Unknown command.");
+                                        return;
                                 }
-
-                        }
-                        else if (instruction.length() != 0)
-                        {
-                                send_public_message(sender, instruction.trim());
                         }
-
-
-                        sender.advance_buffer(instruction.length() + 1);
                 }
-                return true;
+                System.out.println("Drained " + resumable.size() + " users in "
+                                   + (System.nanoTime() - start) / 1000000 + " ms");
         }
 
         /**
-         * Helper function to send a message
+         * Close a connection with a client; only the first call does anything
          *
-         * @param sc
-         * @param message
-         * @throws IOException
+         * @param sender
          */
-        private static void
-        send_message (SocketChannel sc, Message message)
-        throws IOException
+        static void
+        close_client (User sender)
         {
-                sc.write(encoder.encode(CharBuffer.wrap(message.toString())));
+                if (!sender.disconnect())
+                {
+                        return;
+                }
+
+                for (Room room : sender.get_rooms())
+                {
+                        leave_room(sender, room);
+                        send_left_message(room, sender.get_nickname());
+                }
+
+                if (sender.get_nickname() != null)
+                {
+                        release_nickname(sender, sender.get_nickname());
+                }
+                if (sender.get_claiming() != null)
+                {
+                        // Given back to its owner, if it's granted, as the
+                        // answer comes
+                        users.unbind(sender.get_id(), sender.get_claiming());
+                }
+                if (sender.get_id() >= 0)
+                {
+                        users.remove(sender.get_id());
+                }
+
+                // Anything still queued, such as BYE, goes out before the socket closes
+                sender.get_worker().close(sender);
+                Metrics.connections_closed.increment();
         }
 
         /**
-         * Helper function to send a message
-         *
-         * @param receiver
-         * @param sender
-         * @param message_value
-         * @throws IOException
+         * @return TimingWheel for the idle timeouts of a worker's users, or
+         * null if they're off
          */
-        private static void
-        send_message (User receiver, String sender, String message_value)
-        throws IOException
+        static TimingWheel
+        new_idle_wheel ()
         {
-                Message message = new Message(MessageType.MESSAGE, sender, message_value);
-                send_message(receiver.get_socket(), message);
+                if (Config.IDLE_TIMEOUT_MS <= 0)
+                {
+                        return null;
+                }
+                return new TimingWheel(Config.IDLE_TICK_MS * 1000000L, IDLE_NANOS + PONG_NANOS);
         }
 
         /**
-         * Send error message
-         *
-         * @param receiver
-         * @param error_message
-         * @throws IOException
+         * @param user just connected
+         * @return long when its idle timeout first comes due
          */
-        private static void
-        send_error_message (User receiver, String error_message)
-        throws IOException
+        static long
+        idle_deadline (User user)
         {
-                Message message = new Message(MessageType.ERROR, error_message);
-                send_message(receiver.get_socket(), message);
+                return user.get_last_read() + IDLE_NANOS;
         }
 
         /**
-         * Send ok message
+         * Handle an idle timeout coming due: nothing if the user was heard
+         * from since, a PING if not, and eviction if that went unanswered
          *
-         * @param receiver
-         * @throws IOException
+         * @param user
+         * @param now
+         * @return long when it comes due again, or -1 if the caller must
+         * close the connection
          */
-        private static void
-        send_ok_message (User receiver)
-        throws IOException
+        static long
+        check_idle (User user, long now)
         {
-                Message message = new Message(MessageType.OK);
-                send_message(receiver.get_socket(), message);
+                if (user.is_disconnected())
+                {
+                        return -1;
+                }
+
+                long heard = user.get_last_read();
+                if (now - heard < IDLE_NANOS)
+                {
+                        user.set_pinged(false);
+                        return heard + IDLE_NANOS;
+                }
+
+                if (!user.is_pinged())
+                {
+                        user.set_pinged(true);
+                        Metrics.idle_pings.increment();
+                        send_message(user, new Message(MessageType.PING));
+                        return now + PONG_NANOS;
+                }
+
+                Metrics.idle_evictions.increment();
+                System.out.println("Disconnecting idle client " + user.get_socket().socket());
+                return -1;
         }
 
         /**
-         * Send newnick message
+         * Read a message from the socket and process it
          *
-         * @param receiver
-         * @param old_nickname
-         * @param new_nickname
+         * @param worker
+         * @param sender
+         * @return boolean false if connection closed, true otherwise
          * @throws IOException
          */
-        private static void
-        send_nickname_message (User receiver, String old_nickname, String new_nickname)
+        static boolean
+        processInput (Worker worker, User sender)
         throws IOException
         {
-                Message message = new Message(MessageType.NEW_NICKNAME, old_nickname, new_nickname);
-                send_message(receiver.get_socket(), message);
+                ByteBuffer buffer = worker.get_buffer();
+
+                // Read the message to the buffer
+                buffer.clear();
+                int read = sender.get_socket().read(buffer);
+                buffer.flip();
+
+                // If the peer closed, close the connection
+                if (read < 0)
+                {
+                        return false;
+                }
+                Metrics.bytes_in.add(read);
+
+                if (sender.is_binary())
+                {
+                        process_frames(worker, sender, buffer);
+                }
+                else
+                {
+                        process_lines(worker, sender, buffer);
+                }
+                end_read(worker, sender);
+                return true;
         }
 
         /**
-         * Send joined message
+         * Answer the lines of a read dropped for going over a rate limit,
+         * and stop reading from a client that keeps at it
          *
-         * @param receiver
-         * @param join_nickname
+         * @param worker
+         * @param sender
          * @throws IOException
          */
         private static void
-        send_joined_message (User receiver, String join_nickname)
+        end_read (Worker worker, User sender)
         throws IOException
         {
-                Message message = new Message(MessageType.JOINED, join_nickname);
-                send_message(receiver.get_socket(), message);
+                int strikes = sender.end_read();
+                if (strikes == 0 || sender.is_disconnected())
+                {
+                        return;
+                }
+
+                send_error_message(sender, "Slow down.");
+                if (strikes >= Config.LIMIT_STRIKES)
+                {
+                        Metrics.limited_suspensions.increment();
+                        worker.suspend_reads(sender, System.nanoTime() + Config.LIMIT_PENALTY_MS * 1000000L);
+                }
         }
 
         /**
-         * Send left message
+         * Process the input held while a nickname was claimed, on the thread
+         * reading the user
          *
-         * @param receiver
-         * @param left_nickname
+         * @param worker
+         * @param sender
          * @throws IOException
          */
         private static void
-        send_left_message (User receiver, String left_nickname)
+        resume_input (Worker worker, User sender)
         throws IOException
         {
-                Message message = new Message(MessageType.LEFT, left_nickname);
-                send_message(receiver.get_socket(), message);
+                ByteBuffer held = sender.take_held_input();
+                if (held == null)
+                {
+                        return;
+                }
+
+                if (sender.is_binary())
+                {
+                        process_frames(worker, sender, held);
+                }
+                else
+                {
+                        process_lines(worker, sender, held);
+                }
+                end_read(worker, sender);
         }
 
         /**
-         * Send bye message
+         * Process every complete line of the text protocol in the input
          *
-         * @param receiver
+         * @param worker
+         * @param sender
+         * @param buffer
          * @throws IOException
          */
         private static void
-        send_bye_message (User receiver)
+        process_lines (Worker worker, User sender, ByteBuffer buffer)
         throws IOException
         {
-                Message message = new Message(MessageType.BYE);
-                send_message(receiver.get_socket(), message);
-        }
+                // Process every complete instruction; the framer keeps the rest
+                LineFramer framer = sender.get_framer();
+                int[] tokens = worker.get_tokens();
+                String instruction;
+                long parse_start = System.nanoTime();
 
-        /**
-         * Send private message
-         *
-         * @param receiver
-         * @param sender
-         * @param message_value
-         * @throws IOException
+                while ((instruction = framer.next_line(buffer, worker.get_line_bytes())) != null)
+                {
+                        if (framer.take_overflow())
+                        {
+                                Metrics.lines_too_long.increment();
+                                send_error_message(sender, "Line too long.");
+                        }
+
+                        // Dropped unparsed when over the rate limit
+                        if (!sender.take_line(parse_start))
+                        {
+                                continue;
+                        }
+
+                        if (instruction.startsWith("/"))
+                        {
+                                // The command is what follows the slash, trimmed
+                                int from = 1;
+                                int to = instruction.length();
+                                while (from < to && instruction.charAt(from) <= ' ')
+                                {
+                                        ++from;
+                                }
+                                while (to > from && instruction.charAt(to - 1) <= ' ')
+                                {
+                                        --to;
+                                }
+
+                                CommandType command = sender.is_multi_room()
+                                                      ? ROOM_COMMANDS.match(instruction, from, to, tokens)
+                                                      : null;
+                                if (command == null)
+                                {
+                                        command = COMMANDS.match(instruction, from, to, tokens);
+                                }
+                                if (command == null && sender.get_state() == State.INIT)
+                                {
+                                        command = RESUME_COMMANDS.match(instruction, from, to, tokens);
+                                }
+                                Metrics.parse_nanos.record(System.nanoTime() - parse_start);
+                                if (command == null)
+                                {
+                                        if (from < to && instruction.charAt(from) == '/')
+                                        {
+                                                Metrics.public_messages.increment();
+                                                send_public_message(sender, instruction.substring(from, to), parse_start);
+                                        }
+                                        else
+                                        {
+                                                Metrics.unknown_commands.increment();
+                                                send_error_message(sender, "Unknown command.");
+                                        }
+                                }
+                                else
+                                {
+                                        switch (command)
+                                        {
+                                                case NICK:
+                                                case JOIN:
+                                                case PROTO:
+                                                case RESUME:
+                                                case PART:
+                                                        run_command(sender, command, worker.get_slice().set(instruction, tokens[0], tokens[1]), null, parse_start);
+                                                        break;
+                                                case PRIVATE:
+                                                case SAY:
+                                                        run_command(
+                                                            sender,
+                                                            command,
+                                                            // Receiver, or room, looked up in place
+                                                            worker.get_slice().set(instruction, tokens[0], tokens[1]),
+                                                            // Message
+                                                            instruction.substring(tokens[2], tokens[3]),
+                                                            parse_start
+                                                        );
+                                                        break;
+                                                default:
+                                                        run_command(sender, command, null, null, parse_start);
+                                                        break;
+                                        }
+                                }
+                        }
+                        else if (instruction.length() != 0)
+                        {
+                                Metrics.parse_nanos.record(System.nanoTime() - parse_start);
+                                Metrics.public_messages.increment();
+                                send_public_message(sender, instruction.trim(), parse_start);
+                        }
+
+                        // Nothing more to do after /bye
+                        if (sender.is_disconnected())
+                        {
+                                return;
+                        }
+
+                        // The rest waits for the node owning a nickname to answer
+                        if (sender.is_claiming())
+                        {
+                                sender.hold_input(buffer);
+                                return;
+                        }
+
+                        // The rest of the input is in the protocol switched to
+                        if (sender.is_binary())
+                        {
+                                process_frames(worker, sender, buffer);
+                                return;
+                        }
+                        parse_start = System.nanoTime();
+                }
+
+                if (framer.take_overflow())
+                {
+                        Metrics.lines_too_long.increment();
+                        send_error_message(sender, "Line too long.");
+                }
+        }
+
+        /**
+         * Process every complete frame of the binary protocol in the input
+         *
+         * @param worker
+         * @param sender
+         * @param buffer
+         * @throws IOException
+         */
+        private static void
+        process_frames (Worker worker, User sender, ByteBuffer buffer)
+        throws IOException
+        {
+                BinaryFramer framer = sender.get_binary_framer();
+                byte[] scratch = worker.get_line_bytes();
+                ByteBuffer body;
+                long parse_start = System.nanoTime();
+
+                while ((body = framer.next_frame(buffer)) != null)
+                {
+                        if (framer.take_overflow())
+                        {
+                                Metrics.lines_too_long.increment();
+                                send_error_message(sender, "Frame too long.");
+                        }
+
+                        // Dropped undecoded when over the rate limit
+                        if (!sender.take_line(parse_start))
+                        {
+                                continue;
+                        }
+
+                        try
+                        {
+                                process_frame(sender, body, scratch, parse_start);
+                        }
+                        catch (BufferUnderflowException | IllegalArgumentException e)
+                        {
+                                Metrics.unknown_commands.increment();
+                                send_error_message(sender, "Malformed frame.");
+                        }
+
+                        if (sender.is_disconnected())
+                        {
+                                return;
+                        }
+                        if (sender.is_claiming())
+                        {
+                                sender.hold_input(buffer);
+                                return;
+                        }
+                        parse_start = System.nanoTime();
+                }
+
+                if (framer.take_overflow())
+                {
+                        Metrics.lines_too_long.increment();
+                        send_error_message(sender, "Frame too long.");
+                }
+        }
+
+        /**
+         * Decode a frame of the binary protocol and run it
+         *
+         * @param sender
+         * @param body
+         * @param scratch
+         * @param parse_start
+         * @throws IOException
+         */
+        private static void
+        process_frame (User sender, ByteBuffer body, byte[] scratch, long parse_start)
+        throws IOException
+        {
+                int type = body.get() & 0xff;
+                if (type == MessageType.MESSAGE.ordinal())
+                {
+                        String text = BinaryProtocol.get_text(body, scratch);
+                        Metrics.parse_nanos.record(System.nanoTime() - parse_start);
+                        Metrics.public_messages.increment();
+                        if (text.length() != 0)
+                        {
+                                send_public_message(sender, text, parse_start);
+                        }
+                        return;
+                }
+
+                int index = type - BinaryProtocol.COMMAND;
+                if (index < 0 || index >= COMMAND_TYPES.length)
+                {
+                        Metrics.parse_nanos.record(System.nanoTime() - parse_start);
+                        Metrics.unknown_commands.increment();
+                        send_error_message(sender, "Unknown command.");
+                        return;
+                }
+
+                CommandType command = COMMAND_TYPES[index];
+                String first = null;
+                String second = null;
+                switch (command)
+                {
+                        case NICK:
+                        case JOIN:
+                        case PROTO:
+                        case RESUME:
+                        case PART:
+                                first = BinaryProtocol.get_token(body, scratch);
+                                break;
+                        case PRIVATE:
+                        case SAY:
+                                first = BinaryProtocol.get_token(body, scratch);
+                                second = BinaryProtocol.get_text(body, scratch);
+                                break;
+                        default:
+                                break;
+                }
+                Metrics.parse_nanos.record(System.nanoTime() - parse_start);
+                run_command(sender, command, first, second, parse_start);
+        }
+
+        /**
+         * Run a command, in whichever protocol it came
+         *
+         * @param sender
+         * @param command
+         * @param first its first argument, if it takes one; only valid
+         * until the command is done
+         * @param second its second argument, if it takes two
+         * @param now
+         * @throws IOException
+         */
+        private static void
+        run_command (User sender, CommandType command, CharSequence first, String second, long now)
+        throws IOException
+        {
+                // Only known to those that asked to be in several rooms
+                if ((command == CommandType.SAY || command == CommandType.PART) && !sender.is_multi_room())
+                {
+                        Metrics.unknown_commands.increment();
+                        send_error_message(sender, "Unknown command.");
+                        return;
+                }
+
+                if (!sender.take_command(command, now))
+                {
+                        return;
+                }
+
+                Metrics.commands[command.ordinal()].increment();
+                if (draining && command != CommandType.PRIVATE && command != CommandType.SAY
+                    && command != CommandType.PONG && command != CommandType.BYE)
+                {
+                        // The snapshot's taken, so changes would be lost
+                        send_error_message(sender, "Server restarting.");
+                        return;
+                }
+                switch (command)
+                {
+                        case NICK:
+                                send_nickname_command(sender, first.toString());
+                                break;
+                        case JOIN:
+                                send_join_command(sender, first);
+                                break;
+                        case LEAVE:
+                                send_leave_command(sender);
+                                break;
+                        case BYE:
+                                send_bye_command(sender);
+                                break;
+                        case PRIVATE:
+                                send_private_command(sender, first, second);
+                                break;
+                        case PROTO:
+                                send_proto_command(sender, first.toString());
+                                break;
+                        case PONG:
+                                // Being heard from is all it's for
+                                break;
+                        case RESUME:
+                                send_resume_command(sender, first.toString());
+                                break;
+                        case SAY:
+                                send_say_command(sender, first, second, now);
+                                break;
+                        case PART:
+                                send_part_command(sender, first);
+                                break;
+                }
+        }
+
+        /**
+         * Serialize a message into a pooled direct buffer, which recipients
+         * share through views
+         *
+         * @param message
+         * @return Frame holding one reference, for the caller
+         */
+        static Frame
+        encode (Message message)
+        {
+                String text = message.toString();
+                CharsetEncoder encoder = encoders.get();
+                ByteBuffer data = BufferPool.lease((int) (text.length() * encoder.maxBytesPerChar()));
+
+                encoder.reset();
+                encoder.encode(CharBuffer.wrap(text), data, true);
+                encoder.flush(data);
+                data.flip();
+                return new Frame(data);
+        }
+
+        /**
+         * Serialize a message in the binary protocol into a pooled direct
+         * buffer
+         *
+         * @param message
+         * @param interned whether nicknames in use, and room names, may go by
+         * ID; only for
+         * frames that go through User.enqueue, which defines them
+         * @return Frame holding one reference, for the caller
+         */
+        static Frame
+        encode_binary (Message message, boolean interned)
+        {
+                CharsetEncoder encoder = encoders.get();
+                ByteBuffer data = BufferPool.lease(message.binary_capacity(encoder.maxBytesPerChar()));
+
+                Name[] used = new Name[3];
+                int count = message.to_binary(data, encoder,
+                                              interned ? INTERNED : INLINE,
+                                              interned ? INTERNED_ROOMS : INLINE,
+                                              used);
+                return new Frame(data, count == 0 ? null : Arrays.copyOf(used, count), false);
+        }
+
+        /**
+         * Queue a frame on the receiver, whose own reactor writes it out
+         *
+         * @param receiver
+         * @param frame one reference, handed over to the receiver
+         * @param now System.nanoTime() of the send
+         */
+        private static void
+        deliver (User receiver, Frame frame, long now)
+        {
+                if (receiver.enqueue(frame, now))
+                {
+                        receiver.get_worker().schedule_flush(receiver);
+                }
+        }
+
+        /**
+         * Helper function to send a message
+         *
+         * @param receiver
+         * @param message
+         */
+        private static void
+        send_message (User receiver, Message message)
+        {
+                Frame frame = receiver.is_binary() ? encode_binary(message, true) : encode(message);
+                deliver(receiver, frame, System.nanoTime());
+        }
+
+        /**
+         * Send a message to everyone in a room, encoding it only once per
+         * protocol in use there, and once more for members in several rooms,
+         * tagged with the room
+         *
+         * @param room
+         * @param message
+         * @param except user left out, or null
+         */
+        static void
+        broadcast (Room room, Message message, User except)
+        {
+                User[] users = room.get_users();
+                if (except == null && has_deflate(users))
+                {
+                        // Compressed once in the room's context, which the
+                        // members must get frames in as they were compressed
+                        synchronized (room)
+                        {
+                                fan_out(room, room.get_users(), message, null, true);
+                        }
+                        return;
+                }
+                fan_out(room, users, message, except, false);
+        }
+
+        /**
+         * @param users
+         * @return boolean true if any of them takes frames compressed in the
+         * room's context
+         */
+        private static boolean
+        has_deflate (User[] users)
+        {
+                for (User user : users)
+                {
+                        if (user.is_deflate() && !user.is_multi_room())
+                        {
+                                return true;
+                        }
+                }
+                return false;
+        }
+
+        /**
+         * @param room
+         * @param users
+         * @param message
+         * @param except user left out, or null
+         * @param compress compress in the room's context, holding the room
+         */
+        private static void
+        fan_out (Room room, User[] users, Message message, User except, boolean compress)
+        {
+                // Members only switch protocol, or to several rooms, before
+                // they can join
+                int text = 0;
+                int binary = 0;
+                int deflate = 0;
+                int tagged_text = 0;
+                int tagged_binary = 0;
+                for (User user : users)
+                {
+                        if (user == except)
+                        {
+                                continue;
+                        }
+                        if (user.is_multi_room())
+                        {
+                                if (user.is_binary())
+                                {
+                                        ++tagged_binary;
+                                }
+                                else
+                                {
+                                        ++tagged_text;
+                                }
+                        }
+                        else if (user.is_deflate())
+                        {
+                                ++deflate;
+                        }
+                        else if (user.is_binary())
+                        {
+                                ++binary;
+                        }
+                        else
+                        {
+                                ++text;
+                        }
+                }
+
+                // One reference per recipient up front, rather than one atomic
+                // add each; the creator's goes to the last one
+                Frame text_frame = null;
+                Frame binary_frame = null;
+                Frame room_frame = null;
+                if (text > 0)
+                {
+                        text_frame = encode(message);
+                        text_frame.retain(text - 1);
+                }
+                if (binary + deflate > 0)
+                {
+                        binary_frame = encode_binary(message, true);
+                        // Otherwise compressed by each member on its own, if at all
+                        int plain = binary + deflate;
+                        if (compress && deflate > 0 && binary_frame.length() >= Config.DEFLATE_MIN)
+                        {
+                                room_frame = room.compress(binary_frame);
+                                room_frame.retain(deflate - 1);
+                                plain = binary;
+                        }
+
+                        if (plain > 0)
+                        {
+                                binary_frame.retain(plain - 1);
+                        }
+                        else
+                        {
+                                binary_frame.release();
+                        }
+                }
+
+                // Compressed by each member on its own, if at all, since a
+                // client keeps only one room context
+                Frame tagged_text_frame = null;
+                Frame tagged_binary_frame = null;
+                if (tagged_text + tagged_binary > 0)
+                {
+                        Message tagged = message.in(room.get_name());
+                        if (tagged_text > 0)
+                        {
+                                tagged_text_frame = encode(tagged);
+                                tagged_text_frame.retain(tagged_text - 1);
+                        }
+                        if (tagged_binary > 0)
+                        {
+                                tagged_binary_frame = encode_binary(tagged, true);
+                                tagged_binary_frame.retain(tagged_binary - 1);
+                        }
+                }
+
+                long now = System.nanoTime();
+                for (User user : users)
+                {
+                        if (user == except)
+                        {
+                                continue;
+                        }
+                        if (user.is_multi_room())
+                        {
+                                deliver(user, user.is_binary() ? tagged_binary_frame : tagged_text_frame, now);
+                        }
+                        else if (room_frame != null && user.is_deflate())
+                        {
+                                deliver(user, room_frame, now);
+                        }
+                        else
+                        {
+                                deliver(user, user.is_binary() ? binary_frame : text_frame, now);
+                        }
+                }
+
+                Metrics.broadcasts.increment();
+                Metrics.fanout.record(text + binary + deflate + tagged_text + tagged_binary);
+        }
+
+        /**
+         * Helper function to send a message to a room
+         *
+         * @param room
+         * @param sender
+         * @param message_value
+         */
+        private static void
+        send_message (Room room, String sender, String message_value)
+        {
+                History.append(room, sender, message_value);
+                broadcast(room, new Message(MessageType.MESSAGE, sender, message_value), null);
+                Cluster.publish(room.get_name(), MessageType.MESSAGE, sender, message_value);
+        }
+
+        /**
+         * Send error message
+         *
+         * @param receiver
+         * @param error_message
+         * @throws IOException
+         */
+        private static void
+        send_error_message (User receiver, String error_message)
+        throws IOException
+        {
+                Message message = new Message(MessageType.ERROR, error_message);
+                send_message(receiver, message);
+        }
+
+        /**
+         * Send ok message
+         *
+         * @param receiver
+         * @throws IOException
+         */
+        private static void
+        send_ok_message (User receiver)
+        throws IOException
+        {
+                Message message = new Message(MessageType.OK);
+                send_message(receiver, message);
+        }
+
+        /**
+         * Send newnick message to a room
+         *
+         * @param room
+         * @param sender
+         * @param old_nickname
+         * @param new_nickname
+         */
+        private static void
+        send_nickname_message (Room room, User sender, String old_nickname, String new_nickname)
+        {
+                Message message = new Message(MessageType.NEW_NICKNAME, old_nickname, new_nickname);
+                broadcast(room, message, sender);
+                Cluster.publish(room.get_name(), MessageType.NEW_NICKNAME, old_nickname, new_nickname);
+        }
+
+        /**
+         * Send joined message to a room
+         *
+         * @param room
+         * @param join_nickname
+         */
+        private static void
+        send_joined_message (Room room, String join_nickname)
+        {
+                Message message = new Message(MessageType.JOINED, join_nickname);
+                broadcast(room, message, null);
+                Cluster.publish(room.get_name(), MessageType.JOINED, join_nickname, "");
+        }
+
+        /**
+         * Send left message to a room
+         *
+         * @param room
+         * @param left_nickname
+         */
+        private static void
+        send_left_message (Room room, String left_nickname)
+        {
+                Message message = new Message(MessageType.LEFT, left_nickname);
+                broadcast(room, message, null);
+                Cluster.publish(room.get_name(), MessageType.LEFT, left_nickname, "");
+        }
+
+        /**
+         * Send bye message
+         *
+         * @param receiver
+         * @throws IOException
+         */
+        private static void
+        send_bye_message (User receiver)
+        throws IOException
+        {
+                Message message = new Message(MessageType.BYE);
+                send_message(receiver, message);
+        }
+
+        /**
+         * Send private message
+         *
+         * @param receiver
+         * @param sender
+         * @param message_value
+         * @throws IOException
+         */
+        private static void
+        send_private_message (User receiver, String sender, String message_value)
+        throws IOException
+        {
+                Message message = new Message(MessageType.PRIVATE, sender, message_value);
+                send_message(receiver, message);
+        }
+
+        /**
+         * Send simple message
+         *
+         * @param sender
+         * @param message_value
+         * @param now
+         * @throws IOException
+         */
+        private static void
+        send_public_message (User sender, String message_value, long now)
+        throws IOException
+        {
+                Room[] joined = sender.get_rooms();
+                if (joined.length == 0)
+                {
+                        send_error_message(sender, "You are not in a room.");
+                }
+                else if (joined.length > 1)
+                {
+                        send_error_message(sender, "Say which room with /say.");
+                }
+                else
+                {
+                        say(sender, joined[0], message_value, now);
+                }
+        }
+
+        /**
+         * Send a message to a room the sender is in, unless it's busy
+         *
+         * @param sender
+         * @param room
+         * @param message_value
+         * @param now
+         * @throws IOException
+         */
+        private static void
+        say (User sender, Room room, String message_value, long now)
+        throws IOException
+        {
+                if (!room.take_message(now))
+                {
+                        // Busy with everyone's messages, not just ours
+                        Metrics.limited_room_messages.increment();
+                        send_error_message(sender, "Room is busy.");
+                        return;
+                }
+                send_message(room, sender.get_nickname(), message_value);
+        }
+
+        /**
+         * Claim a nickname for a user, here and, in a cluster, from the node
+         * owning it; when that's another node, reads from the user are held
+         * until it answers, so the replies to what it sends stay in order
+         *
+         * @param sender
+         * @param nick
+         * @param then run with false if someone else has it, right away or
+         * once the owner answers
+         * @throws IOException
+         */
+        private static void
+        claim_nickname (User sender, String nick, Claimed then)
+        throws IOException
+        {
+                // Registered on the first claim, keeping its ID from then on
+                if (sender.get_id() < 0)
+                {
+                        sender.set_id(users.add(sender));
+                }
+
+                if (!users.bind(sender.get_id(), nick))
+                {
+                        then.claimed(false);
+                        return;
+                }
+
+                CompletableFuture<Boolean> answer = Cluster.claim(nick);
+                if (answer.isDone())
+                {
+                        claimed(sender, nick, answer.join(), then);
+                        return;
+                }
+
+                Worker worker = sender.get_worker();
+                sender.begin_claim(nick);
+                worker.hold_reads(sender);
+                answer.thenAccept(granted -> worker.release_reads(sender, () -> {
+                        sender.end_claim();
+                        if (sender.is_disconnected())
+                        {
+                                // Unbound here as it closed
+                                if (granted)
+                                {
+                                        Cluster.release(nick);
+                                }
+                                return;
+                        }
+
+                        try
+                        {
+                                claimed(sender, nick, granted, then);
+                                resume_input(worker, sender);
+                        }
+                        catch (IOException ie)
+                        {
+                                close_client(sender);
+                        }
+                }));
+        }
+
+        /**
+         * @param sender
+         * @param nick
+         * @param granted
+         * @param then
+         * @throws IOException
+         */
+        private static void
+        claimed (User sender, String nick, boolean granted, Claimed then)
+        throws IOException
+        {
+                if (!granted)
+                {
+                        users.unbind(sender.get_id(), nick);
+                }
+                then.claimed(granted);
+        }
+
+        /**
+         * @param sender
+         * @param nick no longer the user's
+         */
+        private static void
+        release_nickname (User sender, String nick)
+        {
+                users.unbind(sender.get_id(), nick);
+                Cluster.release(nick);
+        }
+
+        /**
+         * Deliver the mail that waited for a nickname just taken; in a
+         * cluster, the nickname's owner has it
+         *
+         * @param nick
          */
         private static void
-        send_private_message (User receiver, String sender, String message_value)
-        throws IOException
+        take_mail (String nick)
         {
-                Message message = new Message(MessageType.PRIVATE, sender, message_value);
-                send_message(receiver.get_socket(), message);
+                if (Cluster.is_enabled())
+                {
+                        Cluster.take_mail(nick);
+                }
+                else
+                {
+                        Mailbox.take(nick, mail -> deliver_mail(nick, mail));
+                }
         }
 
         /**
-         * Send simple message
+         * Make a room as it's first joined, with the registry locked
+         *
+         * @param id
+         * @param name
+         * @return Room
+         */
+        private static Room
+        new_room (int id, String name)
+        {
+                Cluster.subscribe(name);
+                return new Room(id, name, History.open(name));
+        }
+
+        /**
+         * @param action called with each nickname in use here
+         */
+        static void
+        each_nickname (Consumer<String> action)
+        {
+                users.for_each(user -> {
+                        String nickname = user.get_nickname();
+                        if (nickname != null)
+                        {
+                                action.accept(nickname);
+                        }
+                });
+        }
+
+        /**
+         * @param action called with the name of each room with members here
+         */
+        static void
+        each_room (Consumer<String> action)
+        {
+                rooms.for_each(room -> action.accept(room.get_name()));
+        }
+
+        /**
+         * Send the members here a room's message from another node
+         *
+         * @param room_name
+         * @param type
+         * @param token1
+         * @param token2
+         */
+        static void
+        deliver_room (String room_name, MessageType type, String token1, String token2)
+        {
+                Room room = rooms.get(room_name);
+                if (room == null)
+                {
+                        return;
+                }
+
+                if (type == MessageType.MESSAGE)
+                {
+                        History.append(room, token1, token2);
+                }
+                broadcast(room, new Message(type, token1, token2), null);
+        }
+
+        /**
+         * Send a user here /priv from another node
          *
+         * @param receiver
          * @param sender
          * @param message_value
-         * @throws IOException
          */
-        private static void
-        send_public_message (User sender, String message_value)
-        throws IOException
+        static void
+        deliver_private (String receiver, String sender, String message_value)
+        {
+                User user = users.get(receiver);
+                if (user != null)
+                {
+                        send_message(user, new Message(MessageType.PRIVATE, sender, message_value));
+                }
+        }
+
+        /**
+         * Send a user the mail that waited for its nickname, queued at once
+         * so it goes out in as few writes as it fits
+         *
+         * @param receiver
+         * @param mail
+         * @return boolean false if the user is gone
+         */
+        static boolean
+        deliver_mail (String receiver, List<Mailbox.Mail> mail)
         {
-                if (sender.get_state() == State.INSIDE)
+                User user = users.get(receiver);
+                if (user == null || user.is_disconnected())
                 {
-                        Room sender_room = sender.get_room();
-                        TreeSet<User> user_list = sender_room.get_users();
+                        return false;
+                }
 
-                        for (User user : user_list)
+                long now = System.nanoTime();
+                boolean flush = false;
+                synchronized (user)
+                {
+                        for (Mailbox.Mail letter : mail)
                         {
-                                send_message(user, sender.get_nickname(), message_value);
+                                Message message = new Message(MessageType.PRIVATE, letter.sender, letter.text);
+                                flush |= user.enqueue(user.is_binary() ? encode_binary(message, true) : encode(message), now);
                         }
                 }
-                else
+                if (flush)
                 {
-                        send_error_message(sender, "You are not in a room.");
+                        user.get_worker().schedule_flush(user);
+                }
+                return true;
+        }
+
+        /**
+         * Answer /priv sent to a user on another node
+         *
+         * @param sender
+         * @param receiver
+         * @param delivered
+         */
+        static void
+        private_result (String sender, String receiver, boolean delivered)
+        {
+                User user = users.get(sender);
+                if (user == null)
+                {
+                        return;
                 }
+                send_message(user, delivered
+                                   ? new Message(MessageType.OK)
+                                   : new Message(MessageType.ERROR, receiver + ": No such nickname online."));
         }
 
         /**
@@ -463,42 +1633,73 @@ ChatServer
         send_nickname_command (User sender, String nick)
         throws IOException
         {
-                if (
-                        // Allow to change to the current nick
-                        // Only compare if the user already has a nickname
-                        ((sender.get_state() != State.INIT)
-                         && sender.get_nickname().equals(nick))
-                        || // Don't allow to set a nickname already in use
-                        !nickname_user.containsKey(nick)
-                   )
-                {
-                        if (sender.get_state() == State.INIT)
-                        {
-                                sender.set_state(State.OUTSIDE);
-                        }
-
-                        if (sender.get_state() == State.INSIDE)
-                        {
-                                Room sender_room = sender.get_room();
-                                TreeSet<User> user_list = sender_room.get_users();
+                // Allow to change to the current nick
+                // Only compare if the user already has a nickname
+                boolean same_nick = (sender.get_state() != State.INIT)
+                                    && sender.get_nickname().equals(nick);
 
-                                for (User user : user_list)
+                if (same_nick)
+                {
+                        change_nickname(sender, nick, true);
+                }
+                // Don't allow to set a nickname already in use, or held for
+                // a user resuming after a restart, claiming it atomically
+                // against the other reactors
+                else if (Snapshot.is_reserved(nick))
+                {
+                        send_error_message(sender, "There already is a user with nick " + nick);
+                }
+                else
+                {
+                        claim_nickname(sender, nick, granted -> {
+                                if (granted)
                                 {
-                                        if (user != sender)
-                                        {
-                                                send_nickname_message(user, sender.get_nickname(), nick);
-                                        }
+                                        change_nickname(sender, nick, false);
                                 }
-                        }
+                                else
+                                {
+                                        send_error_message(sender, "There already is a user with nick " + nick);
+                                }
+                        });
+                }
+        }
 
-                        nickname_user.remove(sender.get_nickname());
-                        nickname_user.put(nick, sender);
-                        send_ok_message(sender);
-                        sender.set_nickname(nick);
+        /**
+         * Give a user the nickname it has claimed
+         *
+         * @param sender
+         * @param nick
+         * @param same_nick true if it's the one it has
+         * @throws IOException
+         */
+        private static void
+        change_nickname (User sender, String nick, boolean same_nick)
+        throws IOException
+        {
+                if (!same_nick)
+                {
+                        sender.set_name(new Name(nick));
                 }
-                else
+
+                if (sender.get_state() == State.INIT)
                 {
-                        send_error_message(sender, "There already is a user with nick " + nick);
+                        sender.set_state(State.OUTSIDE);
+                }
+
+                for (Room room : sender.get_rooms())
+                {
+                        send_nickname_message(room, sender, sender.get_nickname(), nick);
+                }
+
+                if (!same_nick && sender.get_nickname() != null)
+                {
+                        release_nickname(sender, sender.get_nickname());
+                }
+                send_ok_message(sender);
+                sender.set_nickname(nick);
+                if (!same_nick)
+                {
+                        take_mail(nick);
                 }
         }
 
@@ -510,7 +1711,7 @@ ChatServer
          * @throws IOException
          */
         private static void
-        send_join_command (User sender, String room_name)
+        send_join_command (User sender, CharSequence room_name)
         throws IOException
         {
                 if (sender.get_state() == State.INIT)
@@ -521,34 +1722,62 @@ ChatServer
                 {
                         send_error_message(sender, "You already are in that room.");
                 }*/
+                else if (sender.is_multi_room() && sender.find_room(room_name) != null)
+                {
+                        send_error_message(sender, "You already are in that room.");
+                }
+                else if (sender.is_multi_room() && sender.get_rooms().length >= Config.MAX_ROOMS)
+                {
+                        send_error_message(sender, "Too many rooms.");
+                }
                 else
                 {
-                        // If already in a room, leave it first
-                        if (sender.get_state() == State.INSIDE)
+                        // If already in a room, leave it first, unless the
+                        // user may be in several
+                        if (sender.get_state() == State.INSIDE && !sender.is_multi_room())
                         {
                                 send_leave_command(sender);
                         }
 
-                        // If room doesn't exist
-                        if (!nickname_room.containsKey(room_name))
-                        {
-                                nickname_room.put(room_name, new Room(room_name));
-                        }
+                        Room new_room = join_room(sender, room_name);
 
                         // Notify
-                        Room new_room = nickname_room.get(room_name);
-                        TreeSet<User> current_room_user_list = new_room.get_users();
-                        new_room.join_user(sender);
+                        send_joined_message(new_room, sender.get_nickname());
+
+                        send_ok_message(sender);
+                        sender.add_room(new_room);
+
+                        // What was said before, read off the reactor
+                        History.replay(sender, new_room);
+                }
+        }
 
-                        for (User user : current_room_user_list)
+        /**
+         * Add a user to a room, creating the room if it doesn't exist
+         *
+         * @param sender
+         * @param room_name
+         * @return Room
+         */
+        private static Room
+        join_room (User sender, CharSequence room_name)
+        {
+                // One closed by a concurrent leave is about to be dropped,
+                // so look again until it's gone
+                Room room = rooms.get(room_name);
+                while (room == null || !room.join_user(sender))
+                {
+                        if (room != null)
                         {
-                                send_joined_message(user, sender.get_nickname());
+                                Thread.onSpinWait();
+                        }
+                        room = rooms.get(room_name);
+                        if (room == null)
+                        {
+                                room = rooms.get_or_add(room_name.toString(), NEW_ROOM);
                         }
-
-                        send_ok_message(sender);
-                        sender.set_room(new_room);
-                        sender.set_state(State.INSIDE);
                 }
+                return room;
         }
 
         /**
@@ -567,39 +1796,216 @@ ChatServer
                 }
                 else
                 {
-                        Room room = sender.get_room();
-                        room.left_user(sender);
-                        TreeSet<User> user_list = room.get_users();
-
-                        for (User user : user_list)
+                        // Every room, for a user in several
+                        for (Room room : sender.get_rooms())
                         {
-                                send_left_message(user, sender.get_nickname());
+                                leave_room(sender, room);
+                                send_left_message(room, sender.get_nickname());
                         }
 
-                        if (user_list.size() == 0)
-                        {
-                                nickname_room.remove(room.get_name());
-                        }
+                        send_ok_message(sender);
+                }
+        }
+
+        /**
+         * Send part command, leaving one of the rooms the user is in
+         *
+         * @param sender
+         * @param room_name
+         * @throws IOException
+         */
+        private static void
+        send_part_command (User sender, CharSequence room_name)
+        throws IOException
+        {
+                Room room = sender.find_room(room_name);
+                if (room == null)
+                {
+                        send_error_message(sender, "You are not in that room.");
+                }
+                else
+                {
+                        leave_room(sender, room);
+                        send_left_message(room, sender.get_nickname());
 
                         send_ok_message(sender);
-                        sender.set_state(State.OUTSIDE);
                 }
         }
 
+        /**
+         * Send say command, a message to one of the rooms the user is in
+         *
+         * @param sender
+         * @param room_name
+         * @param message_value
+         * @param now
+         * @throws IOException
+         */
+        private static void
+        send_say_command (User sender, CharSequence room_name, String message_value, long now)
+        throws IOException
+        {
+                Room room = sender.find_room(room_name);
+                if (room == null)
+                {
+                        send_error_message(sender, "You are not in that room.");
+                }
+                else
+                {
+                        Metrics.public_messages.increment();
+                        say(sender, room, message_value, now);
+                }
+        }
+
+        /**
+         * Remove a user from a room it's in, dropping the room once it is
+         * empty
+         *
+         * @param sender
+         * @param room
+         */
+        private static void
+        leave_room (User sender, Room room)
+        {
+                sender.remove_room(room);
+                if (room.left_user(sender))
+                {
+                        // Closed before it's dropped, so a room of the same
+                        // name can't open the log while this one has it
+                        if (room.get_history() != null)
+                        {
+                                History.close(room.get_history());
+                        }
+                        rooms.remove(room.get_name(), room.get_id());
+                        Cluster.unsubscribe(room.get_name());
+                }
+        }
 
         /**
          * Send bye command
          *
-         * @param key
          * @param sender
          * @throws IOException
          */
         private static void
-        send_bye_command (SelectionKey key, User sender)
+        send_bye_command (User sender)
         throws IOException
         {
                 send_bye_message(sender);
-                close_client(key, sender.get_socket());
+                close_client(sender);
+        }
+
+        /**
+         * Send proto command, switching to another protocol, or letting the
+         * user be in several rooms
+         *
+         * @param sender
+         * @param protocol
+         * @throws IOException
+         */
+        private static void
+        send_proto_command (User sender, String protocol)
+        throws IOException
+        {
+                boolean deflate = protocol.equals("deflate");
+                boolean multi_room = protocol.equals("rooms");
+                if (multi_room
+                    ? sender.is_multi_room()
+                    : !deflate && !protocol.equals("binary") || sender.is_binary())
+                {
+                        send_error_message(sender, "Unknown protocol.");
+                }
+                else if (sender.get_state() != State.INIT)
+                {
+                        send_error_message(sender, "Choose the protocol before the nickname.");
+                }
+                else if (multi_room)
+                {
+                        send_ok_message(sender);
+                        sender.set_multi_room();
+                }
+                else
+                {
+                        // Confirmed in the protocol asked from
+                        send_ok_message(sender);
+                        sender.set_binary(deflate);
+                }
+        }
+
+        /**
+         * Send resume command, taking back the nickname, and room, a user
+         * had before the server restarted
+         *
+         * @param sender
+         * @param token
+         * @throws IOException
+         */
+        private static void
+        send_resume_command (User sender, String token)
+        throws IOException
+        {
+                if (sender.get_state() != State.INIT)
+                {
+                        send_error_message(sender, "Resume before the nickname.");
+                        return;
+                }
+
+                Snapshot.Entry entry = Snapshot.find(token);
+                if (entry == null)
+                {
+                        send_error_message(sender, "Unknown resume token.");
+                        return;
+                }
+                claim_nickname(sender, entry.nickname, granted -> {
+                        if (granted)
+                        {
+                                resume(sender, entry);
+                        }
+                        else
+                        {
+                                send_error_message(sender, "There already is a user with nick " + entry.nickname);
+                        }
+                });
+        }
+
+        /**
+         * Give a user back what it had before the restart, once it has
+         * claimed its nickname
+         *
+         * @param sender
+         * @param entry
+         * @throws IOException
+         */
+        private static void
+        resume (User sender, Snapshot.Entry entry)
+        throws IOException
+        {
+                if (!Snapshot.take(entry))
+                {
+                        // Resumed on another connection meanwhile
+                        release_nickname(sender, entry.nickname);
+                        send_error_message(sender, "Unknown resume token.");
+                        return;
+                }
+
+                sender.set_name(new Name(entry.nickname));
+                sender.set_nickname(entry.nickname);
+                sender.set_state(State.OUTSIDE);
+                if (entry.multi_room)
+                {
+                        sender.set_multi_room();
+                }
+                Metrics.resumed.increment();
+
+                // Back where it was, without the history it already saw
+                for (String room_name : entry.rooms)
+                {
+                        Room room = join_room(sender, room_name);
+                        send_joined_message(room, entry.nickname);
+                        sender.add_room(room);
+                }
+                send_ok_message(sender);
+                take_mail(entry.nickname);
         }
 
         /**
@@ -611,7 +2017,7 @@ ChatServer
          * @throws IOException
          */
         private static void
-        send_private_command (User sender, String receiver, String message_value)
+        send_private_command (User sender, CharSequence receiver, String message_value)
         throws IOException
         {
                 if (sender.get_state() == State.INIT)
@@ -620,10 +2026,28 @@ ChatServer
                 }
                 else
                 {
-                        if (nickname_user.containsKey(receiver))
+                        User user = users.get(receiver);
+                        if (user != null)
                         {
                                 send_ok_message(sender);
-                                send_private_message(nickname_user.get(receiver), sender.get_nickname(), message_value);
+                                send_private_message(user, sender.get_nickname(), message_value);
+                        }
+                        else if (Cluster.is_enabled())
+                        {
+                                // Answered once the receiver's node is found
+                                Cluster.send_private(sender.get_nickname(), receiver.toString(), message_value);
+                        }
+                        else if (Mailbox.is_enabled())
+                        {
+                                // Kept until the nickname is next taken
+                                if (Mailbox.store(sender.get_nickname(), receiver.toString(), message_value))
+                                {
+                                        send_ok_message(sender);
+                                }
+                                else
+                                {
+                                        send_error_message(sender, receiver + ": Mailbox full.");
+                                }
                         }
                         else
                         {
@@ -0,0 +1,467 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A client's connection to the server, served by a thread of its own with
+ * non-blocking I/O: what's read is decoded as it arrives and handed to a
+ * listener, and lines sent from any thread are queued for that thread to
+ * write, so no caller ever blocks on the socket
+ *
+ * It switches to the protocol asked for, answers PINGs and, when the
+ * server hands it over to the one replacing it, reconnects and resumes.
+ * Nothing in it is Swing's, so tools can use it without a window.
+ */
+final class
+ClientEngine
+implements Runnable
+{
+        /**
+         * Gets what the server sends, on the engine's thread
+         */
+        interface
+        Listener
+        {
+                /**
+                 * @param message
+                 */
+                void received (Message message);
+        }
+
+        // Size of reads, and longest line or frame we take
+        private static final int BUFFER_SIZE = 16384;
+        private static final int MAX_FRAME_LENGTH = 1 << 20;
+
+        // How long to keep trying to reach a server that restarted
+        private static final int RECONNECT_DELAY_MS = 250;
+        private static final int RECONNECT_TIMEOUT_MS = 10000;
+
+        private final InetSocketAddress address;
+        private final String proto;
+        private final Listener listener;
+        private final Selector selector;
+
+        // Lines to send, from any thread
+        private final ConcurrentLinkedQueue<String> outbound = new ConcurrentLinkedQueue<>();
+        private volatile boolean closing = false;
+
+        // The rest is only used by the engine's thread
+        private SocketChannel channel;
+        private SelectionKey key;
+        private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+        private final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+        private final byte[] scratch = new byte[BUFFER_SIZE];
+        private LineFramer lines;
+        private BinaryFramer frames;
+        private FrameInflater inflater;
+        private Name[] names;
+
+        // What we send in, and receive in; lines wait until the switch is
+        // answered, and after it until we've resumed
+        private boolean binary;
+        private boolean binary_input;
+        private boolean ready;
+        private String resume_after_switch;
+
+        // Token the server gave us to take our nickname and room back with
+        private String resume_token;
+
+        /**
+         * Constructor
+         *
+         * @param address
+         * @param proto text, binary or deflate; falls back to text if the
+         * server refuses it
+         * @param listener
+         * @throws IOException
+         */
+        ClientEngine (InetSocketAddress address, String proto, Listener listener)
+        throws IOException
+        {
+                this.address = address;
+                this.proto = proto;
+                this.listener = listener;
+                this.selector = Selector.open();
+        }
+
+        /**
+         * Run a client without a window: lines read from standard input are
+         * sent, and messages received printed as they came, until either
+         * side closes
+         *
+         * @param args server_host server_port
+         * @throws IOException
+         */
+        public static void
+        main (String[] args)
+        throws IOException
+        {
+                ClientEngine engine = new ClientEngine(new InetSocketAddress(args[0], Integer.parseInt(args[1])),
+                                                       System.getProperty("chatclient.proto", "text"),
+                                                       message -> System.out.print(message));
+
+                Thread typing = new Thread(() -> {
+                        try
+                        {
+                                BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+                                String line;
+                                while ((line = in.readLine()) != null)
+                                {
+                                        engine.send(line);
+                                }
+                        }
+                        catch (IOException ie)
+                        {
+                                System.err.println("Error reading input: " + ie);
+                        }
+                        engine.close();
+                }, "input");
+                typing.setDaemon(true);
+                typing.start();
+
+                engine.run();
+        }
+
+        /**
+         * Queue a line, as typed, to be sent; from any thread
+         *
+         * @param line
+         */
+        public void
+        send (String line)
+        {
+                this.outbound.add(line);
+                this.selector.wakeup();
+        }
+
+        /**
+         * Close the connection once what's queued is written; from any
+         * thread
+         */
+        public void
+        close ()
+        {
+                this.closing = true;
+                this.selector.wakeup();
+        }
+
+        /**
+         * Connect and serve the connection, and the ones after it if the
+         * server restarts, until it's over
+         */
+        @Override
+        public void
+        run ()
+        {
+                if (!connect())
+                {
+                        System.err.println("Unable to connect to the server...");
+                        return;
+                }
+
+                String token = null;
+                while (true)
+                {
+                        begin(token);
+                        try
+                        {
+                                serve();
+                        }
+                        catch (IOException ie)
+                        {
+                                // Dropped rather than closed; the same to us
+                        }
+                        disconnect();
+
+                        token = this.resume_token;
+                        this.resume_token = null;
+                        if (this.closing || token == null || !reconnect())
+                        {
+                                break;
+                        }
+                }
+
+                try
+                {
+                        this.selector.close();
+                }
+                catch (IOException ie)
+                {
+                        // Done with it either way
+                }
+        }
+
+        /**
+         * @return boolean false if the server can't be reached
+         */
+        private boolean
+        connect ()
+        {
+                try
+                {
+                        this.channel = SocketChannel.open(this.address);
+                        this.channel.configureBlocking(false);
+                        this.key = this.channel.register(this.selector, SelectionKey.OP_READ);
+                        return true;
+                }
+                catch (IOException ie)
+                {
+                        disconnect();
+                        return false;
+                }
+        }
+
+        /**
+         * Connect again, giving up after a while
+         *
+         * @return boolean false if the server never came back
+         */
+        private boolean
+        reconnect ()
+        {
+                long deadline = System.currentTimeMillis() + RECONNECT_TIMEOUT_MS;
+                while (!this.closing && System.currentTimeMillis() < deadline)
+                {
+                        try
+                        {
+                                Thread.sleep(RECONNECT_DELAY_MS);
+                        }
+                        catch (InterruptedException ie)
+                        {
+                                return false;
+                        }
+                        if (connect())
+                        {
+                                return true;
+                        }
+                }
+                System.err.println("Unable to reconnect to the server...");
+                return false;
+        }
+
+        private void
+        disconnect ()
+        {
+                try
+                {
+                        if (this.channel != null)
+                        {
+                                this.channel.close();
+                        }
+                }
+                catch (IOException ie)
+                {
+                        // Gone already
+                }
+                this.writing.clear();
+        }
+
+        /**
+         * Start a connection afresh, asking for the protocol first
+         *
+         * @param token to resume with, or null
+         */
+        private void
+        begin (String token)
+        {
+                this.lines = new LineFramer(MAX_FRAME_LENGTH);
+                this.frames = new BinaryFramer(MAX_FRAME_LENGTH);
+                this.inflater = new FrameInflater(MAX_FRAME_LENGTH);
+                this.names = new Name[BinaryProtocol.NAME_SLOTS];
+
+                // The answer to the switch comes in text, then frames follow
+                this.binary = false;
+                this.binary_input = false;
+                this.ready = !this.proto.equals("binary") && !this.proto.equals("deflate");
+                if (!this.ready)
+                {
+                        queue("/proto " + this.proto);
+                        this.resume_after_switch = token;
+                }
+                else if (token != null)
+                {
+                        queue("/resume " + token);
+                }
+        }
+
+        /**
+         * Read and write until the connection closes
+         *
+         * @throws IOException
+         */
+        private void
+        serve ()
+        throws IOException
+        {
+                while (true)
+                {
+                        if (this.ready)
+                        {
+                                String line;
+                                while ((line = this.outbound.poll()) != null)
+                                {
+                                        queue(line);
+                                }
+                        }
+                        flush();
+
+                        if (this.closing && this.writing.isEmpty() && (!this.ready || this.outbound.isEmpty()))
+                        {
+                                return;
+                        }
+
+                        this.key.interestOps(this.writing.isEmpty()
+                                             ? SelectionKey.OP_READ
+                                             : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        this.selector.select();
+                        this.selector.selectedKeys().clear();
+
+                        if (this.key.isReadable() && !read())
+                        {
+                                return;
+                        }
+                }
+        }
+
+        /**
+         * Encode a line in the protocol we send in, to be written
+         *
+         * @param line
+         */
+        private void
+        queue (String line)
+        {
+                if (!this.binary)
+                {
+                        this.writing.add(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+                        return;
+                }
+
+                ByteBuffer frame = BinaryProtocol.encode_command(line);
+                if (frame == null)
+                {
+                        this.listener.received(new Message(MessageType.ERROR, "Unknown command."));
+                }
+                else if (frame.hasRemaining())
+                {
+                        this.writing.add(frame);
+                }
+        }
+
+        /**
+         * Write what the socket takes of what's queued
+         *
+         * @throws IOException
+         */
+        private void
+        flush ()
+        throws IOException
+        {
+                while (!this.writing.isEmpty())
+                {
+                        ByteBuffer buffer = this.writing.peek();
+                        this.channel.write(buffer);
+                        if (buffer.hasRemaining())
+                        {
+                                return;
+                        }
+                        this.writing.poll();
+                }
+        }
+
+        /**
+         * Decode what's there to read
+         *
+         * @return boolean false if the server closed the connection
+         * @throws IOException
+         */
+        private boolean
+        read ()
+        throws IOException
+        {
+                this.input.clear();
+                if (this.channel.read(this.input) < 0)
+                {
+                        return false;
+                }
+                this.input.flip();
+
+                String line;
+                while (!this.binary_input && (line = this.lines.next_line(this.input, this.scratch)) != null)
+                {
+                        line = line.trim();
+                        if (!this.ready)
+                        {
+                                switched(line.equals("OK"));
+                                continue;
+                        }
+                        received(Message.parse_string(line));
+                }
+
+                ByteBuffer body;
+                while (this.binary_input && (body = this.frames.next_frame(this.input)) != null)
+                {
+                        try
+                        {
+                                Message message = Message.parse_binary(this.inflater.unwrap(body), this.names, this.scratch);
+                                if (message != null)
+                                {
+                                        received(message);
+                                }
+                        }
+                        catch (RuntimeException re)
+                        {
+                                System.err.println("Malformed frame: " + re.getMessage());
+                        }
+                }
+                return true;
+        }
+
+        /**
+         * Take the answer to the protocol switch
+         *
+         * @param accepted
+         */
+        private void
+        switched (boolean accepted)
+        {
+                this.binary = accepted;
+                this.binary_input = accepted;
+                this.ready = true;
+                if (this.resume_after_switch != null)
+                {
+                        queue("/resume " + this.resume_after_switch);
+                        this.resume_after_switch = null;
+                }
+        }
+
+        /**
+         * Answer a message if the server is checking we're still there,
+         * or hand it to the listener
+         *
+         * @param message
+         */
+        private void
+        received (Message message)
+        {
+                if (message.get_type() == MessageType.PING)
+                {
+                        queue("/pong");
+                        return;
+                }
+                if (message.get_type() == MessageType.RESUME)
+                {
+                        // The token is all the wire form has after the type
+                        this.resume_token = message.toString().trim().substring("RESUME ".length());
+                }
+                this.listener.received(message);
+        }
+}
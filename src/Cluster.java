@@ -0,0 +1,1103 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cluster mode: several servers sharing nicknames and rooms over links
+ * between every two of them, one each way
+ *
+ * Each nickname is owned by one node, picked by a consistent hash over the
+ * nodes that are up, which keeps track of the node using it: a node claims
+ * a nickname from its owner before giving it to a user, and /priv to a user
+ * elsewhere goes through the owner of its nickname. Nodes tell each other
+ * which rooms they have members in, and send what's said in a room, and
+ * who joins and leaves it, only to the nodes with members there.
+ *
+ * Enabled by -Dchatserv.cluster.nodes=host:port,... and
+ * -Dchatserv.cluster.self=index.
+ *
+ * Frames on a link are those of the binary protocol, typed:
+ *   HELLO        varint node, first on every link
+ *   CLAIM        varint request, string nickname
+ *   CLAIMED      varint request, varint 1 if it's the claimer's now
+ *   HOLD         string nickname the sender has in use already
+ *   RELEASE      string nickname
+ *   SUBSCRIBE    string room
+ *   UNSUBSCRIBE  string room
+ *   ROOM         string room, varint MessageType, string, string
+ *   PRIVATE      string sender, string receiver, string text
+ *   DELIVER      string sender, string receiver, string text
+ *   RESULT       string sender, string receiver, varint 1 if delivered
+ *   TAKE         string nickname the sender was just granted
+ * PRIVATE goes to the receiver's owner, which sends DELIVER on to the node
+ * using the nickname, or keeps it in its Mailbox if none is, and RESULT
+ * back. Mail kept for a nickname goes as DELIVER to the node that next
+ * sends TAKE for it.
+ */
+final class
+Cluster
+{
+        private static final int HELLO = 0;
+        private static final int CLAIM = 1;
+        private static final int CLAIMED = 2;
+        private static final int HOLD = 3;
+        private static final int RELEASE = 4;
+        private static final int SUBSCRIBE = 5;
+        private static final int UNSUBSCRIBE = 6;
+        private static final int ROOM = 7;
+        private static final int PRIVATE = 8;
+        private static final int DELIVER = 9;
+        private static final int RESULT = 10;
+        private static final int TAKE = 11;
+
+        // Points each node has on the hash ring
+        private static final int VNODES = 64;
+
+        // Longest frame a link carries: a room, two names and a line
+        private static final int FRAME_MAX = 16 * Config.MAX_LINE_LENGTH;
+
+        private static final MessageType[] TYPES = MessageType.values();
+
+        // Indexed by node, null for this one; null when not in a cluster
+        private static final Peer[] peers;
+        private static final int self;
+
+        // The ring, sorted by point, and the node at each
+        private static final int[] ring_points;
+        private static final int[] ring_nodes;
+
+        // Nicknames this node owns, by the node using each
+        private static final ConcurrentHashMap<String, Integer> holders = new ConcurrentHashMap<>();
+
+        // Rooms other nodes have members in, by the times each node said so
+        // less the times it said it no longer has; copied on write. Counted,
+        // so a room dropped and made again can't be left unsubscribed by
+        // the two crossing on their way
+        private static final ConcurrentHashMap<String, int[]> interest = new ConcurrentHashMap<>();
+
+        // Claims waiting on the owner, by request
+        private static final ConcurrentHashMap<Integer, CompletableFuture<Boolean>> claims = new ConcurrentHashMap<>();
+        private static final AtomicInteger next_request = new AtomicInteger();
+
+        // The link each node is reading on now; guarded by Cluster.class
+        private static SocketChannel[] inbound;
+
+        static
+        {
+                if (Config.CLUSTER_NODES == null)
+                {
+                        peers = null;
+                        self = 0;
+                        ring_points = null;
+                        ring_nodes = null;
+                }
+                else
+                {
+                        String[] nodes = Config.CLUSTER_NODES.split(",");
+                        self = Config.CLUSTER_SELF;
+                        peers = new Peer[nodes.length];
+                        inbound = new SocketChannel[nodes.length];
+                        for (int node = 0; node < nodes.length; ++node)
+                        {
+                                if (node != self)
+                                {
+                                        peers[node] = new Peer(node, address(nodes[node]));
+                                }
+                        }
+
+                        // The same on every node, being made from indices alone
+                        long[] points = new long[nodes.length * VNODES];
+                        for (int node = 0; node < nodes.length; ++node)
+                        {
+                                for (int v = 0; v < VNODES; ++v)
+                                {
+                                        int point = mix(("node-" + node + "-" + v).hashCode());
+                                        points[node * VNODES + v] = (long) point << 32 | node;
+                                }
+                        }
+                        Arrays.sort(points);
+
+                        ring_points = new int[points.length];
+                        ring_nodes = new int[points.length];
+                        for (int i = 0; i < points.length; ++i)
+                        {
+                                ring_points[i] = (int) (points[i] >> 32);
+                                ring_nodes[i] = (int) points[i];
+                        }
+                }
+        }
+
+        private
+        Cluster ()
+        {
+        }
+
+        /**
+         * @return boolean true if this server is a node of a cluster
+         */
+        static boolean
+        is_enabled ()
+        {
+                return peers != null;
+        }
+
+        /**
+         * Listen for the other nodes and start linking to them
+         *
+         * @throws IOException
+         */
+        static void
+        start ()
+        throws IOException
+        {
+                if (!is_enabled())
+                {
+                        return;
+                }
+
+                InetSocketAddress own = address(Config.CLUSTER_NODES.split(",")[self]);
+                ServerSocketChannel server = ServerSocketChannel.open();
+                server.bind(new InetSocketAddress(own.getPort()));
+                start_thread("cluster-accept", () -> accept_loop(server));
+                System.out.println("Cluster node " + self + " of " + peers.length + ", linked on port " + own.getPort());
+
+                for (Peer peer : peers)
+                {
+                        if (peer != null)
+                        {
+                                start_thread("cluster-out-" + peer.node, peer);
+                        }
+                }
+        }
+
+        /**
+         * @return int nodes up, this one included, or 0 when not in a cluster
+         */
+        static int
+        get_nodes_up ()
+        {
+                if (!is_enabled())
+                {
+                        return 0;
+                }
+
+                int up = 1;
+                for (Peer peer : peers)
+                {
+                        if (peer != null && peer.up)
+                        {
+                                ++up;
+                        }
+                }
+                return up;
+        }
+
+        /**
+         * Claim a nickname from its owner, without waiting for the answer;
+         * the caller has it in use here already
+         *
+         * @param nickname
+         * @return CompletableFuture<Boolean> true if it's ours, also when not
+         * in a cluster; done already unless another node owns it, and then
+         * completed on a thread of the cluster's
+         */
+        static CompletableFuture<Boolean>
+        claim (String nickname)
+        {
+                if (!is_enabled())
+                {
+                        return CompletableFuture.completedFuture(true);
+                }
+
+                int owner = owner_of(nickname);
+                if (owner == self)
+                {
+                        return CompletableFuture.completedFuture(hold(nickname, self));
+                }
+
+                int request = next_request.getAndIncrement() & Integer.MAX_VALUE;
+                CompletableFuture<Boolean> answer = new CompletableFuture<>();
+                claims.put(request, answer);
+                if (!peers[owner].send(new Out(CLAIM).varint(request).string(nickname).end()))
+                {
+                        claims.remove(request);
+                        return CompletableFuture.completedFuture(false);
+                }
+
+                return answer.completeOnTimeout(null, Config.CLUSTER_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                             .thenApply(granted -> {
+                                     if (granted != null)
+                                     {
+                                             return granted;
+                                     }
+
+                                     // It may yet be granted, and must not stay taken then
+                                     claims.remove(request);
+                                     peers[owner].send(new Out(RELEASE).string(nickname).end());
+                                     Metrics.cluster_claim_timeouts.increment();
+                                     return false;
+                             });
+        }
+
+        /**
+         * Give back a nickname no longer in use here
+         *
+         * @param nickname
+         */
+        static void
+        release (String nickname)
+        {
+                if (!is_enabled())
+                {
+                        return;
+                }
+
+                int owner = owner_of(nickname);
+                if (owner == self)
+                {
+                        holders.remove(nickname, self);
+                }
+                else
+                {
+                        peers[owner].send(new Out(RELEASE).string(nickname).end());
+                }
+        }
+
+        /**
+         * Tell the other nodes this one has members in a room now
+         *
+         * @param room_name
+         */
+        static void
+        subscribe (String room_name)
+        {
+                send_all(SUBSCRIBE, room_name);
+        }
+
+        /**
+         * Tell the other nodes this one has no members in a room anymore
+         *
+         * @param room_name
+         */
+        static void
+        unsubscribe (String room_name)
+        {
+                send_all(UNSUBSCRIBE, room_name);
+        }
+
+        /**
+         * Send a room's message to the other nodes with members in it
+         *
+         * @param room_name
+         * @param type
+         * @param token1
+         * @param token2
+         */
+        static void
+        publish (String room_name, MessageType type, String token1, String token2)
+        {
+                if (!is_enabled())
+                {
+                        return;
+                }
+
+                int[] counts = interest.get(room_name);
+                if (counts == null)
+                {
+                        return;
+                }
+
+                // Encoded once, for whichever nodes want it
+                ByteBuffer frame = null;
+                for (int node = 0; node < counts.length; ++node)
+                {
+                        if (counts[node] > 0 && peers[node] != null)
+                        {
+                                if (frame == null)
+                                {
+                                        frame = new Out(ROOM).string(room_name).varint(type.ordinal())
+                                                             .string(token1).string(token2).end();
+                                }
+                                peers[node].send(frame.duplicate());
+                        }
+                }
+        }
+
+        /**
+         * Send /priv to a user who isn't here, through the owner of its
+         * nickname; ChatServer.private_result answers the sender later
+         *
+         * @param sender
+         * @param receiver
+         * @param text
+         */
+        static void
+        send_private (String sender, String receiver, String text)
+        {
+                int owner = owner_of(receiver);
+                if (owner == self)
+                {
+                        route_private(self, sender, receiver, text);
+                }
+                else if (!peers[owner].send(new Out(PRIVATE).string(sender).string(receiver).string(text).end()))
+                {
+                        ChatServer.private_result(sender, receiver, false);
+                }
+        }
+
+        /**
+         * @param nickname
+         * @return int the node owning it: the first up clockwise from its
+         * hash on the ring
+         */
+        private static int
+        owner_of (String nickname)
+        {
+                int hash = mix(nickname.hashCode());
+                int i = Arrays.binarySearch(ring_points, hash);
+                if (i < 0)
+                {
+                        i = -i - 1;
+                }
+
+                for (int n = 0; n < ring_points.length; ++n)
+                {
+                        int node = ring_nodes[(i + n) % ring_points.length];
+                        if (node == self || peers[node].up)
+                        {
+                                return node;
+                        }
+                }
+                return self;
+        }
+
+        /**
+         * The finalizer of MurmurHash3, spreading String.hashCode() over the
+         * ring
+         *
+         * @param hash
+         * @return int
+         */
+        private static int
+        mix (int hash)
+        {
+                hash ^= hash >>> 16;
+                hash *= 0x85ebca6b;
+                hash ^= hash >>> 13;
+                hash *= 0xc2b2ae35;
+                hash ^= hash >>> 16;
+                return hash;
+        }
+
+        /**
+         * Record a nickname this node owns as in use by a node
+         *
+         * @param nickname
+         * @param node
+         * @return boolean true unless another node has it
+         */
+        private static boolean
+        hold (String nickname, int node)
+        {
+                Integer holder = holders.putIfAbsent(nickname, node);
+                return holder == null || holder == node;
+        }
+
+        /**
+         * Route /priv as the receiver's owner
+         *
+         * @param from node of the sender
+         * @param sender
+         * @param receiver
+         * @param text
+         */
+        private static void
+        route_private (int from, String sender, String receiver, String text)
+        {
+                Integer holder = holders.get(receiver);
+                // Kept here until the nickname is next claimed
+                boolean delivered = holder != null || Mailbox.store(sender, receiver, text);
+                if (holder != null)
+                {
+                        if (holder == self)
+                        {
+                                ChatServer.deliver_private(receiver, sender, text);
+                        }
+                        else
+                        {
+                                peers[holder].send(new Out(DELIVER).string(sender).string(receiver).string(text).end());
+                        }
+                }
+
+                if (from == self)
+                {
+                        ChatServer.private_result(sender, receiver, delivered);
+                }
+                else
+                {
+                        peers[from].send(new Out(RESULT).string(sender).string(receiver).varint(delivered ? 1 : 0).end());
+                }
+        }
+
+        /**
+         * Have the mail kept for a nickname just claimed delivered, by the
+         * nickname's owner
+         *
+         * @param nickname
+         */
+        static void
+        take_mail (String nickname)
+        {
+                int owner = owner_of(nickname);
+                if (owner == self)
+                {
+                        send_mail(self, nickname);
+                }
+                else
+                {
+                        peers[owner].send(new Out(TAKE).string(nickname).end());
+                }
+        }
+
+        /**
+         * Send the mail kept here for a nickname to the node using it
+         *
+         * @param node
+         * @param nickname
+         */
+        private static void
+        send_mail (int node, String nickname)
+        {
+                Mailbox.take(nickname, mail -> {
+                        if (node == self)
+                        {
+                                return ChatServer.deliver_mail(nickname, mail);
+                        }
+                        for (Mailbox.Mail letter : mail)
+                        {
+                                if (!peers[node].send(new Out(DELIVER).string(letter.sender).string(nickname).string(letter.text).end()))
+                                {
+                                        return false;
+                                }
+                        }
+                        return true;
+                });
+        }
+
+        /**
+         * @param type
+         * @param text
+         */
+        private static void
+        send_all (int type, String text)
+        {
+                if (!is_enabled())
+                {
+                        return;
+                }
+
+                ByteBuffer frame = new Out(type).string(text).end();
+                for (Peer peer : peers)
+                {
+                        if (peer != null)
+                        {
+                                peer.send(frame.duplicate());
+                        }
+                }
+        }
+
+        /**
+         * @param room_name
+         * @param node
+         * @param delta
+         */
+        private static void
+        count (String room_name, int node, int delta)
+        {
+                interest.compute(room_name, (name, counts) -> {
+                        int[] next = counts == null ? new int[peers.length] : counts.clone();
+                        next[node] += delta;
+                        for (int count : next)
+                        {
+                                if (count != 0)
+                                {
+                                        return next;
+                                }
+                        }
+                        return null;
+                });
+        }
+
+        /**
+         * Hand each nickname in use here to its owner, after the nodes up
+         * changed, and forget those this node no longer owns
+         */
+        private static void
+        rehome ()
+        {
+                holders.keySet().removeIf(nickname -> owner_of(nickname) != self);
+                ChatServer.each_nickname(nickname -> {
+                        int owner = owner_of(nickname);
+                        if (owner == self)
+                        {
+                                hold(nickname, self);
+                        }
+                        else
+                        {
+                                peers[owner].send(new Out(HOLD).string(nickname).end());
+                        }
+                });
+        }
+
+        /**
+         * A link to a node was made: tell it our rooms
+         *
+         * @param peer
+         */
+        private static void
+        peer_up (Peer peer)
+        {
+                ChatServer.each_room(room_name -> peer.send(new Out(SUBSCRIBE).string(room_name).end()));
+                rehome();
+        }
+
+        /**
+         * A node stopped reading what we send it
+         *
+         * @param peer
+         */
+        private static void
+        peer_down (Peer peer)
+        {
+                rehome();
+        }
+
+        /**
+         * A node stopped sending to us: whatever it told us is gone
+         *
+         * @param node
+         */
+        private static void
+        peer_lost (int node)
+        {
+                for (String room_name : interest.keySet())
+                {
+                        interest.computeIfPresent(room_name, (name, counts) -> {
+                                int[] next = counts.clone();
+                                next[node] = 0;
+                                for (int count : next)
+                                {
+                                        if (count != 0)
+                                        {
+                                                return next;
+                                        }
+                                }
+                                return null;
+                        });
+                }
+                holders.values().removeIf(holder -> holder == node);
+
+                // Its end of our link is likely gone too
+                peers[node].disconnect();
+        }
+
+        /**
+         * @param server
+         */
+        private static void
+        accept_loop (ServerSocketChannel server)
+        {
+                while (true)
+                {
+                        try
+                        {
+                                SocketChannel channel = server.accept();
+                                start_thread("cluster-in", () -> read_loop(channel));
+                        }
+                        catch (IOException ie)
+                        {
+                                System.err.println("Cluster accept: " + ie.getMessage());
+                        }
+                }
+        }
+
+        /**
+         * Read a link from another node until it ends
+         *
+         * @param channel
+         */
+        private static void
+        read_loop (SocketChannel channel)
+        {
+                BinaryFramer framer = new BinaryFramer(FRAME_MAX);
+                ByteBuffer input = ByteBuffer.allocate(64 * 1024);
+                byte[] scratch = new byte[FRAME_MAX];
+                int node = -1;
+
+                try (channel)
+                {
+                        while (channel.read(input.clear()) >= 0)
+                        {
+                                input.flip();
+                                ByteBuffer body;
+                                while ((body = framer.next_frame(input)) != null)
+                                {
+                                        if (node < 0)
+                                        {
+                                                node = hello(channel, body);
+                                                continue;
+                                        }
+                                        Metrics.cluster_frames_in.increment();
+                                        handle(node, body, scratch);
+                                }
+                        }
+                }
+                catch (IOException | RuntimeException e)
+                {
+                        System.err.println("Cluster link from node " + node + ": " + e);
+                }
+
+                synchronized (Cluster.class)
+                {
+                        if (node < 0 || inbound[node] != channel)
+                        {
+                                return;
+                        }
+                        inbound[node] = null;
+                }
+                System.out.println("Cluster node " + node + " gone");
+                peer_lost(node);
+        }
+
+        /**
+         * @param channel
+         * @param body
+         * @return int the node on the other end
+         * @throws IOException if it isn't one
+         */
+        private static int
+        hello (SocketChannel channel, ByteBuffer body)
+        throws IOException
+        {
+                int node = (body.get() & 0xff) == HELLO ? BinaryProtocol.get_varint(body) : -1;
+                if (node < 0 || node >= peers.length || node == self)
+                {
+                        throw new IOException("Not a cluster node");
+                }
+
+                // A node linking again drops what its old link told us
+                SocketChannel old;
+                synchronized (Cluster.class)
+                {
+                        old = inbound[node];
+                        inbound[node] = channel;
+                }
+                if (old != null)
+                {
+                        old.close();
+                        peer_lost(node);
+                }
+                return node;
+        }
+
+        /**
+         * @param node
+         * @param body
+         * @param scratch
+         * @throws IOException for a frame of an unknown type
+         */
+        private static void
+        handle (int node, ByteBuffer body, byte[] scratch)
+        throws IOException
+        {
+                int type = body.get() & 0xff;
+                switch (type)
+                {
+                        case CLAIM:
+                        {
+                                int request = BinaryProtocol.get_varint(body);
+                                boolean granted = hold(BinaryProtocol.get_string(body, scratch), node);
+                                peers[node].send(new Out(CLAIMED).varint(request).varint(granted ? 1 : 0).end());
+                                break;
+                        }
+                        case CLAIMED:
+                        {
+                                CompletableFuture<Boolean> answer = claims.remove(BinaryProtocol.get_varint(body));
+                                boolean granted = BinaryProtocol.get_varint(body) != 0;
+                                if (answer != null)
+                                {
+                                        answer.complete(granted);
+                                }
+                                break;
+                        }
+                        case HOLD:
+                                hold(BinaryProtocol.get_string(body, scratch), node);
+                                break;
+                        case RELEASE:
+                                holders.remove(BinaryProtocol.get_string(body, scratch), node);
+                                break;
+                        case SUBSCRIBE:
+                                count(BinaryProtocol.get_string(body, scratch), node, 1);
+                                break;
+                        case UNSUBSCRIBE:
+                                count(BinaryProtocol.get_string(body, scratch), node, -1);
+                                break;
+                        case ROOM:
+                        {
+                                String room_name = BinaryProtocol.get_string(body, scratch);
+                                MessageType message_type = TYPES[BinaryProtocol.get_varint(body)];
+                                String token1 = BinaryProtocol.get_string(body, scratch);
+                                String token2 = BinaryProtocol.get_string(body, scratch);
+                                ChatServer.deliver_room(room_name, message_type, token1, token2);
+                                break;
+                        }
+                        case PRIVATE:
+                        case DELIVER:
+                        {
+                                String sender = BinaryProtocol.get_string(body, scratch);
+                                String receiver = BinaryProtocol.get_string(body, scratch);
+                                String text = BinaryProtocol.get_string(body, scratch);
+                                if (type == PRIVATE)
+                                {
+                                        route_private(node, sender, receiver, text);
+                                }
+                                else
+                                {
+                                        ChatServer.deliver_private(receiver, sender, text);
+                                }
+                                break;
+                        }
+                        case TAKE:
+                                send_mail(node, BinaryProtocol.get_string(body, scratch));
+                                break;
+                        case RESULT:
+                        {
+                                String sender = BinaryProtocol.get_string(body, scratch);
+                                String receiver = BinaryProtocol.get_string(body, scratch);
+                                ChatServer.private_result(sender, receiver, BinaryProtocol.get_varint(body) != 0);
+                                break;
+                        }
+                        default:
+                                throw new IOException("Unknown cluster frame " + type);
+                }
+        }
+
+        /**
+         * @param node host:port
+         * @return InetSocketAddress
+         */
+        private static InetSocketAddress
+        address (String node)
+        {
+                int colon = node.lastIndexOf(':');
+                return new InetSocketAddress(node.substring(0, colon).trim(), Integer.parseInt(node.substring(colon + 1).trim()));
+        }
+
+        /**
+         * @param name
+         * @param runnable
+         */
+        private static void
+        start_thread (String name, Runnable runnable)
+        {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                thread.start();
+        }
+
+        /**
+         * A frame being encoded, in a heap buffer that grows as needed
+         */
+        private static final class
+        Out
+        {
+                private ByteBuffer buffer = ByteBuffer.allocate(128);
+
+                /**
+                 * Constructor
+                 *
+                 * @param type
+                 */
+                Out (int type)
+                {
+                        BinaryProtocol.begin_frame(this.buffer, type);
+                }
+
+                /**
+                 * @param value
+                 * @return Out this
+                 */
+                Out
+                varint (int value)
+                {
+                        ensure(BinaryProtocol.HEADER_MAX);
+                        BinaryProtocol.put_varint(this.buffer, value);
+                        return this;
+                }
+
+                /**
+                 * @param text
+                 * @return Out this
+                 */
+                Out
+                string (String text)
+                {
+                        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                        ensure(BinaryProtocol.HEADER_MAX + bytes.length);
+                        BinaryProtocol.put_varint(this.buffer, bytes.length);
+                        this.buffer.put(bytes);
+                        return this;
+                }
+
+                /**
+                 * @return ByteBuffer the whole frame
+                 */
+                ByteBuffer
+                end ()
+                {
+                        BinaryProtocol.end_frame(this.buffer);
+                        return this.buffer;
+                }
+
+                /**
+                 * @param bytes
+                 */
+                private void
+                ensure (int bytes)
+                {
+                        if (this.buffer.remaining() < bytes)
+                        {
+                                ByteBuffer grown = ByteBuffer.allocate(Math.max(this.buffer.capacity() * 2, this.buffer.position() + bytes));
+                                this.buffer.flip();
+                                grown.put(this.buffer);
+                                this.buffer = grown;
+                        }
+                }
+        }
+
+        /**
+         * Our link to another node, written by a thread of its own that
+         * makes it again whenever it's lost
+         */
+        private static final class
+        Peer
+        implements Runnable
+        {
+                private final int node;
+                private final InetSocketAddress address;
+
+                // Linked, so frames sent go out; what's sent otherwise is dropped
+                private volatile boolean up;
+
+                // Frames waiting for the link; guarded by this
+                private SocketChannel channel;
+                private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+                private long queued_bytes;
+
+                /**
+                 * Constructor
+                 *
+                 * @param node
+                 * @param address
+                 */
+                Peer (int node, InetSocketAddress address)
+                {
+                        this.node = node;
+                        this.address = address;
+                }
+
+                /**
+                 * Queue a frame for the node; any thread may
+                 *
+                 * @param frame not to be changed after
+                 * @return boolean false if it was dropped, the node being down
+                 */
+                synchronized boolean
+                send (ByteBuffer frame)
+                {
+                        if (!this.up)
+                        {
+                                Metrics.cluster_dropped.increment();
+                                return false;
+                        }
+                        if (this.queued_bytes + frame.remaining() > Config.CLUSTER_QUEUE_MAX)
+                        {
+                                // Too far behind to catch up
+                                Metrics.cluster_dropped.increment();
+                                disconnect();
+                                return false;
+                        }
+
+                        this.queue.add(frame);
+                        this.queued_bytes += frame.remaining();
+                        if (this.queue.size() == 1)
+                        {
+                                notifyAll();
+                        }
+                        return true;
+                }
+
+                /**
+                 * Drop the link, to be made again
+                 */
+                synchronized void
+                disconnect ()
+                {
+                        if (this.channel != null)
+                        {
+                                try
+                                {
+                                        this.channel.close();
+                                }
+                                catch (IOException ie)
+                                {
+                                }
+                        }
+                        notifyAll();
+                }
+
+                /**
+                 * Link to the node, and write to it until the link is lost,
+                 * over and over
+                 */
+                @Override
+                public void
+                run ()
+                {
+                        while (true)
+                        {
+                                SocketChannel channel = null;
+                                try
+                                {
+                                        channel = SocketChannel.open(this.address);
+                                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                                        write(channel, new ByteBuffer[] { new Out(HELLO).varint(self).end() }, 1);
+                                        synchronized (this)
+                                        {
+                                                this.channel = channel;
+                                                this.up = true;
+                                        }
+                                        System.out.println("Cluster node " + this.node + " up");
+                                        peer_up(this);
+                                        drain(channel);
+                                }
+                                catch (IOException ie)
+                                {
+                                }
+
+                                boolean was_up;
+                                synchronized (this)
+                                {
+                                        was_up = this.up;
+                                        this.up = false;
+                                        this.channel = null;
+                                        this.queue.clear();
+                                        this.queued_bytes = 0;
+                                }
+                                if (channel != null)
+                                {
+                                        try
+                                        {
+                                                channel.close();
+                                        }
+                                        catch (IOException ie)
+                                        {
+                                        }
+                                }
+                                if (was_up)
+                                {
+                                        System.out.println("Cluster node " + this.node + " down");
+                                        peer_down(this);
+                                }
+
+                                try
+                                {
+                                        Thread.sleep(Config.CLUSTER_RETRY_MS);
+                                }
+                                catch (InterruptedException ie)
+                                {
+                                        return;
+                                }
+                        }
+                }
+
+                /**
+                 * Write frames out as they're queued, many at a time
+                 *
+                 * @param channel
+                 * @throws IOException once the link is lost
+                 */
+                private void
+                drain (SocketChannel channel)
+                throws IOException
+                {
+                        ByteBuffer[] batch = new ByteBuffer[64];
+                        while (true)
+                        {
+                                int count = 0;
+                                synchronized (this)
+                                {
+                                        while (this.queue.isEmpty() && channel.isOpen())
+                                        {
+                                                try
+                                                {
+                                                        wait();
+                                                }
+                                                catch (InterruptedException ie)
+                                                {
+                                                        throw new InterruptedIOException();
+                                                }
+                                        }
+                                        if (!channel.isOpen())
+                                        {
+                                                throw new ClosedChannelException();
+                                        }
+
+                                        while (count < batch.length && !this.queue.isEmpty())
+                                        {
+                                                batch[count] = this.queue.poll();
+                                                this.queued_bytes -= batch[count].remaining();
+                                                ++count;
+                                        }
+                                }
+
+                                write(channel, batch, count);
+                                Arrays.fill(batch, 0, count, null);
+                        }
+                }
+
+                /**
+                 * @param channel
+                 * @param frames
+                 * @param count
+                 * @throws IOException
+                 */
+                private static void
+                write (SocketChannel channel, ByteBuffer[] frames, int count)
+                throws IOException
+                {
+                        int first = 0;
+                        while (first < count)
+                        {
+                                Metrics.cluster_bytes_out.add(channel.write(frames, first, count - first));
+                                while (first < count && !frames[first].hasRemaining())
+                                {
+                                        ++first;
+                                }
+                        }
+                        Metrics.cluster_frames_out.add(count);
+                }
+        }
+}
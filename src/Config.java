@@ -0,0 +1,143 @@
+/**
+ * Server tunables, read once from system properties (-Dchatserv.name=value)
+ */
+final class
+Config
+{
+        // Queued outbound bytes at which we stop reading from a client
+        static final int WRITE_HIGH_WATERMARK = Integer.getInteger("chatserv.write.high", 256 * 1024);
+
+        // Queued outbound bytes at which reading from it resumes
+        static final int WRITE_LOW_WATERMARK = Integer.getInteger("chatserv.write.low", 64 * 1024);
+
+        // Queued outbound bytes past which the client is disconnected
+        static final int WRITE_MAX_QUEUED = Integer.getInteger("chatserv.write.max", 4 * 1024 * 1024);
+
+        // Most frames, and bytes past which no more frames, go in one write
+        static final int FLUSH_FRAMES = Integer.getInteger("chatserv.flush.frames", 64);
+        static final int FLUSH_BYTES = Integer.getInteger("chatserv.flush.bytes", 64 * 1024);
+
+        // Longest a reactor handles input before writing out what it queued,
+        // in microseconds; otherwise it does so once it's done
+        static final int FLUSH_LATENCY_US = Integer.getInteger("chatserv.flush.latency", 1000);
+
+        // Frames shorter than this go out uncompressed even to clients
+        // asking for compression, and how hard to compress the rest: 1, the
+        // fastest, to 9, the smallest, or -1 for zlib's default
+        static final int DEFLATE_MIN = Integer.getInteger("chatserv.deflate.min", 64);
+        static final int DEFLATE_LEVEL = Integer.getInteger("chatserv.deflate.level", -1);
+
+        // Milliseconds a client may go unheard from before it's sent a PING,
+        // and then to answer it with anything, such as /pong, before it's
+        // disconnected; 0 leaves clients be. Timeouts are checked once a tick
+        static final int IDLE_TIMEOUT_MS = Integer.getInteger("chatserv.idle.timeout", 60000);
+        static final int IDLE_PONG_MS = Integer.getInteger("chatserv.idle.pong", 15000);
+        static final int IDLE_TICK_MS = Integer.getInteger("chatserv.idle.tick", 1000);
+
+        // Rate limits, in lines or frames per second and how many may come
+        // at once; a rate of 0 is no limit. Every line a user sends counts
+        // against its own bucket, each kind of command against one of its
+        // own, and room messages against the room's before fanning out
+        static final int LIMIT_USER_RATE = Integer.getInteger("chatserv.limit.user.rate", 50);
+        static final int LIMIT_USER_BURST = Integer.getInteger("chatserv.limit.user.burst", 100);
+        static final int LIMIT_COMMAND_RATE = Integer.getInteger("chatserv.limit.command.rate", 10);
+        static final int LIMIT_COMMAND_BURST = Integer.getInteger("chatserv.limit.command.burst", 20);
+        static final int LIMIT_ROOM_RATE = Integer.getInteger("chatserv.limit.room.rate", 2000);
+        static final int LIMIT_ROOM_BURST = Integer.getInteger("chatserv.limit.room.burst", 4000);
+
+        // Reads dropping lines over a limit, each within this many
+        // milliseconds of the last, after which reading from the client
+        // stops for as long
+        static final int LIMIT_STRIKES = Integer.getInteger("chatserv.limit.strikes", 3);
+        static final int LIMIT_PENALTY_MS = Integer.getInteger("chatserv.limit.penalty", 1000);
+
+        // Rooms a user may be in at once, after /proto rooms
+        static final int MAX_ROOMS = Integer.getInteger("chatserv.rooms.max", 64);
+
+        // Connections taken at once, and from one address; 0 is no limit.
+        // Those over are closed as soon as they're accepted
+        static final int MAX_CONNECTIONS = Integer.getInteger("chatserv.connections.max", 0);
+        static final int MAX_CONNECTIONS_PER_IP = Integer.getInteger("chatserv.connections.ip", 0);
+
+        // Connections the kernel queues for us to accept, and most accepted
+        // in a row before they're handed to the reactors
+        static final int ACCEPT_BACKLOG = Integer.getInteger("chatserv.accept.backlog", 1024);
+        static final int ACCEPT_BATCH = Integer.getInteger("chatserv.accept.batch", 256);
+
+        // Print a line for every connection accepted and closed
+        static final boolean LOG_CONNECTIONS = Boolean.parseBoolean(System.getProperty("chatserv.log.connections", "true"));
+
+        // Longest line a client may send; longer ones are dropped
+        static final int MAX_LINE_LENGTH = Integer.getInteger("chatserv.line.max", 16384);
+
+        // How connections are served: reactor, a few selector threads, or
+        // threads, a thread per connection with blocking I/O
+        static final String ENGINE = System.getProperty("chatserv.engine", "reactor");
+
+        // Every node's address for the others to reach it, host:port, in the
+        // same order on all of them, and which of them this node is; unset
+        // runs a single server
+        static final String CLUSTER_NODES = System.getProperty("chatserv.cluster.nodes");
+        static final int CLUSTER_SELF = Integer.getInteger("chatserv.cluster.self", 0);
+
+        // Milliseconds to wait for a nickname's owner to answer a claim, and
+        // between attempts to reach a node that's down
+        static final int CLUSTER_TIMEOUT_MS = Integer.getInteger("chatserv.cluster.timeout", 2000);
+        static final int CLUSTER_RETRY_MS = Integer.getInteger("chatserv.cluster.retry", 1000);
+
+        // Bytes queued for a node past which its link is dropped and remade
+        static final int CLUSTER_QUEUE_MAX = Integer.getInteger("chatserv.cluster.queue", 64 * 1024 * 1024);
+
+        // Directory keeping private messages to nicknames not in use until
+        // they're next taken; unset leaves the mailbox off
+        static final String MAILBOX_DIR = System.getProperty("chatserv.mailbox.dir");
+
+        // Messages kept for a nickname, and in all, and the longest one
+        // waits, in seconds
+        static final int MAILBOX_MAX = Integer.getInteger("chatserv.mailbox.max", 100);
+        static final int MAILBOX_TOTAL = Integer.getInteger("chatserv.mailbox.total", 100000);
+        static final int MAILBOX_TTL = Integer.getInteger("chatserv.mailbox.ttl", 7 * 24 * 3600);
+
+        // Size of a mailbox segment, and milliseconds between forcing it to disk
+        static final int MAILBOX_SEGMENT_BYTES = Integer.getInteger("chatserv.mailbox.segment", 4 * 1024 * 1024);
+        static final int MAILBOX_SYNC_MS = Integer.getInteger("chatserv.mailbox.sync", 1000);
+
+        // File a stopped server hands its users over in, for the next one
+        // to pick up; unset leaves hot restarts off
+        static final String SNAPSHOT_FILE = System.getProperty("chatserv.snapshot.file");
+
+        // Milliseconds the next server holds the nicknames handed over for
+        // their users to resume, and a stopped server waits at most for
+        // what it queued to be written out
+        static final int SNAPSHOT_GRACE_MS = Integer.getInteger("chatserv.snapshot.grace", 30000);
+        static final int SNAPSHOT_DRAIN_MS = Integer.getInteger("chatserv.snapshot.drain", 2000);
+
+        // Local port serving /metrics over HTTP; 0 leaves it off
+        static final int METRICS_PORT = Integer.getInteger("chatserv.metrics.port", 0);
+
+        // Idle bytes the buffer pool keeps per size class
+        static final int POOL_IDLE_BYTES = Integer.getInteger("chatserv.pool.idle", 8 * 1024 * 1024);
+
+        // Track where each frame was created, and report those never released
+        static final boolean POOL_LEAKS = Boolean.getBoolean("chatserv.pool.leaks");
+
+        // Directory keeping each room's history; unset leaves history off
+        static final String HISTORY_DIR = System.getProperty("chatserv.history.dir");
+
+        // Messages replayed to a user joining a room, and their oldest age in
+        // seconds, 0 for any
+        static final int HISTORY_REPLAY = Integer.getInteger("chatserv.history.replay", 50);
+        static final int HISTORY_WINDOW = Integer.getInteger("chatserv.history.window", 0);
+
+        // Size of a history segment, and segments kept per room
+        static final int HISTORY_SEGMENT_BYTES = Integer.getInteger("chatserv.history.segment", 4 * 1024 * 1024);
+        static final int HISTORY_SEGMENTS = Integer.getInteger("chatserv.history.segments", 8);
+
+        // Milliseconds between forcing history to disk
+        static final int HISTORY_SYNC_MS = Integer.getInteger("chatserv.history.sync", 1000);
+
+        private
+        Config ()
+        {
+        }
+}
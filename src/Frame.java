@@ -0,0 +1,160 @@
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * An encoded message in a pooled direct buffer, shared by every recipient
+ *
+ * Each holder owns one reference; the buffer goes back to the pool when
+ * the last one is released. With -Dchatserv.pool.leaks=true every frame
+ * remembers where it was created, and one collected without being
+ * released is reported as a leak.
+ */
+final class
+Frame
+{
+        private static final AtomicIntegerFieldUpdater<Frame> REFS =
+                AtomicIntegerFieldUpdater.newUpdater(Frame.class, "refs");
+
+        private static final Cleaner cleaner = Config.POOL_LEAKS ? Cleaner.create() : null;
+
+        /**
+         * Outlives its frame, to tell whether it was released
+         */
+        private static final class
+        Tracker
+        implements Runnable
+        {
+                final int size;
+                final Throwable origin = new Throwable("Frame created here");
+                volatile boolean released;
+
+                Tracker (int size)
+                {
+                        this.size = size;
+                }
+
+                @Override
+                public void
+                run ()
+                {
+                        if (!this.released)
+                        {
+                                Metrics.pool_leaks.increment();
+                                BufferPool.forget(this.size);
+                                System.err.println("Leaked frame of " + this.size + " bytes");
+                                this.origin.printStackTrace();
+                        }
+                }
+        }
+
+        private final ByteBuffer data;
+        private final Tracker tracker;
+        private volatile int refs = 1;
+
+        // Nicknames a binary frame sends by ID
+        private final Name[] names;
+        private final boolean compressed;
+
+        /**
+         * Constructor; the creator holds the first reference
+         *
+         * @param data leased from the pool, flipped for reading
+         */
+        public Frame (ByteBuffer data)
+        {
+                this(data, null, false);
+        }
+
+        /**
+         * Constructor; the creator holds the first reference
+         *
+         * @param data leased from the pool, flipped for reading
+         * @param names nicknames sent by ID, or null
+         * @param compressed
+         */
+        public Frame (ByteBuffer data, Name[] names, boolean compressed)
+        {
+                this.data = data;
+                this.names = names;
+                this.compressed = compressed;
+                if (cleaner != null)
+                {
+                        this.tracker = new Tracker(data.capacity());
+                        cleaner.register(this, this.tracker);
+                }
+                else
+                {
+                        this.tracker = null;
+                }
+        }
+
+        /**
+         * @return ByteBuffer a read-only view with its own position
+         */
+        public ByteBuffer
+        view ()
+        {
+                return this.data.asReadOnlyBuffer();
+        }
+
+        /**
+         * @return int length in bytes
+         */
+        public int
+        length ()
+        {
+                return this.data.remaining();
+        }
+
+        /**
+         * @return Name[] nicknames sent by ID, which the receiver must have
+         * been told first, or null
+         */
+        public Name[]
+        get_names ()
+        {
+                return this.names;
+        }
+
+        /**
+         * @return boolean true for a COMPRESSED frame
+         */
+        public boolean
+        is_compressed ()
+        {
+                return this.compressed;
+        }
+
+        /**
+         * Take more references, one per new holder
+         *
+         * @param count
+         */
+        public void
+        retain (int count)
+        {
+                REFS.addAndGet(this, count);
+        }
+
+        /**
+         * Drop a reference; the last one returns the buffer to the pool
+         */
+        public void
+        release ()
+        {
+                int left = REFS.decrementAndGet(this);
+                if (left == 0)
+                {
+                        if (this.tracker != null)
+                        {
+                                this.tracker.released = true;
+                        }
+                        BufferPool.release(this.data);
+                }
+                else if (left < 0)
+                {
+                        throw new IllegalStateException("Frame released more often than retained");
+                }
+        }
+}
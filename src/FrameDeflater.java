@@ -0,0 +1,70 @@
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses frames of the binary protocol into COMPRESSED frames, in a
+ * context kept from one frame to the next, so what they repeat costs
+ * little after the first time
+ *
+ * Every frame ends in a sync flush, so it can be inflated as soon as it
+ * arrives. Not thread-safe: a user's own context is used under its lock,
+ * a room's under the room's.
+ */
+final class
+FrameDeflater
+{
+        // What a sync flush ends with, left out of every frame
+        private static final int FLUSH_TAIL = 4;
+
+        private final Deflater deflater = new Deflater(Config.DEFLATE_LEVEL, true);
+
+        /**
+         * Compress a frame
+         *
+         * @param frame the caller keeps its reference
+         * @param context ID the client inflates it with
+         * @param restart start the context afresh, for a new ID
+         * @return Frame holding one reference, for the caller
+         */
+        Frame
+        compress (Frame frame, int context, boolean restart)
+        {
+                long start = System.nanoTime();
+                ByteBuffer input = frame.view();
+                int length = input.remaining();
+
+                // Above what deflate can take for incompressible input
+                ByteBuffer out = BufferPool.lease(3 * BinaryProtocol.HEADER_MAX + length + (length >> 10) + 32);
+                BinaryProtocol.begin_frame(out, BinaryProtocol.COMPRESSED);
+                BinaryProtocol.put_varint(out, context);
+
+                if (restart)
+                {
+                        this.deflater.reset();
+                }
+                this.deflater.setInput(input);
+                this.deflater.deflate(out, Deflater.SYNC_FLUSH);
+                if (!out.hasRemaining() || !this.deflater.needsInput())
+                {
+                        throw new IllegalStateException("Deflate overran its bound");
+                }
+                out.position(out.position() - FLUSH_TAIL);
+                BinaryProtocol.end_frame(out);
+
+                int compressed = out.remaining();
+                Metrics.deflate_bytes_in.add(length);
+                Metrics.deflate_bytes_out.add(compressed);
+                Metrics.deflate_percent.record(100L * compressed / length);
+                Metrics.deflate_nanos.record(System.nanoTime() - start);
+                return new Frame(out, frame.get_names(), true);
+        }
+
+        /**
+         * Free the native memory now rather than when collected
+         */
+        void
+        end ()
+        {
+                this.deflater.end();
+        }
+}
@@ -0,0 +1,109 @@
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Undoes FrameDeflater for clients, keeping the contexts the server
+ * compresses in: the connection's own, and that of the room it's in
+ */
+final class
+FrameInflater
+{
+        // What FrameDeflater leaves out of every frame
+        private static final byte[] FLUSH_TAIL = { 0, 0, (byte) 0xff, (byte) 0xff };
+
+        private final int max_frame_length;
+        private final Inflater own = new Inflater(true);
+        private final Inflater room = new Inflater(true);
+        private int room_context = -1;
+        private ByteBuffer output = ByteBuffer.allocate(1024);
+
+        /**
+         * Constructor
+         *
+         * @param max_frame_length longest a frame may inflate to
+         */
+        public FrameInflater (int max_frame_length)
+        {
+                this.max_frame_length = max_frame_length;
+        }
+
+        /**
+         * @param body a frame, without its length
+         * @return ByteBuffer the frame inflated from it if it's COMPRESSED,
+         * valid until the next call, or else the frame itself
+         * @throws IllegalArgumentException if it can't be inflated
+         */
+        public ByteBuffer
+        unwrap (ByteBuffer body)
+        {
+                if ((body.get(body.position()) & 0xff) != BinaryProtocol.COMPRESSED)
+                {
+                        return body;
+                }
+                body.get();
+
+                Inflater inflater = this.own;
+                int context = BinaryProtocol.get_varint(body);
+                if (context != 0)
+                {
+                        // A new room context starts from scratch
+                        if (context != this.room_context)
+                        {
+                                this.room.reset();
+                                this.room_context = context;
+                        }
+                        inflater = this.room;
+                }
+
+                this.output.clear();
+                try
+                {
+                        inflate(inflater, body);
+                        inflate(inflater, ByteBuffer.wrap(FLUSH_TAIL));
+                }
+                catch (DataFormatException dfe)
+                {
+                        throw new IllegalArgumentException("Can't inflate: " + dfe.getMessage());
+                }
+                this.output.flip();
+
+                int length = BinaryProtocol.get_varint(this.output);
+                if (length < 0 || length > this.output.remaining())
+                {
+                        throw new IllegalArgumentException("Malformed inflated frame");
+                }
+                return this.output.slice(this.output.position(), length);
+        }
+
+        /**
+         * @param inflater
+         * @param input
+         * @throws DataFormatException
+         */
+        private void
+        inflate (Inflater inflater, ByteBuffer input)
+        throws DataFormatException
+        {
+                inflater.setInput(input);
+                while (true)
+                {
+                        if (!this.output.hasRemaining())
+                        {
+                                if (this.output.capacity() >= this.max_frame_length + BinaryProtocol.HEADER_MAX)
+                                {
+                                        throw new IllegalArgumentException("Inflated frame too long");
+                                }
+                                ByteBuffer grown = ByteBuffer.allocate(this.output.capacity() * 2);
+                                this.output.flip();
+                                grown.put(this.output);
+                                this.output = grown;
+                        }
+
+                        if (inflater.inflate(this.output) == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary()))
+                        {
+                                return;
+                        }
+                }
+        }
+}
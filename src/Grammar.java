@@ -0,0 +1,219 @@
+/**
+ * Hand-written matcher for the line formats of the protocol, in place of
+ * compiling a regular expression for every line
+ *
+ * A grammar is a table of verbs tried in order. Each verb accepts exactly
+ * what the regular expression it replaces did, find() semantics included:
+ * "nick ([^ .]+)" is looked for anywhere in the line, while an exact verb
+ * such as "leave" has to be the whole line. A verb added as a prefix is
+ * only looked for at the start, "^say ([^ .]+) (.*)", so the text it
+ * takes is never searched for other verbs.
+ */
+final class
+Grammar<T>
+{
+        /**
+         * What follows the keyword of a verb
+         */
+        enum Shape
+        {
+                // "leave": the keyword is the whole line
+                EXACT,
+                // "nick ([^ .]+)"
+                NAME,
+                // "NEWNICK ([^ .]+) ([^ .]+)"
+                NAME_NAME,
+                // "priv ([^ .]+) (.*)"
+                NAME_TEXT
+        }
+
+        private final String[] keywords;
+        private final Shape[] shapes;
+        private final boolean[] anchored;
+        private final Object[] types;
+        private int count = 0;
+
+        /**
+         * Constructor
+         *
+         * @param capacity number of verbs
+         */
+        public Grammar (int capacity)
+        {
+                this.keywords = new String[capacity];
+                this.shapes = new Shape[capacity];
+                this.anchored = new boolean[capacity];
+                this.types = new Object[capacity];
+        }
+
+        /**
+         * Add a verb, tried after the ones already added
+         *
+         * @param keyword
+         * @param shape
+         * @param type
+         * @return Grammar<T> this
+         */
+        public Grammar<T>
+        verb (String keyword, Shape shape, T type)
+        {
+                return add(keyword, shape, type, false);
+        }
+
+        /**
+         * Add a verb that only matches at the start of the line, tried after
+         * the ones already added
+         *
+         * @param keyword
+         * @param shape
+         * @param type
+         * @return Grammar<T> this
+         */
+        public Grammar<T>
+        prefix (String keyword, Shape shape, T type)
+        {
+                return add(keyword, shape, type, true);
+        }
+
+        private Grammar<T>
+        add (String keyword, Shape shape, T type, boolean anchored)
+        {
+                this.keywords[this.count] = keyword;
+                this.shapes[this.count] = shape;
+                this.anchored[this.count] = anchored;
+                this.types[this.count] = type;
+                ++this.count;
+                return this;
+        }
+
+        /**
+         * Match line[from, to) against the verbs, in order
+         *
+         * @param line
+         * @param from
+         * @param to
+         * @param bounds receives the start and end of both tokens
+         * @return T the type of the first verb that matched, or null
+         */
+        @SuppressWarnings("unchecked")
+        public T
+        match (String line, int from, int to, int[] bounds)
+        {
+                for (int verb = 0; verb < this.count; ++verb)
+                {
+                        String keyword = this.keywords[verb];
+
+                        if (this.shapes[verb] == Shape.EXACT)
+                        {
+                                if (to - from == keyword.length() && line.startsWith(keyword, from))
+                                {
+                                        return (T) this.types[verb];
+                                }
+                                continue;
+                        }
+
+                        if (this.anchored[verb])
+                        {
+                                if (from + keyword.length() <= to && line.startsWith(keyword, from)
+                                    && match_tokens(this.shapes[verb], line, from + keyword.length(), to, bounds))
+                                {
+                                        return (T) this.types[verb];
+                                }
+                                continue;
+                        }
+
+                        for (int at = line.indexOf(keyword, from);
+                             at >= 0 && at + keyword.length() <= to;
+                             at = line.indexOf(keyword, at + 1))
+                        {
+                                if (match_tokens(this.shapes[verb], line, at + keyword.length(), to, bounds))
+                                {
+                                        return (T) this.types[verb];
+                                }
+                        }
+                }
+                return null;
+        }
+
+        /**
+         * Match what follows a keyword found at line[start - keyword length]
+         *
+         * @param shape
+         * @param line
+         * @param start
+         * @param to
+         * @param bounds
+         * @return boolean
+         */
+        private static boolean
+        match_tokens (Shape shape, String line, int start, int to, int[] bounds)
+        {
+                int end = name_end(line, start, to);
+                if (end == start)
+                {
+                        return false;
+                }
+                bounds[0] = start;
+                bounds[1] = end;
+
+                if (shape == Shape.NAME)
+                {
+                        return true;
+                }
+
+                // Names can't hold a space, so it has to come right after
+                if (end == to || line.charAt(end) != ' ')
+                {
+                        return false;
+                }
+                start = end + 1;
+                end = shape == Shape.NAME_NAME ? name_end(line, start, to) : text_end(line, start, to);
+                bounds[2] = start;
+                bounds[3] = end;
+
+                return shape == Shape.NAME_TEXT || end > start;
+        }
+
+        /**
+         * End of a run of [^ .]
+         *
+         * @param line
+         * @param start
+         * @param to
+         * @return int
+         */
+        private static int
+        name_end (String line, int start, int to)
+        {
+                int end = start;
+                while (end < to && line.charAt(end) != ' ' && line.charAt(end) != '.')
+                {
+                        ++end;
+                }
+                return end;
+        }
+
+        /**
+         * End of a run of .*, which stops at any line terminator
+         *
+         * @param line
+         * @param start
+         * @param to
+         * @return int
+         */
+        private static int
+        text_end (String line, int start, int to)
+        {
+                int end = start;
+                while (end < to)
+                {
+                        char c = line.charAt(end);
+                        if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029')
+                        {
+                                break;
+                        }
+                        ++end;
+                }
+                return end;
+        }
+}
@@ -0,0 +1,151 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * HDR-style histogram of non-negative longs, such as latencies in
+ * nanoseconds
+ *
+ * Values below 2^SUB_BITS are counted exactly; above that every power of
+ * two is split in 2^(SUB_BITS - 1) buckets, so a bucket is never wider
+ * than 1/64 of its values. Recording is lock-free and allocates nothing,
+ * so any thread may record at any time.
+ */
+class
+Histogram
+{
+        private static final int SUB_BITS = 7;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int HALF_COUNT = SUB_COUNT / 2;
+
+        // Values are clamped to this, a bit over 18 minutes in nanoseconds
+        private static final int MAX_BITS = 40;
+        private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+        // The total count is summed from the buckets when asked for, to keep
+        // recording down to two atomic adds
+        private final AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * @param value
+         */
+        public void
+        record (long value)
+        {
+                value = Math.max(0, Math.min(value, MAX_VALUE));
+                this.counts.getAndIncrement(index(value));
+                this.sum.getAndAdd(value);
+
+                long current;
+                while (value > (current = this.max.get()) && !this.max.compareAndSet(current, value))
+                {
+                        // Lost the race to another recorder, try again
+                }
+        }
+
+        /**
+         * @return long number of values recorded
+         */
+        public long
+        get_count ()
+        {
+                long total = 0;
+                for (int i = 0; i < this.counts.length(); ++i)
+                {
+                        total += this.counts.get(i);
+                }
+                return total;
+        }
+
+        /**
+         * @return long sum of the values recorded
+         */
+        public long
+        get_sum ()
+        {
+                return this.sum.get();
+        }
+
+        /**
+         * @return long largest value recorded
+         */
+        public long
+        get_max ()
+        {
+                return this.max.get();
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return long value at the quantile, to within a bucket
+         */
+        public long
+        get_percentile (double quantile)
+        {
+                long total = get_count();
+                if (total == 0)
+                {
+                        return 0;
+                }
+
+                long rank = Math.max(1, (long) Math.ceil(quantile * total));
+                long seen = 0;
+                for (int i = 0; i < this.counts.length(); ++i)
+                {
+                        seen += this.counts.get(i);
+                        if (seen >= rank)
+                        {
+                                return Math.min(highest_value(i), this.max.get());
+                        }
+                }
+                return this.max.get();
+        }
+
+        /**
+         * Forget everything recorded
+         */
+        public void
+        reset ()
+        {
+                for (int i = 0; i < this.counts.length(); ++i)
+                {
+                        this.counts.set(i, 0);
+                }
+                this.sum.set(0);
+                this.max.set(0);
+        }
+
+        /**
+         * @param value
+         * @return int bucket holding the value
+         */
+        private static int
+        index (long value)
+        {
+                if (value < SUB_COUNT)
+                {
+                        return (int) value;
+                }
+
+                int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+                return shift * HALF_COUNT + (int) (value >>> shift);
+        }
+
+        /**
+         * @param index
+         * @return long highest value that falls in the bucket
+         */
+        private static long
+        highest_value (int index)
+        {
+                if (index < SUB_COUNT)
+                {
+                        return index;
+                }
+
+                int shift = index / HALF_COUNT - 1;
+                long sub = index - (long) shift * HALF_COUNT;
+                return ((sub + 1) << shift) - 1;
+        }
+}
@@ -0,0 +1,189 @@
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Room history: opens each room's log, syncs them to disk in batches and
+ * replays them to joining users, all on a thread of its own so disk reads
+ * and fsyncs never stall a reactor
+ *
+ * Enabled by -Dchatserv.history.dir=path.
+ */
+final class
+History
+{
+        private static final Path directory = Config.HISTORY_DIR == null ? null : Paths.get(Config.HISTORY_DIR);
+
+        private static final Set<RoomLog> logs = ConcurrentHashMap.newKeySet();
+
+        private static final ScheduledExecutorService executor;
+
+        static
+        {
+                if (directory != null)
+                {
+                        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                                Thread thread = new Thread(runnable, "history");
+                                thread.setDaemon(true);
+                                return thread;
+                        });
+                        executor.scheduleWithFixedDelay(History::sync, Config.HISTORY_SYNC_MS,
+                                                        Config.HISTORY_SYNC_MS, TimeUnit.MILLISECONDS);
+                }
+                else
+                {
+                        executor = null;
+                }
+        }
+
+        private
+        History ()
+        {
+        }
+
+        /**
+         * Make a room's log, opened on the history thread; cheap enough for
+         * a reactor holding the registry lock
+         *
+         * @param room_name
+         * @return RoomLog or null if history is off
+         */
+        static RoomLog
+        open (String room_name)
+        {
+                if (directory == null)
+                {
+                        return null;
+                }
+
+                RoomLog log = new RoomLog(directory.resolve(URLEncoder.encode(room_name, StandardCharsets.UTF_8)), executor);
+                logs.add(log);
+                executor.execute(log::open);
+                return log;
+        }
+
+        /**
+         * Stop syncing a room's log, once what it holds is on disk
+         *
+         * @param log
+         */
+        static void
+        close (RoomLog log)
+        {
+                if (logs.remove(log))
+                {
+                        executor.execute(log::sync);
+                }
+        }
+
+        /**
+         * Record a message said in a room
+         *
+         * @param room
+         * @param sender
+         * @param text
+         */
+        static void
+        append (Room room, String sender, String text)
+        {
+                RoomLog log = room.get_history();
+                if (log == null)
+                {
+                        return;
+                }
+
+                log.append(System.currentTimeMillis(), sender, text);
+                Metrics.history_appended.increment();
+        }
+
+        /**
+         * Send the newest history of the room the user just joined, ahead of
+         * anything said in it from now on
+         *
+         * @param user
+         * @param room
+         */
+        static void
+        replay (User user, Room room)
+        {
+                RoomLog log = room.get_history();
+                if (log == null || Config.HISTORY_REPLAY == 0 || !user.begin_replay())
+                {
+                        return;
+                }
+
+                long mark = log.mark();
+                long start = System.nanoTime();
+                long since = Config.HISTORY_WINDOW == 0
+                             ? 0
+                             : System.currentTimeMillis() - Config.HISTORY_WINDOW * 1000L;
+
+                // One thread, so a user's replays end in the order they began,
+                // as end_replay takes them
+                executor.execute(() -> {
+                        Frame[] frames = new Frame[0];
+                        try
+                        {
+                                // Not worth it if the user already moved on
+                                if (user.is_in(room))
+                                {
+                                        List<Message> messages = log.read_last(mark, Config.HISTORY_REPLAY, since);
+                                        frames = new Frame[messages.size()];
+                                        for (int i = 0; i < frames.length; ++i)
+                                        {
+                                                Message message = user.is_multi_room()
+                                                                  ? messages.get(i).in(room.get_name())
+                                                                  : messages.get(i);
+
+                                                // Nicknames in full, as spliced frames don't
+                                                // get their IDs defined
+                                                frames[i] = user.is_binary()
+                                                            ? ChatServer.encode_binary(message, false)
+                                                            : ChatServer.encode(message);
+                                        }
+                                }
+                        }
+                        catch (RuntimeException re)
+                        {
+                                System.err.println("Error replaying history of room " + room.get_name() + ": " + re);
+                        }
+                        finally
+                        {
+                                if (user.end_replay(frames, System.nanoTime()))
+                                {
+                                        user.get_worker().schedule_flush(user);
+                                }
+                        }
+
+                        Metrics.history_replayed.add(frames.length);
+                        Metrics.replay_nanos.record(System.nanoTime() - start);
+                });
+        }
+
+        /**
+         * Force every dirty log to disk
+         */
+        private static void
+        sync ()
+        {
+                for (RoomLog log : logs)
+                {
+                        // A failure must not cancel the schedule
+                        try
+                        {
+                                log.sync();
+                        }
+                        catch (RuntimeException re)
+                        {
+                                System.err.println("Error syncing history: " + re);
+                        }
+                }
+        }
+}
@@ -0,0 +1,163 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits a connection's input into lines at the byte level
+ *
+ * Complete lines are decoded straight out of the read buffer; only the
+ * unfinished tail of a read is kept, in a buffer of our own that grows up
+ * to the maximum line length. Since decoding only ever sees whole lines, a
+ * UTF-8 sequence split across two reads is decoded correctly.
+ */
+class
+LineFramer
+{
+        private static final int INITIAL_CAPACITY = 256;
+
+        private final int max_line_length;
+
+        // Bytes of the line still being received, allocated on first use
+        private ByteBuffer partial;
+
+        // Skipping the rest of a line that was too long
+        private boolean discarding = false;
+        private boolean overflowed = false;
+
+        /**
+         * Constructor
+         *
+         * @param max_line_length
+         */
+        public LineFramer (int max_line_length)
+        {
+                this.max_line_length = max_line_length;
+        }
+
+        /**
+         * Take the next complete line out of the input
+         *
+         * When there is none, the rest of the input is kept for later and
+         * the input is left empty.
+         *
+         * @param input read buffer, between position and limit
+         * @param scratch as long as the input buffer or max_line_length,
+         * whichever is shorter, for decoding
+         * @return String the line, without its '\n', or null
+         */
+        public String
+        next_line (ByteBuffer input, byte[] scratch)
+        {
+                int start = input.position();
+                int limit = input.limit();
+
+                for (int i = start; i < limit; ++i)
+                {
+                        if (input.get(i) != '\n')
+                        {
+                                continue;
+                        }
+
+                        int length = i - start;
+                        int buffered = this.partial == null ? 0 : this.partial.position();
+                        input.position(i + 1);
+
+                        if (this.discarding || buffered + length > this.max_line_length)
+                        {
+                                // End of a line that was too long: drop it
+                                this.discarding = false;
+                                this.overflowed = true;
+                                clear_partial();
+                                start = i + 1;
+                                continue;
+                        }
+
+                        if (buffered == 0)
+                        {
+                                input.get(start, scratch, 0, length);
+                                return new String(scratch, 0, length, StandardCharsets.UTF_8);
+                        }
+
+                        keep(input, start, length);
+                        String line = new String(this.partial.array(), 0, this.partial.position(), StandardCharsets.UTF_8);
+                        clear_partial();
+                        return line;
+                }
+
+                keep(input, start, limit - start);
+                input.position(limit);
+                return null;
+        }
+
+        /**
+         * Check, and forget, whether a line was dropped for being too long
+         *
+         * @return boolean
+         */
+        public boolean
+        take_overflow ()
+        {
+                boolean overflowed = this.overflowed;
+                this.overflowed = false;
+                return overflowed;
+        }
+
+        /**
+         * Keep the start of a line until the rest of it arrives
+         *
+         * @param input
+         * @param start
+         * @param length
+         */
+        private void
+        keep (ByteBuffer input, int start, int length)
+        {
+                if (this.discarding || length == 0)
+                {
+                        return;
+                }
+
+                int buffered = this.partial == null ? 0 : this.partial.position();
+                if (buffered + length > this.max_line_length)
+                {
+                        this.discarding = true;
+                        clear_partial();
+                        return;
+                }
+
+                if (this.partial == null || this.partial.remaining() < length)
+                {
+                        int capacity = Math.max(INITIAL_CAPACITY, this.partial == null ? 0 : this.partial.capacity());
+                        while (capacity < buffered + length)
+                        {
+                                capacity *= 2;
+                        }
+
+                        ByteBuffer grown = ByteBuffer.allocate(Math.min(capacity, this.max_line_length));
+                        if (this.partial != null)
+                        {
+                                this.partial.flip();
+                                grown.put(this.partial);
+                        }
+                        this.partial = grown;
+                }
+
+                this.partial.put(this.partial.position(), input, start, length);
+                this.partial.position(buffered + length);
+        }
+
+        /**
+         * Forget the buffered line, giving back big buffers
+         */
+        private void
+        clear_partial ()
+        {
+                if (this.partial != null && this.partial.capacity() > INITIAL_CAPACITY)
+                {
+                        this.partial = null;
+                }
+                else if (this.partial != null)
+                {
+                        this.partial.clear();
+                }
+        }
+}
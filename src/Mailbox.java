@@ -0,0 +1,610 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Private messages to nicknames not in use, kept until they're next taken,
+ * all on a thread of its own so disk reads and writes never stall a
+ * reactor
+ *
+ * Mail is appended to segment files, and an index in memory points each
+ * nickname at its mail in them. Taking a nickname's mail appends a TAKEN
+ * record, so it isn't delivered again after a restart; segments are
+ * deleted oldest first once nothing in them waits, so a TAKEN record never
+ * goes before the mail it took. A nickname has at most MAILBOX_MAX
+ * messages waiting, all of them at most MAILBOX_TOTAL, and none waits
+ * longer than MAILBOX_TTL.
+ *
+ * Each record is its length, an int, then a kind byte and the time it was
+ * written, a long; MAIL then has the receiver, sender and text, TAKEN the
+ * receiver, as modified UTF-8.
+ *
+ * Enabled by -Dchatserv.mailbox.dir=path.
+ */
+final class
+Mailbox
+{
+        /**
+         * A message taken out of the mailbox
+         */
+        static final class
+        Mail
+        {
+                final String sender;
+                final String text;
+
+                /**
+                 * Constructor
+                 *
+                 * @param sender
+                 * @param text
+                 */
+                Mail (String sender, String text)
+                {
+                        this.sender = sender;
+                        this.text = text;
+                }
+        }
+
+        /**
+         * A segment file, and how many messages in it wait
+         */
+        private static final class
+        Segment
+        {
+                final long number;
+                final Path path;
+                final FileChannel channel;
+                long size;
+                int waiting = 0;
+
+                Segment (long number, Path path, FileChannel channel, long size)
+                {
+                        this.number = number;
+                        this.path = path;
+                        this.channel = channel;
+                        this.size = size;
+                }
+        }
+
+        /**
+         * Where a message waits
+         */
+        private static final class
+        Entry
+        {
+                final Segment segment;
+                final long offset;
+                final int length;
+                final long time;
+
+                Entry (Segment segment, long offset, int length, long time)
+                {
+                        this.segment = segment;
+                        this.offset = offset;
+                        this.length = length;
+                        this.time = time;
+                }
+        }
+
+        private static final byte MAIL = 0;
+        private static final byte TAKEN = 1;
+
+        // Length, kind and time
+        private static final int HEADER = 13;
+
+        private static final String SUFFIX = ".mail";
+
+        private static final Path directory = Config.MAILBOX_DIR == null ? null : Paths.get(Config.MAILBOX_DIR);
+
+        private static final long TTL_MS = Config.MAILBOX_TTL * 1000L;
+
+        // Messages waiting, by receiver and in all, counted as they're handed
+        // in so they can be refused at once
+        private static final ConcurrentHashMap<String, Integer> counts = new ConcurrentHashMap<>();
+        private static final AtomicInteger total = new AtomicInteger();
+
+        // Only used on the executor
+        private static final Map<String, ArrayDeque<Entry>> index = new HashMap<>();
+        private static final ArrayDeque<Segment> segments = new ArrayDeque<>();
+        private static final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+        private static boolean dirty = false;
+
+        private static final ScheduledExecutorService executor;
+
+        static
+        {
+                if (directory != null)
+                {
+                        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                                Thread thread = new Thread(runnable, "mailbox");
+                                thread.setDaemon(true);
+                                return thread;
+                        });
+                        executor.scheduleWithFixedDelay(Mailbox::sync, Config.MAILBOX_SYNC_MS,
+                                                        Config.MAILBOX_SYNC_MS, TimeUnit.MILLISECONDS);
+                        long expiry = Math.max(1000, Math.min(60000, TTL_MS));
+                        executor.scheduleWithFixedDelay(Mailbox::expire, expiry, expiry, TimeUnit.MILLISECONDS);
+                }
+                else
+                {
+                        executor = null;
+                }
+        }
+
+        private
+        Mailbox ()
+        {
+        }
+
+        /**
+         * Pick up the mail left by the last run, before anyone can connect
+         * to take it
+         */
+        static void
+        start ()
+        {
+                if (executor == null)
+                {
+                        return;
+                }
+
+                try
+                {
+                        executor.submit(Mailbox::load).get();
+                }
+                catch (InterruptedException | ExecutionException e)
+                {
+                        System.err.println("Error loading mailbox: " + e);
+                }
+        }
+
+        /**
+         * @return boolean true if the mailbox is on
+         */
+        static boolean
+        is_enabled ()
+        {
+                return executor != null;
+        }
+
+        /**
+         * @return int messages waiting
+         */
+        static int
+        get_waiting ()
+        {
+                return total.get();
+        }
+
+        /**
+         * Keep a message for a nickname not in use
+         *
+         * @param sender
+         * @param receiver
+         * @param text
+         * @return boolean false if the mailbox is off, or the receiver's,
+         * or all of it, is full
+         */
+        static boolean
+        store (String sender, String receiver, String text)
+        {
+                if (executor == null)
+                {
+                        return false;
+                }
+
+                int count = counts.merge(receiver, 1, Integer::sum);
+                int all = total.incrementAndGet();
+                if (count > Config.MAILBOX_MAX || all > Config.MAILBOX_TOTAL)
+                {
+                        release(receiver, 1);
+                        Metrics.mail_refused.increment();
+                        return false;
+                }
+
+                long time = System.currentTimeMillis();
+                executor.execute(() -> {
+                        try
+                        {
+                                Segment segment = current();
+                                long offset = segment.size;
+                                int length = append(MAIL, time, receiver, sender, text);
+                                index.computeIfAbsent(receiver, nickname -> new ArrayDeque<>())
+                                     .add(new Entry(segment, offset, length, time));
+                                ++segment.waiting;
+                                Metrics.mail_stored.increment();
+                        }
+                        catch (IOException ie)
+                        {
+                                release(receiver, 1);
+                                System.err.println("Error storing mail for " + receiver + ": " + ie);
+                        }
+                });
+                return true;
+        }
+
+        /**
+         * Take the mail waiting for a nickname, oldest first, off the
+         * reactors; nothing if there is none
+         *
+         * @param nickname
+         * @param action delivers it, on the mailbox's thread; false leaves
+         * it waiting
+         */
+        static void
+        take (String nickname, Predicate<List<Mail>> action)
+        {
+                if (executor == null || !counts.containsKey(nickname))
+                {
+                        return;
+                }
+
+                executor.execute(() -> {
+                        ArrayDeque<Entry> entries = index.get(nickname);
+                        if (entries == null)
+                        {
+                                return;
+                        }
+
+                        List<Mail> mail = new ArrayList<>(entries.size());
+                        try
+                        {
+                                for (Entry entry : entries)
+                                {
+                                        mail.add(read(entry));
+                                }
+                        }
+                        catch (IOException ie)
+                        {
+                                System.err.println("Error reading mail for " + nickname + ": " + ie);
+                                return;
+                        }
+                        if (!action.test(mail))
+                        {
+                                return;
+                        }
+
+                        index.remove(nickname);
+                        for (Entry entry : entries)
+                        {
+                                --entry.segment.waiting;
+                        }
+                        release(nickname, entries.size());
+                        Metrics.mail_delivered.add(entries.size());
+
+                        try
+                        {
+                                current();
+                                append(TAKEN, System.currentTimeMillis(), nickname, null, null);
+                        }
+                        catch (IOException ie)
+                        {
+                                System.err.println("Error recording mail taken by " + nickname + ": " + ie);
+                        }
+                        drop();
+                });
+        }
+
+        /**
+         * @param receiver
+         * @param n messages no longer waiting for it
+         */
+        private static void
+        release (String receiver, int n)
+        {
+                counts.merge(receiver, -n, (count, less) -> count + less <= 0 ? null : count + less);
+                total.addAndGet(-n);
+        }
+
+        /**
+         * @return Segment the one written to, after starting a new one if
+         * it's full
+         * @throws IOException
+         */
+        private static Segment
+        current ()
+        throws IOException
+        {
+                Segment last = segments.peekLast();
+                if (last != null && last.size < Config.MAILBOX_SEGMENT_BYTES)
+                {
+                        return last;
+                }
+                if (last != null)
+                {
+                        // Only the last one is synced from now on
+                        last.channel.force(false);
+                }
+                return open(last == null ? 0 : last.number + 1);
+        }
+
+        /**
+         * @param number
+         * @return Segment a new, empty one, now the last
+         * @throws IOException
+         */
+        private static Segment
+        open (long number)
+        throws IOException
+        {
+                Path path = directory.resolve(String.format("%016d", number) + SUFFIX);
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                       StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                Segment segment = new Segment(number, path, channel, 0);
+                segments.add(segment);
+                return segment;
+        }
+
+        /**
+         * Append a record to the last segment
+         *
+         * @param kind
+         * @param time
+         * @param receiver
+         * @param sender for MAIL
+         * @param text for MAIL
+         * @return int its length
+         * @throws IOException
+         */
+        private static int
+        append (byte kind, long time, String receiver, String sender, String text)
+        throws IOException
+        {
+                record.reset();
+                DataOutputStream out = new DataOutputStream(record);
+                out.writeInt(0);
+                out.writeByte(kind);
+                out.writeLong(time);
+                out.writeUTF(receiver);
+                if (kind == MAIL)
+                {
+                        out.writeUTF(sender);
+                        out.writeUTF(text);
+                }
+
+                ByteBuffer bytes = ByteBuffer.wrap(record.toByteArray());
+                bytes.putInt(0, bytes.limit() - 4);
+
+                Segment segment = segments.getLast();
+                while (bytes.hasRemaining())
+                {
+                        segment.size += segment.channel.write(bytes, segment.size);
+                }
+                dirty = true;
+                return bytes.limit();
+        }
+
+        /**
+         * @param entry
+         * @return Mail
+         * @throws IOException
+         */
+        private static Mail
+        read (Entry entry)
+        throws IOException
+        {
+                ByteBuffer bytes = ByteBuffer.allocate(entry.length);
+                while (bytes.hasRemaining())
+                {
+                        if (entry.segment.channel.read(bytes, entry.offset + bytes.position()) < 0)
+                        {
+                                throw new EOFException(entry.segment.path.toString());
+                        }
+                }
+
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.array(), HEADER, entry.length - HEADER));
+                in.readUTF();
+                String sender = in.readUTF();
+                return new Mail(sender, in.readUTF());
+        }
+
+        /**
+         * Rebuild the index from the segments left by the last run
+         */
+        private static void
+        load ()
+        {
+                long start = System.nanoTime();
+                try
+                {
+                        Files.createDirectories(directory);
+                        List<Path> paths = new ArrayList<>();
+                        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX))
+                        {
+                                stream.forEach(paths::add);
+                        }
+                        paths.sort(null);
+
+                        long now = System.currentTimeMillis();
+                        for (Path path : paths)
+                        {
+                                String name = path.getFileName().toString();
+                                long number = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                                FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                                Segment segment = new Segment(number, path, channel, 0);
+                                segments.add(segment);
+                                scan(segment, now);
+                        }
+                        drop();
+                }
+                catch (IOException | NumberFormatException e)
+                {
+                        System.err.println("Error loading mailbox: " + e);
+                }
+
+                if (total.get() > 0)
+                {
+                        System.out.println("Mailbox has " + total.get() + " messages for " + index.size()
+                                           + " nicknames, loaded in " + (System.nanoTime() - start) / 1000000 + " ms");
+                }
+        }
+
+        /**
+         * Index a segment's records, cutting off a last one only partly
+         * written
+         *
+         * @param segment
+         * @param now
+         * @throws IOException
+         */
+        private static void
+        scan (Segment segment, long now)
+        throws IOException
+        {
+                long size = segment.channel.size();
+                ByteBuffer data = ByteBuffer.allocate((int) size);
+                while (data.hasRemaining())
+                {
+                        if (segment.channel.read(data, data.position()) < 0)
+                        {
+                                break;
+                        }
+                }
+                data.flip();
+
+                while (data.remaining() >= 4)
+                {
+                        long offset = data.position();
+                        int length = data.getInt() + 4;
+                        if (length < HEADER || length - 4 > data.remaining())
+                        {
+                                break;
+                        }
+
+                        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data.array(), (int) offset + 4, length - 4));
+                        byte kind = in.readByte();
+                        long time = in.readLong();
+                        String receiver = in.readUTF();
+                        data.position((int) offset + length);
+
+                        if (kind == TAKEN)
+                        {
+                                ArrayDeque<Entry> entries = index.remove(receiver);
+                                if (entries != null)
+                                {
+                                        for (Entry entry : entries)
+                                        {
+                                                --entry.segment.waiting;
+                                        }
+                                        release(receiver, entries.size());
+                                }
+                        }
+                        else if (time + TTL_MS > now)
+                        {
+                                index.computeIfAbsent(receiver, nickname -> new ArrayDeque<>())
+                                     .add(new Entry(segment, offset, length, time));
+                                ++segment.waiting;
+                                counts.merge(receiver, 1, Integer::sum);
+                                total.incrementAndGet();
+                        }
+                }
+
+                segment.size = data.position();
+                if (segment.size < size)
+                {
+                        segment.channel.truncate(segment.size);
+                }
+        }
+
+        /**
+         * Forget mail waiting longer than MAILBOX_TTL
+         */
+        private static void
+        expire ()
+        {
+                long oldest = System.currentTimeMillis() - TTL_MS;
+                int expired = 0;
+                for (Iterator<Map.Entry<String, ArrayDeque<Entry>>> i = index.entrySet().iterator(); i.hasNext(); )
+                {
+                        Map.Entry<String, ArrayDeque<Entry>> mail = i.next();
+                        ArrayDeque<Entry> entries = mail.getValue();
+                        int n = 0;
+                        while (!entries.isEmpty() && entries.peekFirst().time <= oldest)
+                        {
+                                --entries.pollFirst().segment.waiting;
+                                ++n;
+                        }
+                        if (n > 0)
+                        {
+                                release(mail.getKey(), n);
+                                expired += n;
+                        }
+                        if (entries.isEmpty())
+                        {
+                                i.remove();
+                        }
+                }
+
+                Metrics.mail_expired.add(expired);
+                drop();
+        }
+
+        /**
+         * Delete the oldest segments, as long as nothing in them waits; the
+         * last one is still written to
+         */
+        private static void
+        drop ()
+        {
+                while (segments.size() > 1 && segments.peekFirst().waiting == 0)
+                {
+                        Segment segment = segments.pollFirst();
+                        try
+                        {
+                                segment.channel.close();
+                                Files.deleteIfExists(segment.path);
+                        }
+                        catch (IOException ie)
+                        {
+                                System.err.println("Error deleting mailbox segment " + segment.path + ": " + ie);
+                        }
+                }
+        }
+
+        /**
+         * Force what was written to disk
+         */
+        private static void
+        sync ()
+        {
+                if (!dirty)
+                {
+                        return;
+                }
+
+                // A failure must not cancel the schedule
+                try
+                {
+                        segments.getLast().channel.force(false);
+                        dirty = false;
+                }
+                catch (IOException | RuntimeException e)
+                {
+                        System.err.println("Error syncing mailbox: " + e);
+                }
+        }
+}
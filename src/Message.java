@@ -1,12 +1,13 @@
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.util.function.Function;
 
 /**
  * Type of the Message
  */
 enum MessageType
 {
-        OK, ERROR, MESSAGE, NEW_NICKNAME, JOINED, LEFT, BYE, PRIVATE
+        OK, ERROR, MESSAGE, NEW_NICKNAME, JOINED, LEFT, BYE, PRIVATE, PING, RESUME
 }
 
 /**
@@ -15,23 +16,30 @@ enum MessageType
 public class
 Message
 {
-        public static final String REGEX_NICKNAME = "([^ .]+)";
-        public static final String REGEX_ROOM_NAME = "([^ .]+)";
-        public static final String REGEX_TEXT = "(.*)";
-        // Regex for command process
-        private static final String REGEX_CMD_OK = "OK";
-        private static final String REGEX_CMD_ERROR = "ERROR";
-        private static final String REGEX_CMD_MESSAGE = "MESSAGE " + REGEX_NICKNAME + " " + REGEX_TEXT;
-        private static final String REGEX_CMD_NEW_NICKNAME = "NEWNICK " + REGEX_NICKNAME + " " + REGEX_NICKNAME;
-        private static final String REGEX_CMD_JOINED = "JOINED " + REGEX_NICKNAME;
-        private static final String REGEX_CMD_LEFT = "LEFT " + REGEX_NICKNAME;
-        private static final String REGEX_CMD_BYE = "BYE";
-        private static final String REGEX_CMD_PRIVATE = "PRIVATE " + REGEX_NICKNAME + " " + REGEX_TEXT;
+        // Grammar for command process, tried in this order
+        private static final Grammar<MessageType> REPLIES = new Grammar<MessageType>(10)
+                .verb("OK", Grammar.Shape.EXACT, MessageType.OK)
+                .verb("ERROR", Grammar.Shape.EXACT, MessageType.ERROR)
+                .verb("MESSAGE ", Grammar.Shape.NAME_TEXT, MessageType.MESSAGE)
+                .verb("NEWNICK ", Grammar.Shape.NAME_NAME, MessageType.NEW_NICKNAME)
+                .verb("JOINED ", Grammar.Shape.NAME, MessageType.JOINED)
+                .verb("LEFT ", Grammar.Shape.NAME, MessageType.LEFT)
+                .verb("BYE", Grammar.Shape.EXACT, MessageType.BYE)
+                .verb("PRIVATE ", Grammar.Shape.NAME_TEXT, MessageType.PRIVATE)
+                .verb("PING", Grammar.Shape.EXACT, MessageType.PING)
+                .verb("RESUME ", Grammar.Shape.NAME, MessageType.RESUME);
+        private static final MessageType[] TYPES = MessageType.values();
+
+        // Put ahead of what's said in a room, for clients in several
+        private static final String ROOM_TAG = "IN ";
+
         private final MessageType type;
         // There are no getters for these two attributes, refer to toString
+        // and to_binary
         private final String token1;
         private final String token2;
-
+        // Room it's from, for clients in several, or ""
+        private final String room;
 
         /**
          * Constructor
@@ -43,6 +51,7 @@ Message
                 this.type = type;
                 this.token1 = "";
                 this.token2 = "";
+                this.room = "";
         }
 
         /**
@@ -56,6 +65,7 @@ Message
                 this.type = type;
                 this.token1 = token1;
                 this.token2 = "";
+                this.room = "";
         }
 
         /**
@@ -70,6 +80,33 @@ Message
                 this.type = type;
                 this.token1 = token1;
                 this.token2 = token2;
+                this.room = "";
+        }
+
+        /**
+         * Constructor
+         *
+         * @param type
+         * @param token1
+         * @param token2
+         * @param room
+         */
+        private Message (MessageType type, String token1, String token2, String room)
+        {
+                this.type = type;
+                this.token1 = token1;
+                this.token2 = token2;
+                this.room = room;
+        }
+
+        /**
+         * @param room
+         * @return Message the same, tagged with the room it's from
+         */
+        public Message
+        in (String room)
+        {
+                return new Message(this.type, this.token1, this.token2, room);
         }
 
         /**
@@ -83,57 +120,106 @@ Message
         public static Message
         parse_string (String text)
         {
-                MessageType type;
-                Matcher tokens;
+                int[] tokens = new int[4];
                 String token1 = "";
                 String token2 = "";
 
-                if (Pattern.matches(REGEX_CMD_OK, text))
+                // Said in one of several rooms, by a tag ahead of it
+                String room = "";
+                int from = 0;
+                if (text.startsWith(ROOM_TAG))
                 {
-                        type = MessageType.OK;
+                        int end = text.indexOf(' ', ROOM_TAG.length());
+                        if (end > ROOM_TAG.length())
+                        {
+                                room = text.substring(ROOM_TAG.length(), end);
+                                from = end + 1;
+                        }
                 }
-                else if (Pattern.matches(REGEX_CMD_ERROR, text))
+
+                MessageType type = REPLIES.match(text, from, text.length(), tokens);
+                if (type == null)
                 {
                         type = MessageType.ERROR;
                 }
-                else if ((tokens = Pattern.compile(REGEX_CMD_MESSAGE).matcher(text)).find())
-                {
-                        type = MessageType.MESSAGE;
-                        token1 = tokens.group(1); // Emitter
-                        token2 = tokens.group(2); // Message
-                }
-                else if ((tokens = Pattern.compile(REGEX_CMD_NEW_NICKNAME).matcher(text)).find())
-                {
-                        type = MessageType.NEW_NICKNAME;
-                        token1 = tokens.group(1); // Old nickname
-                        token2 = tokens.group(2); // New nickname
-                }
-                else if ((tokens = Pattern.compile(REGEX_CMD_JOINED).matcher(text)).find())
+
+                switch (type)
                 {
-                        type = MessageType.JOINED;
-                        token1 = tokens.group(1);
+                        case MESSAGE:
+                        case NEW_NICKNAME:
+                        case PRIVATE:
+                                token1 = text.substring(tokens[0], tokens[1]); // Emitter, or old nickname
+                                token2 = text.substring(tokens[2], tokens[3]); // Message, or new nickname
+                                break;
+                        case JOINED:
+                        case LEFT:
+                        case RESUME:
+                                token1 = text.substring(tokens[0], tokens[1]);
+                                break;
+                        default:
+                                break;
                 }
-                else if ((tokens = Pattern.compile(REGEX_CMD_LEFT).matcher(text)).find())
+
+                return new Message(type, token1, token2, room);
+        }
+
+        /**
+         * Message from a frame of the binary protocol
+         * ONLY TO BE USED BY CHAT CLIENT
+         *
+         * @param body the frame, without its length
+         * @param names the nicknames and room names defined so far, by slot
+         * @param scratch for bodies without an array, as long as they are
+         * @return Message or null for a name definition, which goes into
+         * names
+         * @throws IllegalArgumentException if the frame is malformed
+         */
+        public static Message
+        parse_binary (ByteBuffer body, Name[] names, byte[] scratch)
+        {
+                int type = body.get() & 0xff;
+                if (type == BinaryProtocol.DEFINE)
                 {
-                        type = MessageType.LEFT;
-                        token1 = tokens.group(1);
+                        int id = BinaryProtocol.get_varint(body);
+                        names[id & (BinaryProtocol.NAME_SLOTS - 1)] = new Name(id, BinaryProtocol.get_string(body, scratch));
+                        return null;
                 }
-                else if (Pattern.matches(REGEX_CMD_BYE, text))
+                String room = "";
+                if (type == BinaryProtocol.ROOM)
                 {
-                        type = MessageType.BYE;
+                        room = BinaryProtocol.get_name(body, names, scratch);
+                        type = body.get() & 0xff;
                 }
-                else  if ((tokens = Pattern.compile(REGEX_CMD_PRIVATE).matcher(text)).find())
+                if (type >= TYPES.length)
                 {
-                        type = MessageType.PRIVATE;
-                        token1 = tokens.group(1); // Emitter
-                        token2 = tokens.group(2); // Message
+                        throw new IllegalArgumentException("Unknown frame type " + type);
                 }
-                else
+
+                String token1 = "";
+                String token2 = "";
+                switch (TYPES[type])
                 {
-                        type = MessageType.ERROR;
+                        case ERROR:
+                        case RESUME:
+                                token1 = BinaryProtocol.get_string(body, scratch);
+                                break;
+                        case JOINED:
+                        case LEFT:
+                                token1 = BinaryProtocol.get_name(body, names, scratch);
+                                break;
+                        case NEW_NICKNAME:
+                                token1 = BinaryProtocol.get_name(body, names, scratch);
+                                token2 = BinaryProtocol.get_name(body, names, scratch);
+                                break;
+                        case MESSAGE:
+                        case PRIVATE:
+                                token1 = BinaryProtocol.get_name(body, names, scratch);
+                                token2 = BinaryProtocol.get_string(body, scratch);
+                                break;
+                        default:
+                                break;
                 }
-
-                return new Message(type, token1, token2);
+                return new Message(TYPES[type], token1, token2, room);
         }
 
         /**
@@ -145,6 +231,15 @@ Message
                 return this.type;
         }
 
+        /**
+         * @return String room it's from, or "" if it's not tagged with one
+         */
+        public String
+        get_room ()
+        {
+                return this.room;
+        }
+
         /**
          * @return String
          */
@@ -239,8 +334,120 @@ Message
                                         output = "PRIVATE " + this.token1 + " " + this.token2;
                                 }
                                 break;
+                        case PING:
+                                if (pretty)
+                                {
+                                        output = "Are you there?";
+                                } else
+                                {
+                                        output = "PING";
+                                }
+                                break;
+                        case RESUME:
+                                if (pretty)
+                                {
+                                        output = "Server restarting, reconnecting...";
+                                }
+                                else
+                                {
+                                        output = "RESUME " + this.token1;
+                                }
+                                break;
                 }
 
+                if (!this.room.isEmpty())
+                {
+                        output = (pretty ? "[" + this.room + "] " : ROOM_TAG + this.room + " ") + output;
+                }
                 return output + "\n";
         }
+
+        /**
+         * @param max_bytes_per_char of the encoder to_binary is given
+         * @return int most bytes to_binary can take
+         */
+        public int
+        binary_capacity (float max_bytes_per_char)
+        {
+                return BinaryProtocol.HEADER_MAX * 4 + 2
+                       + (int) ((this.token1.length() + this.token2.length() + this.room.length()) * max_bytes_per_char);
+        }
+
+        /**
+         * Serialize as a frame of the binary protocol
+         *
+         * @param out cleared, with room for binary_capacity() bytes; left
+         * bounded to the frame
+         * @param encoder
+         * @param names the interned name of a nickname, or null to send the
+         * nickname itself
+         * @param rooms the same for the name of a room
+         * @param used receives the names sent by ID, which the receiver must
+         * have been told; room for three
+         * @return int how many there are
+         */
+        public int
+        to_binary (ByteBuffer out, CharsetEncoder encoder, Function<String, Name> names,
+                   Function<String, Name> rooms, Name[] used)
+        {
+                int count = 0;
+
+                if (this.room.isEmpty())
+                {
+                        BinaryProtocol.begin_frame(out, this.type.ordinal());
+                }
+                else
+                {
+                        BinaryProtocol.begin_frame(out, BinaryProtocol.ROOM);
+                        count = put_name(out, encoder, this.room, rooms, used, count);
+                        out.put((byte) this.type.ordinal());
+                }
+                switch (this.type)
+                {
+                        case ERROR:
+                        case RESUME:
+                                BinaryProtocol.put_string(out, encoder, this.token1);
+                                break;
+                        case JOINED:
+                        case LEFT:
+                                count = put_name(out, encoder, this.token1, names, used, count);
+                                break;
+                        case NEW_NICKNAME:
+                                count = put_name(out, encoder, this.token1, names, used, count);
+                                count = put_name(out, encoder, this.token2, names, used, count);
+                                break;
+                        case MESSAGE:
+                        case PRIVATE:
+                                count = put_name(out, encoder, this.token1, names, used, count);
+                                BinaryProtocol.put_string(out, encoder, this.token2);
+                                break;
+                        default:
+                                break;
+                }
+                BinaryProtocol.end_frame(out);
+
+                return count;
+        }
+
+        /**
+         * @param out
+         * @param encoder
+         * @param text a nickname or room name
+         * @param names
+         * @param used
+         * @param count names in used so far
+         * @return int names in used now
+         */
+        private static int
+        put_name (ByteBuffer out, CharsetEncoder encoder, String text,
+                  Function<String, Name> names, Name[] used, int count)
+        {
+                Name name = names.apply(text);
+                BinaryProtocol.put_name(out, encoder, text, name);
+                if (name != null)
+                {
+                        used[count++] = name;
+                }
+                return count;
+        }
 }
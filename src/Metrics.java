@@ -0,0 +1,255 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server counters and histograms, served as plain text on a local HTTP port
+ *
+ * Recording is allocation-free: counters are LongAdders, so the reactors
+ * don't contend on them, and histograms are fixed arrays of buckets.
+ */
+final class
+Metrics
+{
+        static final LongAdder connections_accepted = new LongAdder();
+        static final LongAdder connections_closed = new LongAdder();
+        static final LongAdder connections_rejected = new LongAdder();
+        static final LongAdder connections_rejected_ip = new LongAdder();
+        static final LongAdder bytes_in = new LongAdder();
+        static final LongAdder bytes_out = new LongAdder();
+        static final LongAdder writes = new LongAdder();
+
+        // Indexed by CommandType ordinal
+        static final LongAdder[] commands = new LongAdder[CommandType.values().length];
+        static final LongAdder unknown_commands = new LongAdder();
+        static final LongAdder public_messages = new LongAdder();
+        static final LongAdder lines_too_long = new LongAdder();
+
+        static final LongAdder broadcasts = new LongAdder();
+        static final LongAdder reads_suspended = new LongAdder();
+        static final LongAdder slow_clients = new LongAdder();
+        static final LongAdder idle_pings = new LongAdder();
+        static final LongAdder idle_evictions = new LongAdder();
+        static final LongAdder limited_lines = new LongAdder();
+        static final LongAdder limited_commands = new LongAdder();
+        static final LongAdder limited_room_messages = new LongAdder();
+        static final LongAdder limited_suspensions = new LongAdder();
+        static final LongAdder pool_leaks = new LongAdder();
+        static final LongAdder history_appended = new LongAdder();
+        static final LongAdder history_replayed = new LongAdder();
+        static final LongAdder deflate_bytes_in = new LongAdder();
+        static final LongAdder deflate_bytes_out = new LongAdder();
+        static final LongAdder cluster_frames_out = new LongAdder();
+        static final LongAdder cluster_frames_in = new LongAdder();
+        static final LongAdder cluster_bytes_out = new LongAdder();
+        static final LongAdder cluster_dropped = new LongAdder();
+        static final LongAdder cluster_claim_timeouts = new LongAdder();
+        static final LongAdder resumed = new LongAdder();
+        static final LongAdder mail_stored = new LongAdder();
+        static final LongAdder mail_delivered = new LongAdder();
+        static final LongAdder mail_expired = new LongAdder();
+        static final LongAdder mail_refused = new LongAdder();
+
+        // Framing, decoding and matching one line
+        static final Histogram parse_nanos = new Histogram();
+
+        // From a frame being queued to the flush that finished writing it
+        static final Histogram delivery_nanos = new Histogram();
+
+        // From a join to its history being queued
+        static final Histogram replay_nanos = new Histogram();
+
+        // From the acceptor waking up to a connection being handed over
+        static final Histogram accept_nanos = new Histogram();
+
+        // Recipients per broadcast
+        static final Histogram fanout = new Histogram();
+
+        // Compressing a frame, and its compressed size against the original
+        static final Histogram deflate_nanos = new Histogram();
+        static final Histogram deflate_percent = new Histogram();
+
+        // Frames handed to each gathering write
+        static final Histogram write_frames = new Histogram();
+
+        // Bytes left queued by flushes that couldn't write everything
+        static final Histogram write_backlog_bytes = new Histogram();
+
+        private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+        static
+        {
+                for (int i = 0; i < commands.length; ++i)
+                {
+                        commands[i] = new LongAdder();
+                }
+        }
+
+        private
+        Metrics ()
+        {
+        }
+
+        /**
+         * Serve the metrics on the loopback interface, at /metrics
+         *
+         * @param port
+         * @throws IOException
+         */
+        static void
+        start (int port)
+        throws IOException
+        {
+                HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+                server.createContext("/metrics", Metrics::handle);
+                server.start();
+                System.out.println("Metrics on http://" + server.getAddress().getHostString() + ":"
+                                   + server.getAddress().getPort() + "/metrics");
+        }
+
+        /**
+         * @param exchange
+         * @throws IOException
+         */
+        private static void
+        handle (HttpExchange exchange)
+        throws IOException
+        {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody())
+                {
+                        out.write(body);
+                }
+        }
+
+        /**
+         * @return String every metric, in the Prometheus text format
+         */
+        static String
+        render ()
+        {
+                StringBuilder out = new StringBuilder(4096);
+
+                long accepted = connections_accepted.sum();
+                long closed = connections_closed.sum();
+                gauge(out, "connections_open", accepted - closed);
+                counter(out, "connections_accepted_total", accepted);
+                counter(out, "connections_closed_total", closed);
+                counter(out, "connections_rejected_total", connections_rejected.sum());
+                counter(out, "connections_rejected_ip_total", connections_rejected_ip.sum());
+                counter(out, "bytes_in_total", bytes_in.sum());
+                counter(out, "bytes_out_total", bytes_out.sum());
+                counter(out, "writes_total", writes.sum());
+
+                out.append("# TYPE chatserv_commands_total counter\n");
+                for (CommandType command : CommandType.values())
+                {
+                        out.append("chatserv_commands_total{command=\"")
+                           .append(command.name().toLowerCase(Locale.ROOT))
+                           .append("\"} ")
+                           .append(commands[command.ordinal()].sum())
+                           .append('\n');
+                }
+                counter(out, "unknown_commands_total", unknown_commands.sum());
+                counter(out, "public_messages_total", public_messages.sum());
+                counter(out, "lines_too_long_total", lines_too_long.sum());
+
+                counter(out, "broadcasts_total", broadcasts.sum());
+                counter(out, "reads_suspended_total", reads_suspended.sum());
+                counter(out, "slow_clients_total", slow_clients.sum());
+                counter(out, "idle_pings_total", idle_pings.sum());
+                counter(out, "idle_evictions_total", idle_evictions.sum());
+                counter(out, "limited_lines_total", limited_lines.sum());
+                counter(out, "limited_commands_total", limited_commands.sum());
+                counter(out, "limited_room_messages_total", limited_room_messages.sum());
+                counter(out, "limited_suspensions_total", limited_suspensions.sum());
+
+                gauge(out, "pool_leased_bytes", BufferPool.get_leased_bytes());
+                gauge(out, "pool_idle_bytes", BufferPool.get_idle_bytes());
+                counter(out, "pool_allocations_total", BufferPool.get_allocations());
+                counter(out, "pool_oversized_total", BufferPool.get_oversized());
+                counter(out, "pool_leaks_total", pool_leaks.sum());
+                counter(out, "history_appended_total", history_appended.sum());
+                counter(out, "history_replayed_total", history_replayed.sum());
+                gauge(out, "cluster_nodes_up", Cluster.get_nodes_up());
+                counter(out, "cluster_frames_out_total", cluster_frames_out.sum());
+                counter(out, "cluster_frames_in_total", cluster_frames_in.sum());
+                counter(out, "cluster_bytes_out_total", cluster_bytes_out.sum());
+                counter(out, "cluster_dropped_total", cluster_dropped.sum());
+                counter(out, "cluster_claim_timeouts_total", cluster_claim_timeouts.sum());
+                gauge(out, "snapshot_restore_millis", Snapshot.get_restore_millis());
+                counter(out, "resumed_total", resumed.sum());
+                gauge(out, "mail_waiting", Mailbox.get_waiting());
+                counter(out, "mail_stored_total", mail_stored.sum());
+                counter(out, "mail_delivered_total", mail_delivered.sum());
+                counter(out, "mail_expired_total", mail_expired.sum());
+                counter(out, "mail_refused_total", mail_refused.sum());
+
+                summary(out, "accept_nanos", accept_nanos);
+                summary(out, "parse_nanos", parse_nanos);
+                summary(out, "delivery_nanos", delivery_nanos);
+                summary(out, "replay_nanos", replay_nanos);
+                summary(out, "fanout", fanout);
+                counter(out, "deflate_bytes_in_total", deflate_bytes_in.sum());
+                counter(out, "deflate_bytes_out_total", deflate_bytes_out.sum());
+                summary(out, "deflate_nanos", deflate_nanos);
+                summary(out, "deflate_percent", deflate_percent);
+                summary(out, "write_frames", write_frames);
+                summary(out, "write_backlog_bytes", write_backlog_bytes);
+
+                return out.toString();
+        }
+
+        /**
+         * @param out
+         * @param name
+         * @param value
+         */
+        private static void
+        counter (StringBuilder out, String name, long value)
+        {
+                out.append("# TYPE chatserv_").append(name).append(" counter\n");
+                out.append("chatserv_").append(name).append(' ').append(value).append('\n');
+        }
+
+        /**
+         * @param out
+         * @param name
+         * @param value
+         */
+        private static void
+        gauge (StringBuilder out, String name, long value)
+        {
+                out.append("# TYPE chatserv_").append(name).append(" gauge\n");
+                out.append("chatserv_").append(name).append(' ').append(value).append('\n');
+        }
+
+        /**
+         * @param out
+         * @param name
+         * @param histogram
+         */
+        private static void
+        summary (StringBuilder out, String name, Histogram histogram)
+        {
+                out.append("# TYPE chatserv_").append(name).append(" summary\n");
+                for (double quantile : QUANTILES)
+                {
+                        out.append("chatserv_").append(name)
+                           .append("{quantile=\"").append(quantile).append("\"} ")
+                           .append(histogram.get_percentile(quantile))
+                           .append('\n');
+                }
+                out.append("chatserv_").append(name).append("_sum ").append(histogram.get_sum()).append('\n');
+                out.append("chatserv_").append(name).append("_count ").append(histogram.get_count()).append('\n');
+                gauge(out, name + "_max", histogram.get_max());
+        }
+}
@@ -0,0 +1,58 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A nickname, or room name, interned for the binary protocol, which sends
+ * its ID in place of the name to receivers that have been told it
+ *
+ * IDs are never reused, so a receiver can't mistake one name for another
+ * that took its ID.
+ */
+final class
+Name
+{
+        private static final AtomicInteger next_id = new AtomicInteger();
+
+        private final int id;
+        private final String text;
+
+        /**
+         * Constructor, for the server: a new ID
+         *
+         * @param text
+         */
+        public Name (String text)
+        {
+                // Kept non-negative, so it fits the shortest varints
+                this(next_id.getAndIncrement() & Integer.MAX_VALUE, text);
+        }
+
+        /**
+         * Constructor, for a client: the ID the server gave it
+         *
+         * @param id
+         * @param text
+         */
+        public Name (int id, String text)
+        {
+                this.id = id;
+                this.text = text;
+        }
+
+        /**
+         * @return int
+         */
+        public int
+        get_id ()
+        {
+                return this.id;
+        }
+
+        /**
+         * @return String
+         */
+        public String
+        get_text ()
+        {
+                return this.text;
+        }
+}
@@ -0,0 +1,529 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A worker selector: owns a subset of the client connections and runs
+ * their reads and command processing on its own thread
+ */
+class
+Reactor
+implements Runnable, Worker
+{
+        private static final long FLUSH_LATENCY_NANOS = Config.FLUSH_LATENCY_US * 1000L;
+
+        // A pre-allocated buffer for the received data, one per reactor; direct,
+        // so reads don't go through a temporary copy
+        private final ByteBuffer buffer = BufferPool.lease(16384);
+
+        // Where complete lines are copied to be decoded
+        private final byte[] line_bytes = new byte[Config.MAX_LINE_LENGTH];
+
+        // Token bounds filled in by the command grammar
+        private final int[] tokens = new int[4];
+        private final Slice slice = new Slice();
+
+        private final Selector selector;
+
+        // Channels handed over by the acceptor, registered on our own thread
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger connections = new AtomicInteger();
+
+        // Users with queued output, flushed at the end of each loop pass
+        private final Queue<User> flushes = new ConcurrentLinkedQueue<>();
+        private volatile Thread thread;
+
+        // Idle timeouts of our users, or null when they're off
+        private final TimingWheel wheel = ChatServer.new_idle_wheel();
+
+        // Users not read from for going over a rate limit; all for the same
+        // penalty, so in the order they resume in
+        private final ArrayDeque<User> suspended = new ArrayDeque<>();
+
+        // Run on our thread for users whose reads were held, from any thread
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Constructor
+         *
+         * @throws IOException
+         */
+        public Reactor ()
+        throws IOException
+        {
+                this.selector = Selector.open();
+        }
+
+        /**
+         * Hand a freshly accepted channel to this reactor, which picks it up
+         * once woken up
+         *
+         * @param sc
+         */
+        public void
+        register (SocketChannel sc)
+        {
+                this.connections.incrementAndGet();
+                this.pending.add(sc);
+        }
+
+        /**
+         * Wake up to pick up the channels handed over
+         */
+        public void
+        wakeup ()
+        {
+                this.selector.wakeup();
+        }
+
+        /**
+         * Called once a connection owned by this reactor is closed
+         */
+        private void
+        unregister ()
+        {
+                this.connections.decrementAndGet();
+        }
+
+        /**
+         * Ask for a user's output queue to be flushed by this reactor
+         *
+         * @param user
+         */
+        @Override
+        public void
+        schedule_flush (User user)
+        {
+                this.flushes.add(user);
+                if (Thread.currentThread() != this.thread)
+                {
+                        this.selector.wakeup();
+                }
+        }
+
+        /**
+         * @return int number of connections currently owned
+         */
+        public int
+        get_connections ()
+        {
+                return this.connections.get();
+        }
+
+        /**
+         * @param user
+         * @param until
+         */
+        @Override
+        public void
+        suspend_reads (User user, long until)
+        {
+                SelectionKey key = user.get_key();
+                if (key == null || !key.isValid())
+                {
+                        return;
+                }
+
+                user.suspend_reads(until);
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                this.suspended.add(user);
+        }
+
+        /**
+         * @param user
+         */
+        @Override
+        public void
+        hold_reads (User user)
+        {
+                SelectionKey key = user.get_key();
+                if (key != null && key.isValid())
+                {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+        }
+
+        /**
+         * @param user
+         * @param task
+         */
+        @Override
+        public void
+        release_reads (User user, Runnable task)
+        {
+                this.tasks.add(() -> {
+                        task.run();
+
+                        // Read from again unless it's behind on its output
+                        flush(user, System.nanoTime());
+                });
+                if (Thread.currentThread() != this.thread)
+                {
+                        this.selector.wakeup();
+                }
+        }
+
+        /**
+         * Last chance for the queued output, then close the connection
+         *
+         * @param user
+         */
+        @Override
+        public void
+        close (User user)
+        {
+                SelectionKey key = user.get_key();
+                if (key != null)
+                {
+                        key.cancel();
+                }
+
+                try
+                {
+                        user.flush(System.nanoTime());
+                }
+                catch (IOException ie)
+                {
+                        // Nothing more can be delivered
+                }
+                user.close_outbound();
+                unregister();
+                if (this.wheel != null)
+                {
+                        this.wheel.cancel(user.get_timeout());
+                }
+
+                SocketChannel sc = user.get_socket();
+                Socket s = sc.socket();
+                Admission.release(s.getInetAddress());
+                try
+                {
+                        if (Config.LOG_CONNECTIONS)
+                        {
+                                System.out.println("Closing connection to " + s);
+                        }
+                        sc.close();
+                }
+                catch (IOException ie)
+                {
+                        System.err.println("Error closing socket " + s + ": " + ie);
+                }
+        }
+
+        /**
+         * @return ByteBuffer
+         */
+        @Override
+        public ByteBuffer
+        get_buffer ()
+        {
+                return this.buffer;
+        }
+
+        /**
+         * @return byte[]
+         */
+        @Override
+        public byte[]
+        get_line_bytes ()
+        {
+                return this.line_bytes;
+        }
+
+        /**
+         * @return int[]
+         */
+        @Override
+        public int[]
+        get_tokens ()
+        {
+                return this.tokens;
+        }
+
+        /**
+         * @return Slice
+         */
+        @Override
+        public Slice
+        get_slice ()
+        {
+                return this.slice;
+        }
+
+        /**
+         * Event loop
+         */
+        @Override
+        public void
+        run ()
+        {
+                this.thread = Thread.currentThread();
+
+                try
+                {
+                        long timeout = 0;
+                        while (true)
+                        {
+                                this.selector.select(timeout);
+                                register_pending();
+                                run_tasks();
+
+                                // Output queued while handling the keys goes out in
+                                // one gathering write per user at the end of the pass,
+                                // or sooner if the pass runs long
+                                long start = System.nanoTime();
+                                long deadline = start + FLUSH_LATENCY_NANOS;
+
+                                Set<SelectionKey> keys = this.selector.selectedKeys();
+                                for (SelectionKey key : keys)
+                                {
+                                        if (key.isValid() && key.isReadable())
+                                        {
+                                                User user = (User) key.attachment();
+                                                user.touch(start);
+
+                                                try
+                                                {
+                                                        // It's incoming data on a connection -- process it
+                                                        boolean ok = ChatServer.processInput(this, user);
+
+                                                        // If the connection is dead, remove it from the selector
+                                                        // and close it
+                                                        if (!ok)
+                                                        {
+                                                                key.cancel();
+                                                                ChatServer.close_client(user);
+                                                        }
+                                                }
+                                                catch (IOException ie)
+                                                {
+                                                        // On exception, remove this channel from the selector
+                                                        key.cancel();
+                                                        ChatServer.close_client(user);
+                                                }
+                                        }
+
+                                        // The socket has room again for queued output
+                                        if (key.isValid() && key.isWritable())
+                                        {
+                                                flush((User) key.attachment(), System.nanoTime());
+                                        }
+
+                                        if (!this.flushes.isEmpty())
+                                        {
+                                                long now = System.nanoTime();
+                                                if (now >= deadline)
+                                                {
+                                                        flush_scheduled(now);
+                                                        deadline = now + FLUSH_LATENCY_NANOS;
+                                                }
+                                        }
+                                }
+
+                                // We remove the selected keys, because we've dealt with them.
+                                keys.clear();
+
+                                long now = System.nanoTime();
+                                flush_scheduled(now);
+                                timeout = run_timers(now);
+                        }
+                }
+                catch (IOException ie)
+                {
+                        System.err.println(ie.getMessage());
+                }
+        }
+
+        /**
+         * Run the tasks handed over since the last select
+         */
+        private void
+        run_tasks ()
+        {
+                Runnable task;
+                while ((task = this.tasks.poll()) != null)
+                {
+                        task.run();
+                }
+        }
+
+        /**
+         * Resume the reads whose penalty is over, and run the idle timeouts
+         * due, sending their PINGs out
+         *
+         * @param now
+         * @return long milliseconds select may wait for the next of them, 0
+         * for as long as it takes
+         */
+        private long
+        run_timers (long now)
+        {
+                User user;
+                while ((user = this.suspended.peek()) != null && user.get_resume_at() - now <= 0)
+                {
+                        this.suspended.poll();
+                        user.resume_reads();
+
+                        // Read from again unless it's behind on its output
+                        flush(user, now);
+                }
+
+                long due_in = Long.MAX_VALUE;
+                if (this.wheel != null)
+                {
+                        due_in = this.wheel.due_in(now);
+                        if (due_in <= 0)
+                        {
+                                this.wheel.advance(now, this::expired);
+                                flush_scheduled(now);
+                                due_in = this.wheel.due_in(now);
+                        }
+                }
+                if (user != null)
+                {
+                        due_in = Math.min(due_in, user.get_resume_at() - now);
+                }
+                return due_in == Long.MAX_VALUE ? 0 : Math.max(1, (due_in + 999999) / 1000000);
+        }
+
+        /**
+         * @param user whose idle timeout came due
+         * @param now
+         * @return long when it comes due again, or -1
+         */
+        private long
+        expired (User user, long now)
+        {
+                long next = ChatServer.check_idle(user, now);
+                if (next == -1 && !user.is_disconnected())
+                {
+                        ChatServer.close_client(user);
+                }
+                return next;
+        }
+
+        /**
+         * Flush the users scheduled so far; one clock read stamps them all,
+         * as it's slow on some hosts
+         *
+         * @param now
+         */
+        private void
+        flush_scheduled (long now)
+        {
+                User user;
+                while ((user = this.flushes.poll()) != null)
+                {
+                        flush(user, now);
+                }
+        }
+
+        /**
+         * Flush a user's output queue, applying the write watermarks
+         *
+         * @param user
+         * @param now
+         */
+        private void
+        flush (User user, long now)
+        {
+                SelectionKey key = user.get_key();
+                if (key == null || !key.isValid())
+                {
+                        return;
+                }
+
+                SocketChannel sc = (SocketChannel) key.channel();
+                if (user.is_overflowed())
+                {
+                        Metrics.slow_clients.increment();
+                        System.out.println("Disconnecting slow client " + sc.socket());
+                        ChatServer.close_client(user);
+                        return;
+                }
+
+                try
+                {
+                        int queued = user.flush(now);
+                        int ops = key.interestOps();
+
+                        if (queued > 0)
+                        {
+                                Metrics.write_backlog_bytes.record(queued);
+                        }
+
+                        ops = queued > 0 ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE;
+
+                        // Stop reading from a client that doesn't read its replies,
+                        // until it has caught up
+                        if (queued >= Config.WRITE_HIGH_WATERMARK)
+                        {
+                                if ((ops & SelectionKey.OP_READ) != 0)
+                                {
+                                        Metrics.reads_suspended.increment();
+                                }
+                                ops &= ~SelectionKey.OP_READ;
+                        }
+                        else if (queued <= Config.WRITE_LOW_WATERMARK && !user.is_read_suspended() && !user.is_claiming())
+                        {
+                                ops |= SelectionKey.OP_READ;
+                        }
+
+                        key.interestOps(ops);
+                }
+                catch (IOException ie)
+                {
+                        ChatServer.close_client(user);
+                }
+        }
+
+        /**
+         * Register the channels handed over since the last select; one that
+         * fails is closed and the rest still registered
+         */
+        private void
+        register_pending ()
+        {
+                SocketChannel sc;
+                while ((sc = this.pending.poll()) != null)
+                {
+                        InetAddress address = sc.socket().getInetAddress();
+                        try
+                        {
+                                // Make sure to make it non-blocking, so we can use a selector
+                                // on it.
+                                sc.configureBlocking(false);
+                                User user = new User(sc, this);
+                                user.set_key(sc.register(this.selector, SelectionKey.OP_READ, user));
+                                if (this.wheel != null)
+                                {
+                                        this.wheel.schedule(user.get_timeout(), ChatServer.idle_deadline(user));
+                                }
+                        }
+                        catch (IOException ie)
+                        {
+                                // Reset, or closed, since it was accepted; only the
+                                // selector failing ends the loop
+                                this.unregister();
+                                Admission.release(address);
+                                try
+                                {
+                                        sc.close();
+                                }
+                                catch (IOException ce)
+                                {
+                                        // Gone already
+                                }
+                        }
+                }
+        }
+}
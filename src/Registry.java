@@ -0,0 +1,579 @@
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * Values under dense int IDs, some of them also under names, shared by
+ * all the workers
+ *
+ * IDs are handed out lowest first and reused once freed, so they index
+ * plain arrays. Names go in an open-addressing table of IDs, probed
+ * linearly, which any CharSequence, or part of one, can be looked up in
+ * without building a String. Lookups don't lock: they read optimistically
+ * and only take the read lock if a writer got in the way.
+ */
+final class
+Registry<T>
+{
+        /**
+         * Makes the value for a name not taken yet
+         */
+        interface
+        Factory<T>
+        {
+                /**
+                 * @param id
+                 * @param name
+                 * @return T
+                 */
+                T create (int id, String name);
+        }
+
+        /**
+         * The name index, replaced whole when it grows so a lookup sees
+         * arrays of the same length
+         */
+        private static final class
+        Table
+        {
+                final String[] names;
+                final int[] hashes;
+                final int[] ids;
+
+                Table (int capacity)
+                {
+                        this.names = new String[capacity];
+                        this.hashes = new int[capacity];
+                        this.ids = new int[capacity];
+                }
+        }
+
+        // Marks a name removed, so probes go on past it
+        private static final String DELETED = new String("");
+
+        private final StampedLock lock = new StampedLock();
+        private Object[] values = new Object[64];
+        private Table table = new Table(64);
+
+        // Freed IDs, reused lowest first: a min-heap
+        private int[] free = new int[16];
+        private int free_count = 0;
+        private int next_id = 0;
+
+        // Names, and slots in use counting the deleted ones
+        private int size = 0;
+        private int used = 0;
+
+        /**
+         * Give a value an ID
+         *
+         * @param value
+         * @return int
+         */
+        public int
+        add (T value)
+        {
+                long stamp = this.lock.writeLock();
+                try
+                {
+                        return add_locked(value);
+                }
+                finally
+                {
+                        this.lock.unlockWrite(stamp);
+                }
+        }
+
+        /**
+         * Free an ID, which must have no names left
+         *
+         * @param id
+         */
+        public void
+        remove (int id)
+        {
+                long stamp = this.lock.writeLock();
+                try
+                {
+                        this.values[id] = null;
+                        push_free(id);
+                }
+                finally
+                {
+                        this.lock.unlockWrite(stamp);
+                }
+        }
+
+        /**
+         * @param id
+         * @return T or null
+         */
+        @SuppressWarnings("unchecked")
+        public T
+        get (int id)
+        {
+                Object[] values = this.values;
+                return id >= 0 && id < values.length ? (T) values[id] : null;
+        }
+
+        /**
+         * Give an ID a name, unless another ID has it
+         *
+         * @param id
+         * @param name
+         * @return boolean true if the name is the ID's now
+         */
+        public boolean
+        bind (int id, String name)
+        {
+                long stamp = this.lock.writeLock();
+                try
+                {
+                        int found = find(this.table, name, 0, name.length(), name.hashCode());
+                        if (found >= 0)
+                        {
+                                return found == id;
+                        }
+                        insert(name, id);
+                        return true;
+                }
+                finally
+                {
+                        this.lock.unlockWrite(stamp);
+                }
+        }
+
+        /**
+         * Take a name away from an ID; nothing if another ID has it
+         *
+         * @param id
+         * @param name
+         */
+        public void
+        unbind (int id, String name)
+        {
+                long stamp = this.lock.writeLock();
+                try
+                {
+                        delete(name, id);
+                }
+                finally
+                {
+                        this.lock.unlockWrite(stamp);
+                }
+        }
+
+        /**
+         * The value under a name, creating it, with an ID and the name, if
+         * there is none
+         *
+         * @param name
+         * @param factory called with the registry locked
+         * @return T
+         */
+        @SuppressWarnings("unchecked")
+        public T
+        get_or_add (String name, Factory<T> factory)
+        {
+                long stamp = this.lock.writeLock();
+                try
+                {
+                        int found = find(this.table, name, 0, name.length(), name.hashCode());
+                        if (found >= 0)
+                        {
+                                return (T) this.values[found];
+                        }
+
+                        int id = add_locked(null);
+                        T value = factory.create(id, name);
+                        this.values[id] = value;
+                        insert(name, id);
+                        return value;
+                }
+                finally
+                {
+                        this.lock.unlockWrite(stamp);
+                }
+        }
+
+        /**
+         * Drop a name and free its ID, if the name is still the value's
+         *
+         * @param name
+         * @param id
+         * @return boolean true if it was
+         */
+        public boolean
+        remove (String name, int id)
+        {
+                long stamp = this.lock.writeLock();
+                try
+                {
+                        if (!delete(name, id))
+                        {
+                                return false;
+                        }
+                        this.values[id] = null;
+                        push_free(id);
+                        return true;
+                }
+                finally
+                {
+                        this.lock.unlockWrite(stamp);
+                }
+        }
+
+        /**
+         * @param name
+         * @return T the value under a name, or null
+         */
+        public T
+        get (CharSequence name)
+        {
+                return get(name, 0, name.length());
+        }
+
+        /**
+         * @param text
+         * @param from
+         * @param to
+         * @return T the value under the name text[from, to), or null
+         */
+        @SuppressWarnings("unchecked")
+        public T
+        get (CharSequence text, int from, int to)
+        {
+                int hash = hash(text, from, to);
+
+                long stamp = this.lock.tryOptimisticRead();
+                if (stamp != 0)
+                {
+                        Object[] values = this.values;
+                        int id = find(this.table, text, from, to, hash);
+                        Object value = id >= 0 && id < values.length ? values[id] : null;
+                        if (this.lock.validate(stamp))
+                        {
+                                return (T) value;
+                        }
+                }
+
+                stamp = this.lock.readLock();
+                try
+                {
+                        int id = find(this.table, text, from, to, hash);
+                        return id >= 0 ? (T) this.values[id] : null;
+                }
+                finally
+                {
+                        this.lock.unlockRead(stamp);
+                }
+        }
+
+        /**
+         * Visit every value with an ID
+         *
+         * @param action must not change the registry
+         */
+        @SuppressWarnings("unchecked")
+        public void
+        for_each (Consumer<T> action)
+        {
+                long stamp = this.lock.readLock();
+                try
+                {
+                        for (int id = 0; id < this.next_id; ++id)
+                        {
+                                if (this.values[id] != null)
+                                {
+                                        action.accept((T) this.values[id]);
+                                }
+                        }
+                }
+                finally
+                {
+                        this.lock.unlockRead(stamp);
+                }
+        }
+
+        /**
+         * @return int names in use
+         */
+        public int
+        size ()
+        {
+                return this.size;
+        }
+
+        /**
+         * The same as String.hashCode(), so a String's cached hash can be
+         * used for it
+         *
+         * @param text
+         * @param from
+         * @param to
+         * @return int
+         */
+        private static int
+        hash (CharSequence text, int from, int to)
+        {
+                if (from == 0 && to == text.length() && text instanceof String)
+                {
+                        return text.hashCode();
+                }
+
+                int hash = 0;
+                for (int i = from; i < to; ++i)
+                {
+                        hash = 31 * hash + text.charAt(i);
+                }
+                return hash;
+        }
+
+        /**
+         * @param hash
+         * @param mask
+         * @return int slot probing starts at
+         */
+        private static int
+        slot (int hash, int mask)
+        {
+                return (hash ^ (hash >>> 16)) & mask;
+        }
+
+        /**
+         * Look a name up; may be called without the lock, reading any
+         * mess a writer leaves midway, as long as it doesn't throw
+         *
+         * @param table
+         * @param text
+         * @param from
+         * @param to
+         * @param hash
+         * @return int its ID, or -1
+         */
+        private static int
+        find (Table table, CharSequence text, int from, int to, int hash)
+        {
+                String[] names = table.names;
+                int mask = names.length - 1;
+                int length = to - from;
+
+                for (int i = slot(hash, mask), probes = 0; probes < names.length; i = (i + 1) & mask, ++probes)
+                {
+                        String name = names[i];
+                        if (name == null)
+                        {
+                                return -1;
+                        }
+                        if (name != DELETED && table.hashes[i] == hash && name.length() == length
+                            && matches(name, text, from))
+                        {
+                                return table.ids[i];
+                        }
+                }
+                return -1;
+        }
+
+        /**
+         * @param name
+         * @param text
+         * @param from
+         * @return boolean true if text has the name at from
+         */
+        private static boolean
+        matches (String name, CharSequence text, int from)
+        {
+                if (text instanceof String)
+                {
+                        return name.regionMatches(0, (String) text, from, name.length());
+                }
+                for (int i = 0; i < name.length(); ++i)
+                {
+                        if (name.charAt(i) != text.charAt(from + i))
+                        {
+                                return false;
+                        }
+                }
+                return true;
+        }
+
+        /**
+         * Add a name not in the table; caller holds the write lock
+         *
+         * @param name
+         * @param id
+         */
+        private void
+        insert (String name, int id)
+        {
+                // Kept at most half full, deleted slots included
+                if ((this.used + 1) * 2 > this.table.names.length)
+                {
+                        rehash();
+                }
+
+                Table table = this.table;
+                int mask = table.names.length - 1;
+                int hash = name.hashCode();
+                int i = slot(hash, mask);
+                while (table.names[i] != null && table.names[i] != DELETED)
+                {
+                        i = (i + 1) & mask;
+                }
+
+                if (table.names[i] == null)
+                {
+                        ++this.used;
+                }
+                table.hashes[i] = hash;
+                table.ids[i] = id;
+                table.names[i] = name;
+                ++this.size;
+        }
+
+        /**
+         * Remove a name if it's an ID's; caller holds the write lock
+         *
+         * @param name
+         * @param id
+         * @return boolean true if it was
+         */
+        private boolean
+        delete (String name, int id)
+        {
+                Table table = this.table;
+                int mask = table.names.length - 1;
+                int hash = name.hashCode();
+
+                for (int i = slot(hash, mask); table.names[i] != null; i = (i + 1) & mask)
+                {
+                        String current = table.names[i];
+                        if (current != DELETED && table.hashes[i] == hash && current.equals(name))
+                        {
+                                if (table.ids[i] != id)
+                                {
+                                        return false;
+                                }
+                                table.names[i] = DELETED;
+                                --this.size;
+                                return true;
+                        }
+                }
+                return false;
+        }
+
+        /**
+         * Move the names to a table twice as big as they need, dropping
+         * the deleted slots; caller holds the write lock
+         */
+        private void
+        rehash ()
+        {
+                Table old = this.table;
+                int capacity = old.names.length;
+                while (capacity < (this.size + 1) * 4)
+                {
+                        capacity <<= 1;
+                }
+
+                Table table = new Table(capacity);
+                int mask = capacity - 1;
+                for (int j = 0; j < old.names.length; ++j)
+                {
+                        String name = old.names[j];
+                        if (name == null || name == DELETED)
+                        {
+                                continue;
+                        }
+
+                        int i = slot(old.hashes[j], mask);
+                        while (table.names[i] != null)
+                        {
+                                i = (i + 1) & mask;
+                        }
+                        table.names[i] = name;
+                        table.hashes[i] = old.hashes[j];
+                        table.ids[i] = old.ids[j];
+                }
+
+                this.table = table;
+                this.used = this.size;
+        }
+
+        /**
+         * @param value
+         * @return int its new ID; caller holds the write lock
+         */
+        private int
+        add_locked (T value)
+        {
+                int id;
+                if (this.free_count > 0)
+                {
+                        id = pop_free();
+                }
+                else
+                {
+                        id = this.next_id++;
+                        if (id == this.values.length)
+                        {
+                                Object[] values = new Object[id * 2];
+                                System.arraycopy(this.values, 0, values, 0, id);
+                                this.values = values;
+                        }
+                }
+                this.values[id] = value;
+                return id;
+        }
+
+        /**
+         * @param id
+         */
+        private void
+        push_free (int id)
+        {
+                if (this.free_count == this.free.length)
+                {
+                        int[] free = new int[this.free.length * 2];
+                        System.arraycopy(this.free, 0, free, 0, this.free_count);
+                        this.free = free;
+                }
+
+                // Sift up
+                int i = this.free_count++;
+                while (i > 0 && this.free[(i - 1) / 2] > id)
+                {
+                        this.free[i] = this.free[(i - 1) / 2];
+                        i = (i - 1) / 2;
+                }
+                this.free[i] = id;
+        }
+
+        /**
+         * @return int the lowest freed ID
+         */
+        private int
+        pop_free ()
+        {
+                int lowest = this.free[0];
+                int last = this.free[--this.free_count];
+
+                // Sift down
+                int i = 0;
+                while (2 * i + 1 < this.free_count)
+                {
+                        int child = 2 * i + 1;
+                        if (child + 1 < this.free_count && this.free[child + 1] < this.free[child])
+                        {
+                                ++child;
+                        }
+                        if (this.free[child] >= last)
+                        {
+                                break;
+                        }
+                        this.free[i] = this.free[child];
+                        i = child;
+                }
+                this.free[i] = last;
+                return lowest;
+        }
+}
@@ -1,4 +1,5 @@
-import java.util.TreeSet;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Room class
@@ -6,8 +7,35 @@ import java.util.TreeSet;
 class
 Room
 {
-        private final TreeSet<User> users;
+        private static final User[] NO_USERS = new User[0];
+
+        // IDs of room compression contexts; 0 is a connection's own
+        private static final AtomicInteger next_context = new AtomicInteger(1);
+
+        // Copy-on-write and keyed on identity, so fan-out iterates a snapshot
+        // without locking and nick changes don't matter; writes hold this
+        private volatile User[] users = NO_USERS;
+        private final int id;
         private final String name;
+        private final RoomLog history;
+
+        // The name interned for the binary protocol
+        private final Name interned;
+
+        // Set when the last member leaves a registered room, as it's
+        // dropped; no one can join it after. Guarded by this
+        private boolean closed;
+
+        // Messages that may fan out, shared by every member
+        private final TokenBucket messages = TokenBucket.of(Config.LIMIT_ROOM_RATE, Config.LIMIT_ROOM_BURST);
+
+        // Context broadcasts are compressed in once for every member taking
+        // COMPRESSED frames, created on first use; guarded by this. Started
+        // afresh under a new ID whenever someone joins, since a newcomer
+        // has none of what came before
+        private FrameDeflater deflater;
+        private int context;
+        private boolean restart = true;
 
         /**
          * Constructor
@@ -16,14 +44,28 @@ Room
          */
         public Room (String name)
         {
-                this.users = new TreeSet<>();
+                this(-1, name, null);
+        }
+
+        /**
+         * Constructor
+         *
+         * @param id in ChatServer's registry, or -1
+         * @param name
+         * @param history where messages are kept, or null
+         */
+        public Room (int id, String name, RoomLog history)
+        {
+                this.id = id;
                 this.name = name;
+                this.history = history;
+                this.interned = new Name(name);
         }
 
         /**
-         * @return TreeSet<User>
+         * @return User[] members at this moment; must not be modified
          */
-        public TreeSet<User>
+        public User[]
         get_users ()
         {
                 return this.users;
@@ -31,20 +73,113 @@ Room
 
         /**
          * @param user
+         * @return boolean false if the room was closed, so it must be
+         * looked up again
          */
-        public void
+        public synchronized boolean
         join_user (User user)
         {
-                this.users.add(user);
+                if (this.closed)
+                {
+                        return false;
+                }
+
+                User[] current = this.users;
+                if (index_of(current, user) >= 0)
+                {
+                        return true;
+                }
+
+                User[] next = Arrays.copyOf(current, current.length + 1);
+                next[current.length] = user;
+                this.users = next;
+                this.restart = true;
+                return true;
         }
 
         /**
          * @param user
+         * @return boolean true if the room is closed now, being left empty,
+         * and must be dropped by the caller
          */
-        public void
+        public synchronized boolean
         left_user (User user)
         {
-                this.users.remove(user);
+                User[] current = this.users;
+                int index = index_of(current, user);
+                if (index < 0)
+                {
+                        return false;
+                }
+
+                if (current.length == 1)
+                {
+                        this.users = NO_USERS;
+                        this.closed = this.id >= 0;
+                        return this.closed;
+                }
+
+                // Order doesn't matter, so the last member takes the hole
+                User[] next = Arrays.copyOf(current, current.length - 1);
+                if (index < next.length)
+                {
+                        next[index] = current[current.length - 1];
+                }
+                this.users = next;
+                return false;
+        }
+
+        /**
+         * Compress a frame in the room's context; members must be sent the
+         * frames it returns in the same order, so the caller holds this
+         * until they're queued
+         *
+         * @param frame the caller keeps its reference
+         * @return Frame holding one reference, for the caller
+         */
+        public synchronized Frame
+        compress (Frame frame)
+        {
+                if (this.deflater == null)
+                {
+                        this.deflater = new FrameDeflater();
+                }
+
+                boolean restart = this.restart;
+                if (restart)
+                {
+                        this.context = Math.max(1, next_context.getAndIncrement() & Integer.MAX_VALUE);
+                        this.restart = false;
+                }
+                return this.deflater.compress(frame, this.context, restart);
+        }
+
+        /**
+         * @param now
+         * @return boolean true if a message may go out to the room now
+         */
+        public boolean
+        take_message (long now)
+        {
+                return this.messages == null || this.messages.take(now);
+        }
+
+        /**
+         * @return boolean
+         */
+        public boolean
+        is_empty ()
+        {
+                return this.users.length == 0;
+        }
+
+        /**
+         * @return int
+         */
+        public int
+        get_id ()
+        {
+                return this.id;
         }
 
         /**
@@ -55,4 +190,40 @@ Room
         {
                 return this.name;
         }
+
+        /**
+         * @return Name
+         */
+        public Name
+        get_interned ()
+        {
+                return this.interned;
+        }
+
+        /**
+         * @return RoomLog or null
+         */
+        public RoomLog
+        get_history ()
+        {
+                return this.history;
+        }
+
+        /**
+         * @param users
+         * @param user
+         * @return int position of the user, or -1
+         */
+        private static int
+        index_of (User[] users, User user)
+        {
+                for (int i = 0; i < users.length; ++i)
+                {
+                        if (users[i] == user)
+                        {
+                                return i;
+                        }
+                }
+                return -1;
+        }
 }
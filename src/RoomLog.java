@@ -0,0 +1,601 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only history of a room's messages, in memory-mapped segments
+ *
+ * A segment is a file of Config.HISTORY_SEGMENT_BYTES named after its
+ * sequence number. Each record is its length and a CRC32C of the rest,
+ * then the time in milliseconds, the sender's nickname and the text.
+ * A zero length, or a record that fails its check after a crash, ends
+ * the segment. Appends only copy into the mapping; History forces it to
+ * disk in batches, and drops the oldest segments past the retention
+ * limit.
+ *
+ * The log is opened, and each next segment mapped ahead of need, on
+ * History's thread, so no file is created or mapped on a reactor; what
+ * is appended while no segment has room is kept until one does.
+ */
+final class
+RoomLog
+{
+        // Length and CRC32C
+        private static final int HEADER = 8;
+
+        // Time and nickname length
+        private static final int FIXED = 10;
+
+        private static final String SUFFIX = ".seg";
+
+        private final Path directory;
+        private final Executor executor;
+        private final CRC32C crc = new CRC32C();
+
+        // Oldest first; the last one is appended to. Guarded by this
+        private final ArrayDeque<MappedByteBuffer> segments = new ArrayDeque<>();
+        private final ArrayDeque<Path> paths = new ArrayDeque<>();
+        private long next_sequence;
+        private boolean dirty;
+
+        // The next segment, once mapped, and whether it's being mapped or
+        // can't be opened at all
+        private MappedByteBuffer spare;
+        private boolean preparing;
+        private boolean failed;
+
+        // Records appended while no segment had room, up to a segment's
+        // worth; past that they're dropped
+        private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+        private int pending_bytes;
+
+        // Records appended, for marks
+        private long appended;
+
+        // Segments rolled over or dropped since the last sync
+        private final ArrayList<MappedByteBuffer> unsynced = new ArrayList<>();
+        private final ArrayList<Path> expired = new ArrayList<>();
+
+        /**
+         * Constructor; nothing is read or written until open()
+         *
+         * @param directory
+         * @param executor where the next segment is mapped
+         */
+        public RoomLog (Path directory, Executor executor)
+        {
+                this.directory = directory;
+                this.executor = executor;
+                this.preparing = true;
+        }
+
+        /**
+         * Open the log, creating it or recovering the end of its newest
+         * segment, then map the next one; run by History, never by a
+         * reactor
+         */
+        void
+        open ()
+        {
+                ArrayDeque<MappedByteBuffer> found = new ArrayDeque<>();
+                ArrayDeque<Path> found_paths = new ArrayDeque<>();
+                long next = 0;
+                MappedByteBuffer next_segment = null;
+                try
+                {
+                        Files.createDirectories(this.directory);
+
+                        ArrayList<Long> sequences = new ArrayList<>();
+                        try (Stream<Path> files = Files.list(this.directory))
+                        {
+                                files.map(path -> path.getFileName().toString())
+                                     .filter(name -> name.endsWith(SUFFIX))
+                                     .forEach(name -> sequences.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length()))));
+                        }
+                        sequences.sort(null);
+
+                        for (long sequence : sequences)
+                        {
+                                found_paths.add(path_of(sequence));
+                                found.add(map(path_of(sequence)));
+                                next = sequence + 1;
+                        }
+
+                        CRC32C crc = new CRC32C();
+                        if (!found.isEmpty() && end_of(found.getLast(), crc) == 0)
+                        {
+                                // The spare of the last time, still empty
+                                next_segment = found.removeLast();
+                                found_paths.removeLast();
+                                --next;
+                        }
+                        if (!found.isEmpty())
+                        {
+                                MappedByteBuffer last = found.getLast();
+                                last.position(end_of(last, crc));
+                        }
+                        if (next_segment == null)
+                        {
+                                next_segment = map(path_of(next));
+                        }
+                }
+                catch (IOException | RuntimeException e)
+                {
+                        System.err.println("Error opening history in " + this.directory + ": " + e);
+                        synchronized (this)
+                        {
+                                this.failed = true;
+                                this.preparing = false;
+                                this.pending.clear();
+                                this.pending_bytes = 0;
+                        }
+                        return;
+                }
+
+                synchronized (this)
+                {
+                        this.segments.addAll(found);
+                        this.paths.addAll(found_paths);
+                        this.next_sequence = next;
+                        this.spare = next_segment;
+                        this.preparing = false;
+                        drain();
+                }
+        }
+
+        /**
+         * Append a message
+         *
+         * @param millis
+         * @param nickname
+         * @param text
+         */
+        public synchronized void
+        append (long millis, String nickname, String text)
+        {
+                byte[] nickname_bytes = nickname.getBytes(StandardCharsets.UTF_8);
+                byte[] text_bytes = text.getBytes(StandardCharsets.UTF_8);
+                int length = FIXED + nickname_bytes.length + text_bytes.length;
+                if (HEADER + length > Config.HISTORY_SEGMENT_BYTES || this.failed)
+                {
+                        return;
+                }
+
+                if (this.pending.isEmpty())
+                {
+                        MappedByteBuffer segment = this.segments.peekLast();
+                        if ((segment == null || segment.remaining() < HEADER + length) && this.spare != null)
+                        {
+                                roll();
+                                segment = this.segments.getLast();
+                        }
+                        if (segment != null && segment.remaining() >= HEADER + length)
+                        {
+                                write(segment, millis, nickname_bytes, text_bytes);
+                                ++this.appended;
+                                this.dirty = true;
+                                return;
+                        }
+                }
+
+                // Kept until the next segment is mapped
+                if (this.pending_bytes + HEADER + length > Config.HISTORY_SEGMENT_BYTES)
+                {
+                        return;
+                }
+                ByteBuffer record = ByteBuffer.allocate(HEADER + length);
+                write(record, millis, nickname_bytes, text_bytes);
+                this.pending.add(record.array());
+                this.pending_bytes += record.capacity();
+                ++this.appended;
+                prepare_next();
+        }
+
+        /**
+         * @return long a mark of what was appended so far, for read_last
+         */
+        public synchronized long
+        mark ()
+        {
+                return this.appended;
+        }
+
+        /**
+         * Read the newest messages appended before a mark; run by History,
+         * never by a reactor
+         *
+         * @param mark from mark()
+         * @param count most messages to read
+         * @param since oldest time to read, in milliseconds
+         * @return List<Message> oldest first
+         */
+        List<Message>
+        read_last (long mark, int count, long since)
+        {
+                ByteBuffer[] views;
+                long skip;
+                synchronized (this)
+                {
+                        views = snapshot();
+                        skip = this.appended - mark;
+                }
+                return read(views, count, since, skip);
+        }
+
+        /**
+         * @return ByteBuffer[] read-only views of the segments, oldest first,
+         * ending at the last record appended so far, and a copy of those
+         * pending after them; caller holds this
+         */
+        private ByteBuffer[]
+        snapshot ()
+        {
+                ByteBuffer[] views = new ByteBuffer[this.segments.size() + (this.pending.isEmpty() ? 0 : 1)];
+                int i = 0;
+                for (MappedByteBuffer segment : this.segments)
+                {
+                        views[i++] = segment.asReadOnlyBuffer();
+                }
+
+                // Only what was appended, not the zeroes after it
+                if (i > 0)
+                {
+                        views[i - 1].limit(this.segments.getLast().position());
+                }
+                if (i < views.length)
+                {
+                        ByteBuffer rest = ByteBuffer.allocate(this.pending_bytes);
+                        for (byte[] record : this.pending)
+                        {
+                                rest.put(record);
+                        }
+                        views[i] = rest.flip();
+                }
+                return views;
+        }
+
+        /**
+         * Read the newest messages of a snapshot
+         *
+         * @param segments from snapshot()
+         * @param count most messages to read
+         * @param since oldest time to read, in milliseconds
+         * @param skip newest messages to pass over first
+         * @return List<Message> oldest first
+         */
+        private static List<Message>
+        read (ByteBuffer[] segments, int count, long since, long skip)
+        {
+                CRC32C crc = new CRC32C();
+                ArrayList<Message> newest_first = new ArrayList<>();
+
+                for (int s = segments.length - 1; s >= 0 && newest_first.size() < count; --s)
+                {
+                        ByteBuffer segment = segments[s];
+
+                        // Records can only be walked forwards, so find them all first
+                        int[] starts = new int[64];
+                        int records = 0;
+                        int end = end_of(segment, crc);
+                        for (int position = 0; position < end; position += HEADER + segment.getInt(position))
+                        {
+                                if (records == starts.length)
+                                {
+                                        starts = Arrays.copyOf(starts, records * 2);
+                                }
+                                starts[records++] = position;
+                        }
+
+                        for (int r = records - 1; r >= 0 && newest_first.size() < count; --r)
+                        {
+                                if (skip > 0)
+                                {
+                                        --skip;
+                                        continue;
+                                }
+
+                                int position = starts[r];
+                                int length = segment.getInt(position);
+                                long millis = segment.getLong(position + HEADER);
+                                if (millis < since)
+                                {
+                                        return reverse(newest_first);
+                                }
+
+                                int nickname_length = segment.getShort(position + HEADER + 8) & 0xffff;
+                                int nickname_start = position + HEADER + FIXED;
+                                int text_start = nickname_start + nickname_length;
+                                newest_first.add(new Message(MessageType.MESSAGE,
+                                                             decode(segment, nickname_start, nickname_length),
+                                                             decode(segment, text_start, position + HEADER + length - text_start)));
+                        }
+                }
+                return reverse(newest_first);
+        }
+
+        /**
+         * Force what was appended to disk and delete expired segments; run
+         * by History, never by a reactor
+         */
+        void
+        sync ()
+        {
+                MappedByteBuffer current;
+                MappedByteBuffer[] rolled;
+                Path[] deleted;
+
+                synchronized (this)
+                {
+                        current = this.dirty ? this.segments.getLast() : null;
+                        this.dirty = false;
+                        rolled = this.unsynced.toArray(new MappedByteBuffer[0]);
+                        deleted = this.expired.toArray(new Path[0]);
+                        this.unsynced.clear();
+                        this.expired.clear();
+                }
+
+                for (MappedByteBuffer segment : rolled)
+                {
+                        segment.force();
+                }
+                if (current != null)
+                {
+                        current.force();
+                }
+                for (Path path : deleted)
+                {
+                        try
+                        {
+                                Files.deleteIfExists(path);
+                        }
+                        catch (IOException ie)
+                        {
+                                System.err.println("Error deleting history segment " + path + ": " + ie);
+                        }
+                }
+        }
+
+        /**
+         * Start appending to the spare, expiring the oldest segment past the
+         * retention limit; caller holds this
+         */
+        private void
+        roll ()
+        {
+                if (!this.segments.isEmpty())
+                {
+                        this.unsynced.add(this.segments.getLast());
+                }
+
+                this.segments.add(this.spare);
+                this.paths.add(path_of(this.next_sequence++));
+                this.spare = null;
+
+                while (this.segments.size() > Config.HISTORY_SEGMENTS)
+                {
+                        // Readers holding a snapshot keep the mapping alive
+                        forget(this.segments.removeFirst());
+                        this.expired.add(this.paths.removeFirst());
+                }
+                this.dirty = true;
+                prepare_next();
+        }
+
+        /**
+         * Have History map the next segment, unless it's mapped or being
+         * mapped already; caller holds this
+         */
+        private void
+        prepare_next ()
+        {
+                if (this.spare == null && !this.preparing && !this.failed)
+                {
+                        this.preparing = true;
+                        this.executor.execute(this::prepare);
+                }
+        }
+
+        /**
+         * Map the next segment, then append what was kept waiting for it
+         */
+        private void
+        prepare ()
+        {
+                Path path;
+                synchronized (this)
+                {
+                        path = path_of(this.next_sequence);
+                }
+
+                MappedByteBuffer next = null;
+                try
+                {
+                        next = map(path);
+                }
+                catch (IOException ie)
+                {
+                        // Tried again on the next append kept waiting
+                        System.err.println("Error mapping history segment " + path + ": " + ie);
+                }
+
+                synchronized (this)
+                {
+                        this.spare = next;
+                        this.preparing = false;
+                        drain();
+                }
+        }
+
+        /**
+         * Append the records kept waiting, as far as there's room; caller
+         * holds this
+         */
+        private void
+        drain ()
+        {
+                while (!this.pending.isEmpty())
+                {
+                        byte[] record = this.pending.peekFirst();
+                        MappedByteBuffer segment = this.segments.peekLast();
+                        if (segment == null || segment.remaining() < record.length)
+                        {
+                                if (this.spare == null)
+                                {
+                                        return;
+                                }
+                                roll();
+                                segment = this.segments.getLast();
+                        }
+
+                        // The length goes in last, as in write
+                        int start = segment.position();
+                        segment.put(start + 4, record, 4, record.length - 4);
+                        segment.putInt(start, record.length - HEADER);
+                        segment.position(start + record.length);
+                        this.pending.removeFirst();
+                        this.pending_bytes -= record.length;
+                        this.dirty = true;
+                }
+        }
+
+        /**
+         * Write a record at the position of a buffer, moving past it; caller
+         * holds this
+         *
+         * @param buffer with room for it
+         * @param millis
+         * @param nickname_bytes
+         * @param text_bytes
+         */
+        private void
+        write (ByteBuffer buffer, long millis, byte[] nickname_bytes, byte[] text_bytes)
+        {
+                int length = FIXED + nickname_bytes.length + text_bytes.length;
+                int start = buffer.position();
+                buffer.position(start + HEADER);
+                buffer.putLong(millis);
+                buffer.putShort((short) nickname_bytes.length);
+                buffer.put(nickname_bytes);
+                buffer.put(text_bytes);
+
+                this.crc.reset();
+                this.crc.update(buffer.slice(start + HEADER, length));
+                buffer.putInt(start + 4, (int) this.crc.getValue());
+
+                // The length goes in last, so until then the record isn't there
+                buffer.putInt(start, length);
+        }
+
+        /**
+         * Take a dropped segment off the unsynced ones; by identity, as
+         * ByteBuffer.equals compares what remains and two segments zeroed
+         * past their end would match
+         *
+         * @param segment
+         */
+        private void
+        forget (MappedByteBuffer segment)
+        {
+                for (int i = 0; i < this.unsynced.size(); ++i)
+                {
+                        if (this.unsynced.get(i) == segment)
+                        {
+                                this.unsynced.remove(i);
+                                return;
+                        }
+                }
+        }
+
+        /**
+         * @param sequence
+         * @return Path
+         */
+        private Path
+        path_of (long sequence)
+        {
+                return this.directory.resolve(String.format("%016d%s", sequence, SUFFIX));
+        }
+
+        /**
+         * @param path
+         * @return MappedByteBuffer the whole segment, at position 0
+         * @throws IOException
+         */
+        private static MappedByteBuffer
+        map (Path path)
+        throws IOException
+        {
+                // The mapping stays valid once the channel is closed
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                                                            StandardOpenOption.READ, StandardOpenOption.WRITE))
+                {
+                        return channel.map(FileChannel.MapMode.READ_WRITE, 0, Config.HISTORY_SEGMENT_BYTES);
+                }
+        }
+
+        /**
+         * @param segment
+         * @param crc
+         * @return int position after the last intact record, up to the limit
+         */
+        private static int
+        end_of (ByteBuffer segment, CRC32C crc)
+        {
+                int position = 0;
+                while (position + HEADER <= segment.limit())
+                {
+                        int length = segment.getInt(position);
+                        if (length < FIXED || position + HEADER + length > segment.limit())
+                        {
+                                break;
+                        }
+
+                        crc.reset();
+                        crc.update(segment.slice(position + HEADER, length));
+                        if ((int) crc.getValue() != segment.getInt(position + 4))
+                        {
+                                break;
+                        }
+                        position += HEADER + length;
+                }
+                return position;
+        }
+
+        /**
+         * @param segment
+         * @param start
+         * @param length
+         * @return String
+         */
+        private static String
+        decode (ByteBuffer segment, int start, int length)
+        {
+                byte[] bytes = new byte[length];
+                segment.get(start, bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @param messages
+         * @return List<Message> the same list, reversed
+         */
+        private static List<Message>
+        reverse (ArrayList<Message> messages)
+        {
+                Collections.reverse(messages);
+                return messages;
+        }
+}
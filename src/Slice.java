@@ -0,0 +1,71 @@
+/**
+ * Part of a String, seen in place: names in a line are looked up through
+ * one without copying them out. Valid until it's set again, so it must be
+ * turned into a String to be kept
+ */
+final class
+Slice
+implements CharSequence
+{
+        private String text = "";
+        private int from;
+        private int to;
+
+        /**
+         * @param text
+         * @param from
+         * @param to
+         * @return Slice this
+         */
+        public Slice
+        set (String text, int from, int to)
+        {
+                this.text = text;
+                this.from = from;
+                this.to = to;
+                return this;
+        }
+
+        /**
+         * @return int
+         */
+        @Override
+        public int
+        length ()
+        {
+                return this.to - this.from;
+        }
+
+        /**
+         * @param index
+         * @return char
+         */
+        @Override
+        public char
+        charAt (int index)
+        {
+                return this.text.charAt(this.from + index);
+        }
+
+        /**
+         * @param start
+         * @param end
+         * @return CharSequence
+         */
+        @Override
+        public CharSequence
+        subSequence (int start, int end)
+        {
+                return this.text.substring(this.from + start, this.from + end);
+        }
+
+        /**
+         * @return String a copy
+         */
+        @Override
+        public String
+        toString ()
+        {
+                return this.text.substring(this.from, this.to);
+        }
+}
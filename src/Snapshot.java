@@ -0,0 +1,324 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hot restarts: a server being stopped hands each user with a nickname a
+ * token and writes who it was, and in which rooms, to a file; the server
+ * started next reads it and holds those nicknames for a while, for the
+ * users to take back with "/resume token" as they reconnect
+ *
+ * Sockets can't be handed from one JVM to another, so clients reconnect;
+ * the listening port is closed first so the new server can bind it.
+ * Enabled by -Dchatserv.snapshot.file=path.
+ *
+ * The file is "CHSN", a version byte and the number of users, then for
+ * each its 16 token bytes, nickname, whether it may be in several rooms,
+ * and the number of rooms it's in followed by their names; strings are
+ * modified UTF-8. Version 1, from before users could be in several rooms,
+ * has the one room's name, "" for none, in place of the last three.
+ */
+final class
+Snapshot
+{
+        /**
+         * A user as handed over
+         */
+        static final class
+        Entry
+        {
+                final String token;
+                final String nickname;
+                final boolean multi_room;
+                final String[] rooms;
+
+                /**
+                 * Constructor
+                 *
+                 * @param token
+                 * @param nickname
+                 * @param multi_room
+                 * @param rooms
+                 */
+                Entry (String token, String nickname, boolean multi_room, String[] rooms)
+                {
+                        this.token = token;
+                        this.nickname = nickname;
+                        this.multi_room = multi_room;
+                        this.rooms = rooms;
+                }
+        }
+
+        private static final int MAGIC = 0x4348534e;
+        private static final int VERSION = 2;
+        private static final int TOKEN_BYTES = 16;
+
+        private static final Path file = Config.SNAPSHOT_FILE == null ? null : Paths.get(Config.SNAPSHOT_FILE);
+
+        private static final SecureRandom random = new SecureRandom();
+        private static final HexFormat hex = HexFormat.of();
+        private static final String[] NO_ROOMS = new String[0];
+
+        // Restored users not back yet, by token and by nickname, held for
+        // them until the deadline
+        private static final ConcurrentHashMap<String, Entry> by_token = new ConcurrentHashMap<>();
+        private static final ConcurrentHashMap<String, Entry> by_nickname = new ConcurrentHashMap<>();
+        private static volatile long deadline;
+
+        private static volatile long restore_millis = 0;
+
+        private
+        Snapshot ()
+        {
+        }
+
+        /**
+         * @return boolean true if hot restarts are on
+         */
+        static boolean
+        is_enabled ()
+        {
+                return file != null;
+        }
+
+        /**
+         * @return long how long the last restore took
+         */
+        static long
+        get_restore_millis ()
+        {
+                return restore_millis;
+        }
+
+        /**
+         * @param nickname
+         * @param multi_room
+         * @param rooms
+         * @return Entry with a new token
+         */
+        static Entry
+        issue (String nickname, boolean multi_room, String[] rooms)
+        {
+                byte[] token = new byte[TOKEN_BYTES];
+                random.nextBytes(token);
+                return new Entry(hex.formatHex(token), nickname, multi_room, rooms);
+        }
+
+        /**
+         * Write the users handed over, replacing the file at once
+         *
+         * @param entries
+         * @throws IOException
+         */
+        static void
+        save (List<Entry> entries)
+        throws IOException
+        {
+                write(file, entries);
+        }
+
+        /**
+         * Pick up the users handed over by the last server, if any, and
+         * remove the file so they're only picked up once
+         */
+        static void
+        restore ()
+        {
+                if (file == null)
+                {
+                        return;
+                }
+
+                long start = System.nanoTime();
+                try
+                {
+                        int count = read(file);
+                        Files.delete(file);
+                        restore_millis = (System.nanoTime() - start) / 1000000;
+                        System.out.println("Restored " + count + " users in " + restore_millis + " ms");
+                }
+                catch (NoSuchFileException ne)
+                {
+                        // Nobody to pick up
+                }
+                catch (IOException ie)
+                {
+                        System.err.println("Error restoring snapshot " + file + ": " + ie);
+                }
+        }
+
+        /**
+         * @param path
+         * @param entries
+         * @throws IOException
+         */
+        static void
+        write (Path path, List<Entry> entries)
+        throws IOException
+        {
+                Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16)))
+                {
+                        out.writeInt(MAGIC);
+                        out.writeByte(VERSION);
+                        out.writeInt(entries.size());
+                        for (Entry entry : entries)
+                        {
+                                out.write(hex.parseHex(entry.token));
+                                out.writeUTF(entry.nickname);
+                                out.writeBoolean(entry.multi_room);
+                                out.writeShort(entry.rooms.length);
+                                for (String room : entry.rooms)
+                                {
+                                        out.writeUTF(room);
+                                }
+                        }
+                }
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Hold the nicknames in a snapshot for its users, replacing any
+         * held before
+         *
+         * @param path
+         * @return int how many users it has
+         * @throws IOException
+         */
+        static int
+        read (Path path)
+        throws IOException
+        {
+                by_token.clear();
+                by_nickname.clear();
+
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16)))
+                {
+                        if (in.readInt() != MAGIC)
+                        {
+                                throw new IOException("Not a snapshot");
+                        }
+                        // Left by the version being replaced, so the last is read too
+                        int version = in.readByte();
+                        if (version != VERSION && version != 1)
+                        {
+                                throw new IOException("Unknown snapshot version " + version);
+                        }
+
+                        int count = in.readInt();
+                        byte[] token = new byte[TOKEN_BYTES];
+                        for (int i = 0; i < count; ++i)
+                        {
+                                in.readFully(token);
+                                String nickname = in.readUTF();
+                                Entry entry = version == 1
+                                              ? new Entry(hex.formatHex(token), nickname, false, read_room(in))
+                                              : new Entry(hex.formatHex(token), nickname, in.readBoolean(), read_rooms(in));
+                                by_token.put(entry.token, entry);
+                                by_nickname.put(entry.nickname, entry);
+                        }
+                        deadline = System.nanoTime() + Config.SNAPSHOT_GRACE_MS * 1000000L;
+                        return count;
+                }
+        }
+
+        /**
+         * @param in
+         * @return String[] the rooms of an entry
+         * @throws IOException
+         */
+        private static String[]
+        read_rooms (DataInputStream in)
+        throws IOException
+        {
+                String[] rooms = new String[in.readUnsignedShort()];
+                for (int i = 0; i < rooms.length; ++i)
+                {
+                        rooms[i] = in.readUTF();
+                }
+                return rooms;
+        }
+
+        /**
+         * @param in
+         * @return String[] the room of a version 1 entry
+         * @throws IOException
+         */
+        private static String[]
+        read_room (DataInputStream in)
+        throws IOException
+        {
+                String room = in.readUTF();
+                return room.isEmpty() ? NO_ROOMS : new String[] { room };
+        }
+
+        /**
+         * @param token
+         * @return Entry the user a token was issued to, or null if it's
+         * unknown, taken or expired
+         */
+        static Entry
+        find (String token)
+        {
+                return expired() ? null : by_token.get(token);
+        }
+
+        /**
+         * Take back a user's entry, as it resumes
+         *
+         * @param entry
+         * @return boolean false if it was taken already
+         */
+        static boolean
+        take (Entry entry)
+        {
+                if (!by_token.remove(entry.token, entry))
+                {
+                        return false;
+                }
+                by_nickname.remove(entry.nickname, entry);
+                return true;
+        }
+
+        /**
+         * @param nickname
+         * @return boolean true if it's held for a user yet to resume
+         */
+        static boolean
+        is_reserved (String nickname)
+        {
+                return !expired() && by_nickname.containsKey(nickname);
+        }
+
+        /**
+         * Drop what's held once the deadline passes
+         *
+         * @return boolean true if it has
+         */
+        private static boolean
+        expired ()
+        {
+                if (by_token.isEmpty())
+                {
+                        return true;
+                }
+                if (System.nanoTime() - deadline < 0)
+                {
+                        return false;
+                }
+                by_token.clear();
+                by_nickname.clear();
+                return true;
+        }
+}
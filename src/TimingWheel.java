@@ -0,0 +1,231 @@
+/**
+ * A hashed timing wheel of the users' idle timeouts, used by one thread
+ * at a time
+ *
+ * Time is cut into ticks, and a timeout is linked into the slot of the tick
+ * it falls due in, and out of it, in O(1). Advancing the wheel visits only
+ * the slots of the ticks gone by, so its cost is the timeouts coming due,
+ * not the connections. A timeout more than a turn away is looked at once
+ * per turn and put back.
+ */
+final class
+TimingWheel
+{
+        /**
+         * What to do with a user whose timeout came due
+         */
+        interface
+        Expiry
+        {
+                /**
+                 * May cancel timeouts, but not set any
+                 *
+                 * @param user
+                 * @param now
+                 * @return long System.nanoTime() to come due again at, or -1
+                 * to forget it
+                 */
+                long expired (User user, long now);
+        }
+
+        /**
+         * A user's place in the wheel
+         */
+        static final class
+        Timeout
+        {
+                private final User user;
+                private long deadline;
+                private Timeout previous;
+                private Timeout next;
+                private int slot = -1;
+
+                /**
+                 * Constructor
+                 *
+                 * @param user
+                 */
+                Timeout (User user)
+                {
+                        this.user = user;
+                }
+        }
+
+        private final long origin = System.nanoTime();
+        private final long tick_nanos;
+        private final Timeout[] slots;
+        private final int mask;
+
+        // First tick not advanced past yet
+        private long tick = 0;
+        private int size = 0;
+
+        /**
+         * Constructor
+         *
+         * @param tick_nanos
+         * @param span_nanos longest timeout, which one turn should cover
+         */
+        public TimingWheel (long tick_nanos, long span_nanos)
+        {
+                int slots = 1;
+                while (slots < span_nanos / tick_nanos + 2)
+                {
+                        slots <<= 1;
+                }
+
+                this.tick_nanos = tick_nanos;
+                this.slots = new Timeout[slots];
+                this.mask = slots - 1;
+        }
+
+        /**
+         * Set a timeout, moving it if it's already set
+         *
+         * @param timeout
+         * @param deadline System.nanoTime() it comes due at
+         */
+        public void
+        schedule (Timeout timeout, long deadline)
+        {
+                cancel(timeout);
+                link(timeout, deadline, this.tick);
+        }
+
+        /**
+         * Unset a timeout; nothing if it isn't set
+         *
+         * @param timeout
+         */
+        public void
+        cancel (Timeout timeout)
+        {
+                if (timeout.slot < 0)
+                {
+                        return;
+                }
+
+                if (timeout.previous == null)
+                {
+                        this.slots[timeout.slot] = timeout.next;
+                }
+                else
+                {
+                        timeout.previous.next = timeout.next;
+                }
+                if (timeout.next != null)
+                {
+                        timeout.next.previous = timeout.previous;
+                }
+
+                timeout.previous = null;
+                timeout.next = null;
+                timeout.slot = -1;
+                --this.size;
+        }
+
+        /**
+         * Run the timeouts due by now
+         *
+         * @param now
+         * @param expiry
+         * @return int how many came due
+         */
+        public int
+        advance (long now, Expiry expiry)
+        {
+                long last = (now - this.origin) / this.tick_nanos;
+                if (last < this.tick)
+                {
+                        return 0;
+                }
+
+                // Past a whole turn, every slot is visited once
+                long from = Math.max(this.tick, last - this.mask);
+                this.tick = last + 1;
+
+                int expired = 0;
+                for (long t = from; t <= last; ++t)
+                {
+                        // Taken out of the wheel before any runs, so an expiry
+                        // can cancel another of them
+                        int slot = (int) (t & this.mask);
+                        Timeout timeout = this.slots[slot];
+                        this.slots[slot] = null;
+                        for (Timeout taken = timeout; taken != null; taken = taken.next)
+                        {
+                                taken.previous = null;
+                                taken.slot = -1;
+                                --this.size;
+                        }
+
+                        while (timeout != null)
+                        {
+                                Timeout next = timeout.next;
+                                timeout.next = null;
+
+                                long deadline = timeout.deadline;
+                                if (deadline - now > 0)
+                                {
+                                        // A turn or more away still
+                                        link(timeout, deadline, this.tick);
+                                }
+                                else
+                                {
+                                        ++expired;
+                                        deadline = expiry.expired(timeout.user, now);
+                                        if (deadline != -1 && timeout.slot < 0)
+                                        {
+                                                link(timeout, deadline, this.tick);
+                                        }
+                                }
+                                timeout = next;
+                        }
+                }
+                return expired;
+        }
+
+        /**
+         * @param now
+         * @return long nanoseconds to the next tick, 0 or less if it's gone
+         * by, or Long.MAX_VALUE when no timeout is set
+         */
+        public long
+        due_in (long now)
+        {
+                return this.size == 0 ? Long.MAX_VALUE : this.origin + this.tick * this.tick_nanos - now;
+        }
+
+        /**
+         * @return int timeouts set
+         */
+        public int
+        size ()
+        {
+                return this.size;
+        }
+
+        /**
+         * @param timeout not set
+         * @param deadline
+         * @param earliest first tick it may go in
+         */
+        private void
+        link (Timeout timeout, long deadline, long earliest)
+        {
+                // Rounded up, so it's never run early
+                long offset = deadline - this.origin;
+                long tick = Math.max(earliest, offset <= 0 ? 0 : (offset + this.tick_nanos - 1) / this.tick_nanos);
+                int slot = (int) (tick & this.mask);
+
+                timeout.deadline = deadline;
+                timeout.slot = slot;
+                timeout.next = this.slots[slot];
+                if (timeout.next != null)
+                {
+                        timeout.next.previous = timeout;
+                }
+                this.slots[slot] = timeout;
+                ++this.size;
+        }
+}
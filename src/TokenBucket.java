@@ -0,0 +1,66 @@
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A token bucket, kept as the one time at which it will be full again
+ * (the generic cell rate algorithm), so taking a token is a compare and
+ * swap on a long, safe from any thread
+ */
+final class
+TokenBucket
+{
+        private static final AtomicLongFieldUpdater<TokenBucket> FULL_AT =
+                AtomicLongFieldUpdater.newUpdater(TokenBucket.class, "full_at");
+
+        // Nanoseconds to earn a token, and for the empty bucket to fill
+        private final long interval;
+        private final long span;
+        private volatile long full_at;
+
+        /**
+         * Constructor; the bucket starts full
+         *
+         * @param rate tokens earned per second
+         * @param burst tokens it holds
+         */
+        public TokenBucket (int rate, int burst)
+        {
+                this.interval = 1000000000L / rate;
+                this.span = this.interval * Math.max(1, burst);
+                this.full_at = System.nanoTime();
+        }
+
+        /**
+         * @param rate
+         * @param burst
+         * @return TokenBucket or null for a rate of 0, which is no limit
+         */
+        static TokenBucket
+        of (int rate, int burst)
+        {
+                return rate <= 0 ? null : new TokenBucket(rate, burst);
+        }
+
+        /**
+         * Take a token if there is one
+         *
+         * @param now System.nanoTime()
+         * @return boolean
+         */
+        public boolean
+        take (long now)
+        {
+                while (true)
+                {
+                        long full_at = this.full_at;
+                        long next = (full_at - now < 0 ? now : full_at) + this.interval;
+                        if (next - now > this.span)
+                        {
+                                return false;
+                        }
+                        if (FULL_AT.compareAndSet(this, full_at, next))
+                        {
+                                return true;
+                        }
+                }
+        }
+}
@@ -1,4 +1,8 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 
 /**
  * User state
@@ -13,38 +17,101 @@ enum State
  */
 public class
 User
-implements Comparable<User>
 {
-        private String nickname;
-        private State state = State.INIT;
-        private Room room;
+        // Read by the other workers when they route messages to us
+        private volatile String nickname;
+        private volatile Name name;
+        private volatile State state = State.INIT;
         private final SocketChannel socket;
-        private StringBuilder buffer = new StringBuilder();
+        private final Worker worker;
+        private SelectionKey key;
+
+        // In ChatServer's registry from the first nickname claimed on, or -1;
+        // only changed by the thread reading us
+        private int id = -1;
+        private volatile boolean disconnected;
+        private final LineFramer framer = new LineFramer(Config.MAX_LINE_LENGTH);
+
+        // Rooms joined, in the order they were, copy-on-write so leaving
+        // them all takes no lookups. Only one unless the client asked for
+        // several with /proto rooms, and is told which room what's said is
+        // from; both only changed by the thread reading us
+        private static final Room[] NO_ROOMS = new Room[0];
+        private volatile Room[] rooms = NO_ROOMS;
+        private volatile boolean multi_room;
+
+        // When input last came, and whether we asked since if the client is
+        // still there; the timeout is our worker's
+        private volatile long last_read = System.nanoTime();
+        private boolean pinged;
+        private final TimingWheel.Timeout timeout = new TimingWheel.Timeout(this);
+
+        // Rate limits on what we send, and the lines of the current read
+        // dropped for them; the rest only used by the thread reading us
+        private final TokenBucket lines = TokenBucket.of(Config.LIMIT_USER_RATE, Config.LIMIT_USER_BURST);
+        private final TokenBucket[] commands = new TokenBucket[CommandType.values().length];
+        private int dropped;
+        private int strikes;
+        private long struck_at;
+        private boolean read_suspended;
+        private long resume_at;
+
+        // Nickname claimed from another node, with the input read after the
+        // command claiming it, both kept until the node answers
+        private String claiming;
+        private ByteBuffer held_input;
+
+        // Switched to the binary protocol, only ever before the nickname is
+        // set, so before anyone else can send us anything
+        private volatile boolean binary;
+        private volatile boolean deflate;
+        private BinaryFramer binary_framer;
+
+        // Context frames sent to us alone are compressed in, in queue order;
+        // guarded by this
+        private FrameDeflater deflater;
+
+        // ID of the name the client has in each of its slots, or -1; guarded
+        // by this, like the queue, since definitions go out in queue order
+        private int[] known_names;
+
+        // Encoded frames waiting for the socket to accept them, filled from
+        // any thread and drained by our worker; guarded by this. A ring of our
+        // view of each frame, the frame and when it was queued
+        private ByteBuffer[] views = new ByteBuffer[16];
+        private Frame[] frames = new Frame[16];
+        private long[] queued_at = new long[16];
+        private int head;
+        private int count;
+        private int outbound_bytes;
+        private boolean flush_scheduled;
+        private boolean overflowed;
+        private boolean closed;
+
+        // While history is being read, only the frames ahead of the first
+        // replay's place in the queue may go out. Each replay's history goes
+        // in at its place, in the order they began, ahead of the rest
+        private int[] replay_at = new int[2];
+        private int replays;
 
         /**
          * Constructor
          *
          * @param socket
+         * @param worker
          */
-        public User (SocketChannel socket)
+        public User (SocketChannel socket, Worker worker)
         {
                 this.socket = socket;
+                this.worker = worker;
+                for (int i = 0; i < this.commands.length; ++i)
+                {
+                        this.commands[i] = TokenBucket.of(Config.LIMIT_COMMAND_RATE, Config.LIMIT_COMMAND_BURST);
+                }
+                // Said in a room, so only limited as any message is
+                this.commands[CommandType.SAY.ordinal()] = null;
         }
 
-        /**
-         * Comparator
-         *
-         * @param other
-         * @return int
-         */
-        @Override
-        public int
-        compareTo (User other)
-        {
-                return this.nickname.compareTo(other.nickname);
-        }
-
-
         /**
          * @return String
          */
@@ -63,6 +130,42 @@ implements Comparable<User>
                 this.nickname = nickname;
         }
 
+        /**
+         * @return Name the nickname, interned, or null
+         */
+        public Name
+        get_name ()
+        {
+                return this.name;
+        }
+
+        /**
+         * @param name
+         */
+        public void
+        set_name (Name name)
+        {
+                this.name = name;
+        }
+
+        /**
+         * @return int
+         */
+        public int
+        get_id ()
+        {
+                return this.id;
+        }
+
+        /**
+         * @param id
+         */
+        public void
+        set_id (int id)
+        {
+                this.id = id;
+        }
+
         /**
          * @return State
          */
@@ -82,21 +185,105 @@ implements Comparable<User>
         }
 
         /**
-         * @return Room
+         * @return Room[] rooms joined at this moment; must not be modified
+         */
+        public Room[]
+        get_rooms ()
+        {
+                return this.rooms;
+        }
+
+        /**
+         * @param name
+         * @return Room the room of that name joined, or null
          */
         public Room
-        get_room ()
+        find_room (CharSequence name)
+        {
+                for (Room room : this.rooms)
+                {
+                        if (room.get_name().contentEquals(name))
+                        {
+                                return room;
+                        }
+                }
+                return null;
+        }
+
+        /**
+         * @param room
+         * @return boolean
+         */
+        public boolean
+        is_in (Room room)
+        {
+                for (Room joined : this.rooms)
+                {
+                        if (joined == room)
+                        {
+                                return true;
+                        }
+                }
+                return false;
+        }
+
+        /**
+         * Add a room to those joined, once it's joined us
+         *
+         * @param room
+         */
+        public void
+        add_room (Room room)
         {
-                return this.room;
+                Room[] current = this.rooms;
+                Room[] next = Arrays.copyOf(current, current.length + 1);
+                next[current.length] = room;
+                this.rooms = next;
+                this.state = State.INSIDE;
         }
 
         /**
+         * Remove a room from those joined
+         *
          * @param room
          */
         public void
-        set_room (Room room)
+        remove_room (Room room)
+        {
+                Room[] current = this.rooms;
+                Room[] next = new Room[current.length - 1];
+                int at = 0;
+                for (Room joined : current)
+                {
+                        if (joined != room && at < next.length)
+                        {
+                                next[at++] = joined;
+                        }
+                }
+                this.rooms = next;
+                if (next.length == 0)
+                {
+                        this.state = State.OUTSIDE;
+                }
+        }
+
+        /**
+         * Let the user be in several rooms, with what's said in them
+         * tagged with the room
+         */
+        public void
+        set_multi_room ()
+        {
+                this.multi_room = true;
+        }
+
+        /**
+         * @return boolean true if the user may be in several rooms
+         */
+        public boolean
+        is_multi_room ()
         {
-                this.room = room;
+                return this.multi_room;
         }
 
         /**
@@ -109,29 +296,769 @@ implements Comparable<User>
         }
 
         /**
-         * @param cmd
+         * @return Worker the reactor or thread serving this connection
+         */
+        public Worker
+        get_worker ()
+        {
+                return this.worker;
+        }
+
+        /**
+         * Mark the connection as being closed
+         *
+         * @return boolean true the first time only
+         */
+        public synchronized boolean
+        disconnect ()
+        {
+                boolean first = !this.disconnected;
+                this.disconnected = true;
+                return first;
+        }
+
+        /**
+         * @return boolean true once the connection is being closed
+         */
+        public boolean
+        is_disconnected ()
+        {
+                return this.disconnected;
+        }
+
+        /**
+         * @return SelectionKey
+         */
+        public SelectionKey
+        get_key ()
+        {
+                return this.key;
+        }
+
+        /**
+         * @param key
          */
         public void
-        add_to_buffer (String cmd)
+        set_key (SelectionKey key)
         {
-                this.buffer.append(cmd);
+                this.key = key;
         }
 
         /**
-         * @return String
+         * Queue a frame for sending, taking over one reference to it
+         *
+         * @param frame
+         * @param now System.nanoTime() of the send, for the delivery latency
+         * @return boolean true if the caller must schedule a flush
+         */
+        public synchronized boolean
+        enqueue (Frame frame, long now)
+        {
+                if (this.closed || this.overflowed)
+                {
+                        frame.release();
+                        return false;
+                }
+
+                int queued = this.outbound_bytes;
+                if (queued + frame.length() > Config.WRITE_MAX_QUEUED)
+                {
+                        // Can't keep up, drop everything; the flush disconnects us
+                        frame.release();
+                        this.overflowed = true;
+                        drop_outbound();
+                        this.flush_scheduled = true;
+                        return true;
+                }
+
+                if (this.known_names != null && frame.get_names() != null)
+                {
+                        define_names(frame.get_names(), now);
+                }
+                if (this.deflater != null && !frame.is_compressed() && frame.length() >= Config.DEFLATE_MIN)
+                {
+                        Frame compressed = this.deflater.compress(frame, 0, false);
+                        frame.release();
+                        frame = compressed;
+                }
+                push(frame, now);
+
+                // A flush already waiting on OP_WRITE may never come for a
+                // stalled client, so crossing the watermark needs one of its own
+                boolean crossed = queued < Config.WRITE_HIGH_WATERMARK
+                                  && this.outbound_bytes >= Config.WRITE_HIGH_WATERMARK;
+
+                if (this.flush_scheduled && !crossed)
+                {
+                        return false;
+                }
+                this.flush_scheduled = true;
+                return true;
+        }
+
+        /**
+         * Queue the definitions of the names the client doesn't have;
+         * caller holds this
+         *
+         * @param names
+         * @param now
+         */
+        private void
+        define_names (Name[] names, long now)
+        {
+                for (Name name : names)
+                {
+                        int slot = name.get_id() & (BinaryProtocol.NAME_SLOTS - 1);
+                        if (this.known_names[slot] != name.get_id())
+                        {
+                                this.known_names[slot] = name.get_id();
+                                push(BinaryProtocol.define(name), now);
+                        }
+                }
+        }
+
+        /**
+         * Add a frame at the tail of the ring; caller holds this
+         *
+         * @param frame
+         * @param now
+         */
+        private void
+        push (Frame frame, long now)
+        {
+                if (this.count == this.frames.length)
+                {
+                        grow_outbound();
+                }
+                int tail = (this.head + this.count++) & (this.frames.length - 1);
+                this.views[tail] = frame.view();
+                this.frames[tail] = frame;
+                this.queued_at[tail] = now;
+                this.outbound_bytes += frame.length();
+        }
+
+        /**
+         * Write as much of the queue as the socket takes without blocking,
+         * many frames per write
+         *
+         * @param now System.nanoTime(), read once per pass by the reactor
+         * @return int bytes still queued
+         * @throws IOException
+         */
+        public synchronized int
+        flush (long now)
+        throws IOException
+        {
+                long written = 0;
+                try
+                {
+                        int ready;
+                        while ((ready = get_flushable()) > 0)
+                        {
+                                // The ring's views are written in place, so a write
+                                // stops where it wraps around
+                                int length = 0;
+                                int max = Math.min(Math.min(ready, Config.FLUSH_FRAMES), this.views.length - this.head);
+                                long bytes = 0;
+                                do
+                                {
+                                        bytes += this.views[this.head + length++].remaining();
+                                }
+                                while (length < max && bytes < Config.FLUSH_BYTES);
+
+                                long wrote = this.socket.write(this.views, this.head, length);
+                                written += wrote;
+                                Metrics.writes.increment();
+                                Metrics.write_frames.record(length);
+
+                                for (int i = 0; i < length && !this.views[this.head].hasRemaining(); ++i)
+                                {
+                                        Metrics.delivery_nanos.record(now - this.queued_at[this.head]);
+                                        release_head();
+                                }
+                                if (wrote < bytes)
+                                {
+                                        break;
+                                }
+                        }
+                }
+                finally
+                {
+                        this.outbound_bytes -= (int) written;
+                        Metrics.bytes_out.add(written);
+                }
+
+                // While data is left, OP_WRITE brings us back here; what is
+                // held for a replay waits for end_replay instead
+                int pending = this.replays > 0 && this.replay_at[0] == 0 ? 0 : this.outbound_bytes;
+                this.flush_scheduled = pending > 0;
+                return pending;
+        }
+
+        /**
+         * Write the queue out on a blocking channel, taking the lock only
+         * between writes, so senders never wait for a slow receiver
+         *
+         * @param views where the frames of a write are gathered
+         * @param frames their frames, as long as views
+         * @return int bytes still queued, held for a replay
+         * @throws IOException
+         */
+        public int
+        flush_blocking (ByteBuffer[] views, Frame[] frames)
+        throws IOException
+        {
+                while (true)
+                {
+                        int length = 0;
+                        long bytes = 0;
+                        synchronized (this)
+                        {
+                                int max = Math.min(get_flushable(), views.length);
+                                if (max == 0)
+                                {
+                                        this.flush_scheduled = false;
+                                        return this.outbound_bytes;
+                                }
+
+                                do
+                                {
+                                        int index = (this.head + length) & (this.frames.length - 1);
+                                        views[length] = this.views[index];
+                                        frames[length] = this.frames[index];
+                                        bytes += views[length++].remaining();
+                                }
+                                while (length < max && bytes < Config.FLUSH_BYTES);
+
+                                // Our own references, should the queue be dropped meanwhile
+                                for (int i = 0; i < length; ++i)
+                                {
+                                        frames[i].retain(1);
+                                }
+                        }
+
+                        long written = 0;
+                        try
+                        {
+                                written = this.socket.write(views, 0, length);
+                                Metrics.writes.increment();
+                                Metrics.write_frames.record(length);
+                        }
+                        finally
+                        {
+                                synchronized (this)
+                                {
+                                        if (this.count > 0 && this.views[this.head] == views[0])
+                                        {
+                                                this.outbound_bytes -= (int) written;
+                                                Metrics.bytes_out.add(written);
+
+                                                long now = System.nanoTime();
+                                                for (int i = 0; i < length && !views[i].hasRemaining(); ++i)
+                                                {
+                                                        Metrics.delivery_nanos.record(now - this.queued_at[this.head]);
+                                                        release_head();
+                                                }
+                                        }
+                                }
+
+                                for (int i = 0; i < length; ++i)
+                                {
+                                        frames[i].release();
+                                        frames[i] = null;
+                                        views[i] = null;
+                                }
+                        }
+                }
+        }
+
+        /**
+         * @return int frames at the head of the queue that may go out now;
+         * caller holds this
+         */
+        private int
+        get_flushable ()
+        {
+                return this.replays > 0 ? this.replay_at[0] : this.count;
+        }
+
+        /**
+         * @return int bytes queued
+         */
+        public synchronized int
+        get_queued ()
+        {
+                return this.outbound_bytes;
+        }
+
+        /**
+         * Hold back the frames queued from now on, until end_replay; one
+         * already under way holds them until then too
+         *
+         * @return boolean false if the queue was dropped
+         */
+        public synchronized boolean
+        begin_replay ()
+        {
+                if (this.closed || this.overflowed)
+                {
+                        return false;
+                }
+                if (this.replays == this.replay_at.length)
+                {
+                        this.replay_at = Arrays.copyOf(this.replay_at, this.replays * 2);
+                }
+                this.replay_at[this.replays++] = this.count;
+                return true;
+        }
+
+        /**
+         * Queue history ahead of the frames held back since the oldest
+         * begin_replay not yet ended
+         *
+         * @param history one reference each, handed over; null ones are skipped
+         * @param now
+         * @return boolean true if the caller must schedule a flush
          */
-        public StringBuilder
-        get_buffer ()
+        public synchronized boolean
+        end_replay (Frame[] history, long now)
         {
-                return this.buffer;
+                if (this.replays == 0)
+                {
+                        for (Frame frame : history)
+                        {
+                                if (frame != null)
+                                {
+                                        frame.release();
+                                }
+                        }
+                        return false;
+                }
+                int at = this.replay_at[0];
+                --this.replays;
+                System.arraycopy(this.replay_at, 1, this.replay_at, 0, this.replays);
+
+                // Unroll the ring with the history spliced in
+                int total = this.count + history.length;
+                int length = this.frames.length;
+                while (length < total)
+                {
+                        length *= 2;
+                }
+                ByteBuffer[] views = new ByteBuffer[length];
+                Frame[] frames = new Frame[length];
+                long[] queued_at = new long[length];
+                int size = 0;
+
+                for (int i = 0; i < this.count; ++i)
+                {
+                        if (i == at)
+                        {
+                                size = splice(history, now, views, frames, queued_at, size);
+                        }
+                        int index = (this.head + i) & (this.frames.length - 1);
+                        views[size] = this.views[index];
+                        frames[size] = this.frames[index];
+                        queued_at[size++] = this.queued_at[index];
+                }
+                if (at >= this.count)
+                {
+                        size = splice(history, now, views, frames, queued_at, size);
+                }
+
+                // The places of later replays are pushed back by it
+                for (int i = 0; i < this.replays; ++i)
+                {
+                        this.replay_at[i] += size - this.count;
+                }
+
+                this.views = views;
+                this.frames = frames;
+                this.queued_at = queued_at;
+                this.head = 0;
+                this.count = size;
+                this.flush_scheduled = true;
+                return true;
         }
 
         /**
-         * @param idx
+         * Copy history frames into a new ring; caller holds this
+         *
+         * @param history
+         * @param now
+         * @param views
+         * @param frames
+         * @param queued_at
+         * @param size frames already in the new ring
+         * @return int frames in it afterwards
+         */
+        private int
+        splice (Frame[] history, long now, ByteBuffer[] views, Frame[] frames, long[] queued_at, int size)
+        {
+                for (Frame frame : history)
+                {
+                        if (frame != null)
+                        {
+                                views[size] = frame.view();
+                                frames[size] = frame;
+                                queued_at[size++] = now;
+                                this.outbound_bytes += frame.length();
+                        }
+                }
+                return size;
+        }
+
+        /**
+         * @return boolean true if the queue outgrew its limit
+         */
+        public synchronized boolean
+        is_overflowed ()
+        {
+                return this.overflowed;
+        }
+
+        /**
+         * Drop anything still queued and refuse further frames
+         */
+        public synchronized void
+        close_outbound ()
+        {
+                this.closed = true;
+                drop_outbound();
+                if (this.deflater != null)
+                {
+                        this.deflater.end();
+                        this.deflater = null;
+                }
+        }
+
+        /**
+         * Release the queued frames; caller holds this
+         */
+        private void
+        drop_outbound ()
+        {
+                while (this.count > 0)
+                {
+                        release_head();
+                }
+                this.head = 0;
+                this.outbound_bytes = 0;
+                this.replays = 0;
+        }
+
+        /**
+         * Take the oldest frame off the ring and release it; caller holds this
+         */
+        private void
+        release_head ()
+        {
+                this.frames[this.head].release();
+                this.frames[this.head] = null;
+                this.views[this.head] = null;
+                this.head = (this.head + 1) & (this.frames.length - 1);
+                --this.count;
+                for (int i = 0; i < this.replays; ++i)
+                {
+                        --this.replay_at[i];
+                }
+        }
+
+        /**
+         * Double the ring, unrolling it; caller holds this
+         */
+        private void
+        grow_outbound ()
+        {
+                int length = this.frames.length;
+                int first = length - this.head;
+                ByteBuffer[] views = new ByteBuffer[length * 2];
+                Frame[] frames = new Frame[length * 2];
+                long[] queued_at = new long[length * 2];
+
+                System.arraycopy(this.views, this.head, views, 0, first);
+                System.arraycopy(this.views, 0, views, first, this.head);
+                System.arraycopy(this.frames, this.head, frames, 0, first);
+                System.arraycopy(this.frames, 0, frames, first, this.head);
+                System.arraycopy(this.queued_at, this.head, queued_at, 0, first);
+                System.arraycopy(this.queued_at, 0, queued_at, first, this.head);
+
+                this.views = views;
+                this.frames = frames;
+                this.queued_at = queued_at;
+                this.head = 0;
+        }
+
+        /**
+         * Note input came
+         *
+         * @param now
+         */
+        public void
+        touch (long now)
+        {
+                this.last_read = now;
+        }
+
+        /**
+         * @return long System.nanoTime() input last came at
+         */
+        public long
+        get_last_read ()
+        {
+                return this.last_read;
+        }
+
+        /**
+         * @return boolean true if sent a PING it hasn't answered; for the
+         * owner of its timeout only
+         */
+        public boolean
+        is_pinged ()
+        {
+                return this.pinged;
+        }
+
+        /**
+         * @param pinged
+         */
+        public void
+        set_pinged (boolean pinged)
+        {
+                this.pinged = pinged;
+        }
+
+        /**
+         * Take a token for a line or frame, or count it dropped
+         *
+         * @param now
+         * @return boolean true if it may be handled
+         */
+        public boolean
+        take_line (long now)
+        {
+                if (this.lines == null || this.lines.take(now))
+                {
+                        return true;
+                }
+                Metrics.limited_lines.increment();
+                ++this.dropped;
+                return false;
+        }
+
+        /**
+         * Take a token for a command, or count it dropped
+         *
+         * @param command
+         * @param now
+         * @return boolean true if it may be run
+         */
+        public boolean
+        take_command (CommandType command, long now)
+        {
+                TokenBucket bucket = this.commands[command.ordinal()];
+                if (bucket == null || bucket.take(now))
+                {
+                        return true;
+                }
+                Metrics.limited_commands.increment();
+                ++this.dropped;
+                return false;
+        }
+
+        /**
+         * Close the account of a read: if lines were dropped, a strike,
+         * counted from 1 again when the last was long ago
+         *
+         * @return int strikes in a row, 0 if nothing was dropped
+         */
+        public int
+        end_read ()
+        {
+                if (this.dropped == 0)
+                {
+                        return 0;
+                }
+                this.dropped = 0;
+
+                long now = System.nanoTime();
+                if (now - this.struck_at > Config.LIMIT_PENALTY_MS * 1000000L)
+                {
+                        this.strikes = 0;
+                }
+                this.struck_at = now;
+                return ++this.strikes;
+        }
+
+        /**
+         * Stop reading until a given time; for our worker
+         *
+         * @param until System.nanoTime()
+         */
+        public void
+        suspend_reads (long until)
+        {
+                this.read_suspended = true;
+                this.resume_at = until;
+                this.strikes = 0;
+        }
+
+        /**
+         * Let reading resume
+         */
+        public void
+        resume_reads ()
+        {
+                this.read_suspended = false;
+        }
+
+        /**
+         * @return boolean true while reads are suspended for going over a
+         * rate limit
+         */
+        public boolean
+        is_read_suspended ()
+        {
+                return this.read_suspended;
+        }
+
+        /**
+         * Wait on another node for a nickname; for the thread reading us
+         *
+         * @param nickname
+         */
+        public void
+        begin_claim (String nickname)
+        {
+                this.claiming = nickname;
+        }
+
+        /**
+         * The node answered
+         */
+        public void
+        end_claim ()
+        {
+                this.claiming = null;
+        }
+
+        /**
+         * @return boolean true while waiting on another node for a nickname
+         */
+        public boolean
+        is_claiming ()
+        {
+                return this.claiming != null;
+        }
+
+        /**
+         * @return String the nickname claimed, or null
+         */
+        public String
+        get_claiming ()
+        {
+                return this.claiming;
+        }
+
+        /**
+         * Keep the rest of a read, to be processed once reads resume
+         *
+         * @param input
          */
         public void
-        advance_buffer (int idx)
+        hold_input (ByteBuffer input)
+        {
+                if (!input.hasRemaining())
+                {
+                        return;
+                }
+                ByteBuffer held = ByteBuffer.allocate(input.remaining());
+                held.put(input).flip();
+                this.held_input = held;
+        }
+
+        /**
+         * @return ByteBuffer the input held, or null
+         */
+        public ByteBuffer
+        take_held_input ()
+        {
+                ByteBuffer held = this.held_input;
+                this.held_input = null;
+                return held;
+        }
+
+        /**
+         * @return long System.nanoTime() reads may resume at
+         */
+        public long
+        get_resume_at ()
+        {
+                return this.resume_at;
+        }
+
+        /**
+         * @return TimingWheel.Timeout
+         */
+        public TimingWheel.Timeout
+        get_timeout ()
+        {
+                return this.timeout;
+        }
+
+        /**
+         * @return LineFramer
+         */
+        public LineFramer
+        get_framer ()
+        {
+                return this.framer;
+        }
+
+        /**
+         * Switch to the binary protocol, for everything sent and read from
+         * now on
+         *
+         * @param deflate compress what we're sent, too
+         */
+        public synchronized void
+        set_binary (boolean deflate)
+        {
+                this.binary_framer = new BinaryFramer(Config.MAX_LINE_LENGTH);
+                this.known_names = new int[BinaryProtocol.NAME_SLOTS];
+                Arrays.fill(this.known_names, -1);
+                if (deflate && !this.closed)
+                {
+                        this.deflater = new FrameDeflater();
+                        this.deflate = true;
+                }
+                this.binary = true;
+        }
+
+        /**
+         * @return boolean true if we take COMPRESSED frames
+         */
+        public boolean
+        is_deflate ()
+        {
+                return this.deflate;
+        }
+
+        /**
+         * @return boolean
+         */
+        public boolean
+        is_binary ()
+        {
+                return this.binary;
+        }
+
+        /**
+         * @return BinaryFramer or null while using text
+         */
+        public BinaryFramer
+        get_binary_framer ()
         {
-                this.buffer.delete(0, idx);
+                return this.binary_framer;
         }
 }
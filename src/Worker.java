@@ -0,0 +1,72 @@
+import java.nio.ByteBuffer;
+
+/**
+ * What runs a connection: reads its input into ChatServer.processInput and
+ * writes its output queue out. The reactors multiplex many connections on
+ * a selector; a BlockingWorker serves one on threads of its own.
+ */
+interface
+Worker
+{
+        /**
+         * @return ByteBuffer where input is read, used by one thread at a time
+         */
+        ByteBuffer get_buffer ();
+
+        /**
+         * @return byte[] where complete lines are copied to be decoded, as
+         * long as the buffer
+         */
+        byte[] get_line_bytes ();
+
+        /**
+         * @return int[] token bounds filled in by the command grammar
+         */
+        int[] get_tokens ();
+
+        /**
+         * @return Slice where command arguments are looked at in place
+         */
+        Slice get_slice ();
+
+        /**
+         * Ask for a user's output queue to be written out; any thread may
+         *
+         * @param user
+         */
+        void schedule_flush (User user);
+
+        /**
+         * Stop reading from a user for a while, as it goes over its rate
+         * limits; called from the thread reading it
+         *
+         * @param user
+         * @param until System.nanoTime() to resume at
+         */
+        void suspend_reads (User user, long until);
+
+        /**
+         * Stop reading from a user until a task is run for it, as it waits
+         * on another node; called from the thread reading it
+         *
+         * @param user
+         */
+        void hold_reads (User user);
+
+        /**
+         * Run a task on the thread reading a user, then read from it again
+         * unless the task held its reads anew; any thread may
+         *
+         * @param user
+         * @param task
+         */
+        void release_reads (User user, Runnable task);
+
+        /**
+         * Write out what is left for a user, then close its connection;
+         * called once, from the thread reading it
+         *
+         * @param user
+         */
+        void close (User user);
+}
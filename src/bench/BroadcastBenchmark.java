@@ -0,0 +1,102 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares a room broadcast that encodes the message once per recipient
+ * with one that encodes it once and hands out duplicates, in CPU time and
+ * bytes allocated per broadcast
+ *
+ * Run with: make bench
+ */
+public class
+BroadcastBenchmark
+{
+        private static final int[] ROOM_SIZES = { 10, 100, 1000 };
+        private static final int WARMUP_BROADCASTS = 20000;
+        private static final int BROADCASTS = 20000;
+
+        private static final Charset charset = StandardCharsets.UTF_8;
+        private static final String NICKNAME = "someone";
+        private static final String TEXT = "the quick brown fox jumps over the lazy dog, again and again";
+
+        // What each recipient's send path would have been handed; keeps the
+        // JIT from discarding the frames
+        private static final ByteBuffer[] sink = new ByteBuffer[1000];
+
+        private static final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        /**
+         * @param args
+         */
+        public static void
+        main (String[] args)
+        {
+                System.out.printf("%-10s %-18s %14s %16s%n", "members", "fan-out", "cpu ns/bcast", "bytes/bcast");
+                for (int members : ROOM_SIZES)
+                {
+                        measure(members, false);
+                        measure(members, true);
+                }
+        }
+
+        /**
+         * @param members
+         * @param encode_once
+         */
+        private static void
+        measure (int members, boolean encode_once)
+        {
+                for (int i = 0; i < WARMUP_BROADCASTS; ++i)
+                {
+                        broadcast(members, encode_once);
+                }
+
+                long thread_id = Thread.currentThread().getId();
+                long cpu = threads.getCurrentThreadCpuTime();
+                long allocated = threads.getThreadAllocatedBytes(thread_id);
+
+                for (int i = 0; i < BROADCASTS; ++i)
+                {
+                        broadcast(members, encode_once);
+                }
+
+                cpu = threads.getCurrentThreadCpuTime() - cpu;
+                allocated = threads.getThreadAllocatedBytes(thread_id) - allocated;
+
+                System.out.printf("%-10d %-18s %14d %16d%n",
+                                  members,
+                                  encode_once ? "encode once" : "per recipient",
+                                  cpu / BROADCASTS,
+                                  allocated / BROADCASTS);
+        }
+
+        /**
+         * @param members
+         * @param encode_once
+         */
+        private static void
+        broadcast (int members, boolean encode_once)
+        {
+                if (encode_once)
+                {
+                        Frame frame = ChatServer.encode(new Message(MessageType.MESSAGE, NICKNAME, TEXT));
+                        for (int i = 0; i < members; ++i)
+                        {
+                                sink[i] = frame.view();
+                        }
+                        frame.release();
+                }
+                else
+                {
+                        for (int i = 0; i < members; ++i)
+                        {
+                                Message message = new Message(MessageType.MESSAGE, NICKNAME, TEXT);
+                                sink[i] = charset.encode(CharBuffer.wrap(message.toString()));
+                        }
+                }
+        }
+}
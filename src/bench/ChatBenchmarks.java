@@ -0,0 +1,264 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Benchmarks for the chat hot paths
+ *
+ * Run with: make bench
+ */
+public class
+ChatBenchmarks
+{
+        // Lines as the server sends them, as the client parses them
+        private static final String[] REPLIES = {
+                "MESSAGE alice the quick brown fox jumps over the lazy dog",
+                "OK",
+                "PRIVATE bob are you there?",
+                "JOINED carol",
+                "NEWNICK carol caroline",
+                "LEFT dave",
+                "ERROR",
+                "MESSAGE bob /escaped slash"
+        };
+
+        // Lines as clients send them, pipelined in a single read
+        private static final String[] INSTRUCTIONS = {
+                "/nick alice",
+                "/join lobby",
+                "hello everyone, how is it going?",
+                "/priv bob are you there?",
+                "//not a command",
+                "/leave",
+                "/bye"
+        };
+
+        private static final Message[] MESSAGES = {
+                new Message(MessageType.MESSAGE, "alice", "the quick brown fox jumps over the lazy dog"),
+                new Message(MessageType.OK),
+                new Message(MessageType.PRIVATE, "bob", "are you there?"),
+                new Message(MessageType.JOINED, "carol"),
+                new Message(MessageType.NEW_NICKNAME, "carol", "caroline")
+        };
+
+        /**
+         * A reactor that never runs; benchmarks flush the users themselves
+         */
+        private static class
+        IdleReactor
+        extends Reactor
+        {
+                IdleReactor ()
+                throws IOException
+                {
+                        super();
+                }
+
+                @Override
+                public void
+                schedule_flush (User user)
+                {
+                }
+        }
+
+        private static int next = 0;
+
+        /**
+         * @param args
+         * @throws Exception
+         */
+        public static void
+        main (String[] args)
+        throws Exception
+        {
+                Harness harness = new Harness();
+
+                harness.add("message.parse_string", () -> {
+                        return Message.parse_string(REPLIES[next++ & 7]).get_type().ordinal();
+                });
+                harness.add("message.to_string.wire", () -> {
+                        return MESSAGES[next++ % MESSAGES.length].toString(false).length();
+                });
+                harness.add("message.to_string.pretty", () -> {
+                        return MESSAGES[next++ % MESSAGES.length].toString(true).length();
+                });
+
+                add_command_parse(harness);
+                add_registry_lookup(harness, 10000);
+
+                for (int members : new int[] { 100, 10000 })
+                {
+                        add_room_join_leave(harness, members);
+                }
+                for (int members : new int[] { 10, 100, 1000 })
+                {
+                        add_broadcast(harness, members);
+                }
+
+                harness.run();
+        }
+
+        /**
+         * Framing and command parsing, as processInput does for each line
+         *
+         * @param harness
+         */
+        private static void
+        add_command_parse (Harness harness)
+        {
+                StringBuilder pipelined = new StringBuilder();
+                for (String instruction : INSTRUCTIONS)
+                {
+                        pipelined.append(instruction).append('\n');
+                }
+
+                ByteBuffer input = ByteBuffer.wrap(pipelined.toString().getBytes(StandardCharsets.UTF_8));
+                LineFramer framer = new LineFramer(Config.MAX_LINE_LENGTH);
+                byte[] line_bytes = new byte[Config.MAX_LINE_LENGTH];
+                int[] tokens = new int[4];
+
+                harness.add("command.parse", () -> {
+                        String instruction = framer.next_line(input, line_bytes);
+                        if (instruction == null)
+                        {
+                                input.rewind();
+                                instruction = framer.next_line(input, line_bytes);
+                        }
+
+                        if (!instruction.startsWith("/"))
+                        {
+                                return instruction.trim().length();
+                        }
+
+                        int from = 1;
+                        int to = instruction.length();
+                        while (from < to && instruction.charAt(from) <= ' ')
+                        {
+                                ++from;
+                        }
+                        while (to > from && instruction.charAt(to - 1) <= ' ')
+                        {
+                                --to;
+                        }
+
+                        CommandType command = ChatServer.COMMANDS.match(instruction, from, to, tokens);
+                        if (command == null)
+                        {
+                                return instruction.substring(from, to).length();
+                        }
+                        if (command == CommandType.LEAVE || command == CommandType.BYE)
+                        {
+                                return command.ordinal();
+                        }
+                        return command.ordinal() + instruction.substring(tokens[0], tokens[1]).length();
+                });
+        }
+
+        /**
+         * Looking a nickname up in place in a /priv line, as the receiver
+         *
+         * @param harness
+         * @param count users registered
+         */
+        private static void
+        add_registry_lookup (Harness harness, int count)
+        {
+                Registry<String> registry = new Registry<>();
+                String[] lines = new String[64];
+                for (int i = 0; i < count; ++i)
+                {
+                        String nickname = "user" + i;
+                        registry.bind(registry.add(nickname), nickname);
+                }
+                for (int i = 0; i < lines.length; ++i)
+                {
+                        lines[i] = "/priv user" + (i * 151 % count) + " are you there?";
+                }
+
+                Slice slice = new Slice();
+                harness.add("registry.lookup." + count, () -> {
+                        String line = lines[next++ & 63];
+                        return registry.get(slice.set(line, 6, line.indexOf(' ', 6))).length();
+                });
+        }
+
+        /**
+         * One user joining and leaving a room that already has members
+         *
+         * @param harness
+         * @param members
+         * @throws IOException
+         */
+        private static void
+        add_room_join_leave (Harness harness, int members)
+        throws IOException
+        {
+                Reactor reactor = new IdleReactor();
+                Room room = new Room("lobby");
+                for (int i = 0; i < members; ++i)
+                {
+                        room.join_user(user(reactor, "member" + i));
+                }
+
+                User[] visitors = new User[64];
+                for (int i = 0; i < visitors.length; ++i)
+                {
+                        visitors[i] = user(reactor, "visitor" + i);
+                }
+
+                harness.add("room.join_leave." + members, () -> {
+                        User visitor = visitors[next++ & 63];
+                        room.join_user(visitor);
+                        room.left_user(visitor);
+                        return room.is_empty() ? 0 : 1;
+                });
+        }
+
+        /**
+         * Encoding a public message and fanning it out to every member,
+         * including writing it out through each member's queue
+         *
+         * @param harness
+         * @param members
+         * @throws IOException
+         */
+        private static void
+        add_broadcast (Harness harness, int members)
+        throws IOException
+        {
+                Reactor reactor = new IdleReactor();
+                Room room = new Room("lobby");
+                User[] users = new User[members];
+                for (int i = 0; i < members; ++i)
+                {
+                        users[i] = user(reactor, "member" + i);
+                        room.join_user(users[i]);
+                }
+
+                Message message = MESSAGES[0];
+                harness.add("broadcast.fanout." + members, () -> {
+                        ChatServer.broadcast(room, message, null);
+
+                        long queued = 0;
+                        long now = System.nanoTime();
+                        for (User user : users)
+                        {
+                                queued += user.flush(now);
+                        }
+                        return queued;
+                });
+        }
+
+        /**
+         * @param reactor
+         * @param nickname
+         * @return User
+         */
+        private static User
+        user (Reactor reactor, String nickname)
+        {
+                User user = new User(new NullSocketChannel(), reactor);
+                user.set_nickname(nickname);
+                return user;
+        }
+}
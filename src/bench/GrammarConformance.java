@@ -0,0 +1,361 @@
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks the hand-written grammars against the regular expressions they
+ * replaced: the server's commands, for users with and without a nickname
+ * and in one room or several, and the replies Message.parse_string takes,
+ * on a set of known cases and then on random lines made of the verbs and
+ * the characters that delimit their tokens
+ *
+ * The references are the original regexes alone; the verbs added since
+ * are checked as anchored regexes tried after them, so a new verb can
+ * never change what an original line meant.
+ *
+ * Exits with status 1 on the first lines the two disagree on.
+ *
+ * Run with: make check
+ */
+public class
+GrammarConformance
+{
+        private static final String NICKNAME = "([^ .]+)";
+        private static final String TEXT = "(.*)";
+
+        // The command regexes of the original processInput, in the order it
+        // tried them; matched with find() unless they're whole-line
+        private static final Verb[] COMMANDS = {
+                new Verb("nick " + NICKNAME, CommandType.NICK, false),
+                new Verb("join " + NICKNAME, CommandType.JOIN, false),
+                new Verb("leave", CommandType.LEAVE, true),
+                new Verb("bye", CommandType.BYE, true),
+                new Verb("priv " + NICKNAME + " " + TEXT, CommandType.PRIVATE, false)
+        };
+
+        // Commands added since, tried after those, at the start only
+        private static final Verb[] NEW_COMMANDS = {
+                new Verb("^proto " + NICKNAME, CommandType.PROTO, false),
+                new Verb("pong", CommandType.PONG, true)
+        };
+
+        // Tried last, and only before the nickname
+        private static final Verb[] RESUME_COMMANDS = {
+                new Verb("^resume " + NICKNAME, CommandType.RESUME, false)
+        };
+
+        // Tried first for users in several rooms, at the start only
+        private static final Verb[] ROOM_COMMANDS = {
+                new Verb("^say " + NICKNAME + " " + TEXT, CommandType.SAY, false),
+                new Verb("^leave " + NICKNAME, CommandType.PART, false)
+        };
+
+        // The reply regexes of the original parse_string, in the order it
+        // tried them
+        private static final Verb[] REPLIES = {
+                new Verb("OK", MessageType.OK, true),
+                new Verb("ERROR", MessageType.ERROR, true),
+                new Verb("MESSAGE " + NICKNAME + " " + TEXT, MessageType.MESSAGE, false),
+                new Verb("NEWNICK " + NICKNAME + " " + NICKNAME, MessageType.NEW_NICKNAME, false),
+                new Verb("JOINED " + NICKNAME, MessageType.JOINED, false),
+                new Verb("LEFT " + NICKNAME, MessageType.LEFT, false),
+                new Verb("BYE", MessageType.BYE, true),
+                new Verb("PRIVATE " + NICKNAME + " " + TEXT, MessageType.PRIVATE, false)
+        };
+
+        // Replies added since, tried after those; only ever sent on their own
+        private static final Verb[] NEW_REPLIES = {
+                new Verb("PING", MessageType.PING, true),
+                new Verb("RESUME " + NICKNAME, MessageType.RESUME, false)
+        };
+
+        // Lines known to have tripped a parser up, or to be likely to
+        private static final String[] CASES = {
+                "/nick alice", "/nick  alice", "/nick a.b", "/nick ", "/nick", "/ nick bob ", "/xnick bob",
+                "/join lobby", "/join lobby now", "/join .", "/leave", "/leave ", " /leave", "/leave lobby",
+                "/bye", "/byebye", "/priv bob hi there", "/priv bob ", "/priv bob", "/priv .bob hi",
+                "/proto binary", "//hello proto world", "/proto  binary", "/pong", "/resume abc", "//escaped", "// nick bob", "/", "/ ",
+                "/say lobby hi", "/say lobby I will join later", "/say lobby call me nick maybe",
+                "/say lobby ", "/say lobby", "/say .x hi", "/priv bob leave now", "/priv bob say r hi",
+                "/join say r hi", "/nick say", "/leave leave", "/leave r.x", "/say r priv bob x",
+                "/say r hi\rjoin x", "/priv bob a\u2028b", "/say r a\u0085join x",
+                "//x proto y", "//x resume y", "//resume my work", "//proto binary", "/x proto y",
+                "/x resume y", "/resume  abc", "/resume a.b", "/pong x", "//pong", "/resume nick bob",
+                "/proto nick bob", "/nick proto"
+        };
+
+        private static final String[] REPLY_CASES = {
+                "OK", "OK ", "ERROR", "ERRORS", "MESSAGE alice hi", "MESSAGE alice ", "MESSAGE alice",
+                "MESSAGE a.b hi", "NEWNICK a b", "NEWNICK a b c", "NEWNICK a ", "JOINED bob", "JOINED ",
+                "LEFT bob", "BYE", "PRIVATE bob psst", "PING", "RESUME 0123abcd", "IN lobby MESSAGE alice hi",
+                "IN lobby OK", "IN  MESSAGE a b", "IN lobby", "xMESSAGE alice hi", "MESSAGE alice JOINED bob",
+                "PRIVATE bob a\rb", "LEFT bob.x"
+        };
+
+        // What random lines are made of
+        private static final String[] PIECES = {
+                "nick ", "join ", "leave", "leave ", "bye", "priv ", "proto ", "pong", "resume ", "say ",
+                "OK", "ERROR", "MESSAGE ", "NEWNICK ", "JOINED ", "LEFT ", "BYE", "PRIVATE ", "PING",
+                "RESUME ", "IN ", "/", " ", "  ", ".", "\t", "\r", "\u0085", " ", "a", "bob", "lobby",
+                "été", "x.y"
+        };
+
+        private static int checked = 0;
+        private static int failed = 0;
+
+        /**
+         * A regex with what it stands for
+         */
+        private static final class
+        Verb
+        {
+                final Pattern pattern;
+                final Object type;
+                final boolean whole;
+
+                Verb (String regex, Object type, boolean whole)
+                {
+                        this.pattern = Pattern.compile(regex);
+                        this.type = type;
+                        this.whole = whole;
+                }
+        }
+
+        /**
+         * @param args
+         */
+        public static void
+        main (String[] args)
+        {
+                int lines = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+
+                for (String line : CASES)
+                {
+                        check_command(line);
+                }
+                for (String line : REPLY_CASES)
+                {
+                        check_reply(line);
+                }
+
+                Random random = new Random(1);
+                StringBuilder line = new StringBuilder();
+                for (int i = 0; i < lines && failed < 20; ++i)
+                {
+                        line.setLength(0);
+                        int pieces = 1 + random.nextInt(8);
+                        for (int piece = 0; piece < pieces; ++piece)
+                        {
+                                line.append(PIECES[random.nextInt(PIECES.length)]);
+                        }
+                        check_command("/" + line);
+                        check_reply(line.toString());
+                }
+
+                System.out.println(checked + " lines checked, " + failed + " disagreed");
+                if (failed > 0)
+                {
+                        System.exit(1);
+                }
+        }
+
+        /**
+         * Parse a command line both ways, as a user without a nickname, and
+         * as one with a nickname in one room and in several
+         *
+         * @param line
+         */
+        private static void
+        check_command (String line)
+        {
+                // Trimmed as processInput does
+                int from = 1;
+                int to = line.length();
+                while (from < to && line.charAt(from) <= ' ')
+                {
+                        ++from;
+                }
+                while (to > from && line.charAt(to - 1) <= ' ')
+                {
+                        --to;
+                }
+                String cmd = line.substring(from, to);
+
+                for (int user = 0; user < 3; ++user)
+                {
+                        boolean named = user > 0;
+                        boolean multi_room = user == 2;
+
+                        int[] tokens = new int[4];
+                        CommandType type = multi_room ? ChatServer.ROOM_COMMANDS.match(line, from, to, tokens) : null;
+                        if (type == null)
+                        {
+                                type = ChatServer.COMMANDS.match(line, from, to, tokens);
+                        }
+                        if (type == null && !named)
+                        {
+                                type = ChatServer.RESUME_COMMANDS.match(line, from, to, tokens);
+                        }
+                        String got = describe(type, line, tokens);
+
+                        String expected = multi_room ? reference(ROOM_COMMANDS, cmd) : null;
+                        if (expected == null)
+                        {
+                                expected = reference(COMMANDS, cmd);
+                        }
+                        if (expected == null)
+                        {
+                                expected = reference(NEW_COMMANDS, cmd);
+                        }
+                        if (expected == null && !named)
+                        {
+                                expected = reference(RESUME_COMMANDS, cmd);
+                        }
+                        compare(multi_room ? "command, several rooms" : named ? "command" : "command, no nickname",
+                                line, expected == null ? "null" : expected, got);
+                }
+        }
+
+        /**
+         * Parse a reply line both ways
+         *
+         * @param text
+         */
+        private static void
+        check_reply (String text)
+        {
+                // The room tag isn't a regex's, so it's taken off the same way
+                String room = "";
+                String rest = text;
+                if (text.startsWith("IN "))
+                {
+                        int end = text.indexOf(' ', 3);
+                        if (end > 3)
+                        {
+                                room = text.substring(3, end);
+                                rest = text.substring(end + 1);
+                        }
+                }
+
+                // Anything else was taken for an error
+                String expected = reference(REPLIES, rest);
+                if (expected == null)
+                {
+                        expected = reference(NEW_REPLIES, rest);
+                }
+                Message wanted = parse_reference(expected == null ? MessageType.ERROR + "||" : expected);
+                if (room.length() != 0)
+                {
+                        wanted = wanted.in(room);
+                }
+                Message message = Message.parse_string(text);
+                compare("reply", text,
+                        wanted.get_type() + "|" + room + "|" + wanted.toString(false),
+                        message.get_type() + "|" + message.get_room() + "|" + message.toString(false));
+        }
+
+        /**
+         * @param expected type|token1|token2
+         * @return Message
+         */
+        private static Message
+        parse_reference (String expected)
+        {
+                String[] parts = expected.split("\\|", -1);
+                return new Message(MessageType.valueOf(parts[0]), parts[1], parts[2]);
+        }
+
+        /**
+         * Run the regexes in order, as the code they were in did
+         *
+         * @param verbs
+         * @param text
+         * @return String type|group 1|group 2 of the first that matched, or
+         * null
+         */
+        private static String
+        reference (Verb[] verbs, String text)
+        {
+                for (Verb verb : verbs)
+                {
+                        Matcher matcher = verb.pattern.matcher(text);
+                        if (verb.whole ? matcher.matches() : matcher.find())
+                        {
+                                String first = matcher.groupCount() > 0 ? matcher.group(1) : "";
+                                String second = matcher.groupCount() > 1 ? matcher.group(2) : "";
+                                return verb.type + "|" + first + "|" + second;
+                        }
+                }
+                return null;
+        }
+
+        /**
+         * @param type
+         * @param line
+         * @param tokens
+         * @return String type|first token|second token, as reference gives
+         */
+        private static String
+        describe (CommandType type, String line, int[] tokens)
+        {
+                if (type == null)
+                {
+                        return "null";
+                }
+                switch (type)
+                {
+                        case LEAVE:
+                        case BYE:
+                        case PONG:
+                                return type + "||";
+                        case PRIVATE:
+                        case SAY:
+                                return type + "|" + line.substring(tokens[0], tokens[1]) + "|" + line.substring(tokens[2], tokens[3]);
+                        default:
+                                return type + "|" + line.substring(tokens[0], tokens[1]) + "|";
+                }
+        }
+
+        /**
+         * @param what
+         * @param line
+         * @param expected
+         * @param got
+         */
+        private static void
+        compare (String what, String line, String expected, String got)
+        {
+                ++checked;
+                if (expected.equals(got))
+                {
+                        return;
+                }
+
+                ++failed;
+                System.out.println(what + " " + escape(line) + ": regex gives " + escape(expected)
+                                   + ", grammar " + escape(got));
+        }
+
+        /**
+         * @param text
+         * @return String quoted, with what isn't printable ASCII escaped
+         */
+        private static String
+        escape (String text)
+        {
+                StringBuilder out = new StringBuilder("\"");
+                for (int i = 0; i < text.length(); ++i)
+                {
+                        char c = text.charAt(i);
+                        if (c < ' ' || c > '~')
+                        {
+                                out.append(String.format("\\u%04x", (int) c));
+                        }
+                        else
+                        {
+                                out.append(c);
+                        }
+                }
+                return out.append('"').toString();
+        }
+}
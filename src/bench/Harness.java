@@ -0,0 +1,160 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+/**
+ * A small JMH-style benchmark harness
+ *
+ * Each benchmark gets warmup iterations, then measured iterations of a
+ * fixed duration. Reported are the time and the bytes allocated per
+ * operation, averaged over the measured iterations, with the spread of the
+ * time. Tuned with system properties:
+ *   bench.warmup      warmup iterations (5)
+ *   bench.iterations  measured iterations (5)
+ *   bench.time        milliseconds per iteration (500)
+ *   bench.filter      only run benchmarks whose name contains this
+ */
+final class
+Harness
+{
+        /**
+         * One benchmark operation; what it returns is consumed so the JIT
+         * can't discard the work
+         */
+        interface Operation
+        {
+                long run ()
+                throws Exception;
+        }
+
+        private static final int WARMUP = Integer.getInteger("bench.warmup", 5);
+        private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+        private static final long ITERATION_NANOS = Long.getLong("bench.time", 500) * 1_000_000L;
+        private static final String FILTER = System.getProperty("bench.filter", "");
+
+        // Operations between two looks at the clock
+        private static final int BATCH = 64;
+
+        private static final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        // Blackhole
+        private static volatile long sink;
+
+        private final ArrayList<String> names = new ArrayList<>();
+        private final ArrayList<Operation> operations = new ArrayList<>();
+
+        /**
+         * Add a benchmark
+         *
+         * @param name
+         * @param operation
+         * @return Harness this
+         */
+        public Harness
+        add (String name, Operation operation)
+        {
+                this.names.add(name);
+                this.operations.add(operation);
+                return this;
+        }
+
+        /**
+         * Run every benchmark matching the filter and print the results
+         *
+         * @throws Exception
+         */
+        public void
+        run ()
+        throws Exception
+        {
+                System.out.printf("%-32s %12s %10s %12s %14s%n", "benchmark", "ns/op", "+- ns/op", "B/op", "ops/s");
+                for (int i = 0; i < this.names.size(); ++i)
+                {
+                        if (this.names.get(i).contains(FILTER))
+                        {
+                                measure(this.names.get(i), this.operations.get(i));
+                        }
+                }
+        }
+
+        /**
+         * @param name
+         * @param operation
+         * @throws Exception
+         */
+        private static void
+        measure (String name, Operation operation)
+        throws Exception
+        {
+                for (int i = 0; i < WARMUP; ++i)
+                {
+                        iteration(operation, null);
+                }
+
+                double[] nanos = new double[ITERATIONS];
+                double bytes = 0;
+                for (int i = 0; i < ITERATIONS; ++i)
+                {
+                        double[] result = new double[2];
+                        iteration(operation, result);
+                        nanos[i] = result[0];
+                        bytes += result[1];
+                }
+
+                double mean = 0;
+                for (double n : nanos)
+                {
+                        mean += n;
+                }
+                mean /= ITERATIONS;
+
+                double variance = 0;
+                for (double n : nanos)
+                {
+                        variance += (n - mean) * (n - mean);
+                }
+                double deviation = ITERATIONS > 1 ? Math.sqrt(variance / (ITERATIONS - 1)) : 0;
+
+                System.out.printf("%-32s %12.1f %10.1f %12.1f %14.0f%n",
+                                  name, mean, deviation, bytes / ITERATIONS, 1e9 / mean);
+        }
+
+        /**
+         * Run the operation for one iteration
+         *
+         * @param operation
+         * @param result receives ns/op and B/op, or null for warmup
+         * @throws Exception
+         */
+        private static void
+        iteration (Operation operation, double[] result)
+        throws Exception
+        {
+                long thread_id = Thread.currentThread().getId();
+                long allocated = threads.getThreadAllocatedBytes(thread_id);
+                long start = System.nanoTime();
+                long elapsed;
+                long ops = 0;
+                long consumed = 0;
+
+                do
+                {
+                        for (int i = 0; i < BATCH; ++i)
+                        {
+                                consumed += operation.run();
+                        }
+                        ops += BATCH;
+                        elapsed = System.nanoTime() - start;
+                }
+                while (elapsed < ITERATION_NANOS);
+
+                allocated = threads.getThreadAllocatedBytes(thread_id) - allocated;
+                sink += consumed;
+
+                if (result != null)
+                {
+                        result[0] = (double) elapsed / ops;
+                        result[1] = (double) allocated / ops;
+                }
+        }
+}
@@ -0,0 +1,583 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Headless load generator for the chat server
+ *
+ * Opens many non-blocking connections on a single selector, gives each a
+ * nickname and a room, then sends public and private messages at a fixed
+ * overall rate. Every message carries its send time, so each delivery
+ * yields an end-to-end latency.
+ *
+ * Usage: LoadGenerator host port [port...], tuned with system properties;
+ * with several ports, as for the nodes of a cluster on one host, clients
+ * are spread over them in turn:
+ *   load.clients    connections to open (1000)
+ *   load.rooms      rooms to spread them over (50)
+ *   load.zipf       room popularity skew, 0 for uniform room sizes (1.0)
+ *   load.rate       messages sent per second, overall (1000)
+ *   load.private    fraction of messages sent with /priv (0.1)
+ *   load.size       bytes of padding per message (32)
+ *   load.seconds    length of the measured run (30)
+ *   load.prefix     nickname prefix, to run several generators (lg)
+ *   load.proto      protocol spoken: text, binary or deflate (text)
+ *
+ * Tens of thousands of clients need a matching open file limit (ulimit -n)
+ * on both ends.
+ */
+public class
+LoadGenerator
+{
+        private static final int CLIENTS = Integer.getInteger("load.clients", 1000);
+        private static final int ROOMS = Integer.getInteger("load.rooms", 50);
+        private static final double ZIPF = Double.parseDouble(System.getProperty("load.zipf", "1.0"));
+        private static final int RATE = Integer.getInteger("load.rate", 1000);
+        private static final double PRIVATE = Double.parseDouble(System.getProperty("load.private", "0.1"));
+        private static final int SIZE = Integer.getInteger("load.size", 32);
+        private static final int SECONDS = Integer.getInteger("load.seconds", 30);
+        private static final String PREFIX = System.getProperty("load.prefix", "lg");
+        private static final String PROTO = System.getProperty("load.proto", "text");
+        private static final boolean BINARY = !PROTO.equals("text");
+
+        // Answers to /proto, /nick and /join before a client is in its room
+        private static final int READY_OKS = BINARY ? 3 : 2;
+
+        // Connects in flight at once, so the accept backlog isn't flooded
+        private static final int CONNECTING_MAX = 256;
+
+        // Marks the messages we time
+        private static final String STAMP = "lat ";
+
+        /**
+         * One simulated user
+         */
+        private static class
+        Client
+        {
+                final int id;
+                final int room;
+                final SocketChannel channel;
+                final LineFramer framer = new LineFramer(Config.MAX_LINE_LENGTH);
+                final BinaryFramer frames = new BinaryFramer(Config.MAX_LINE_LENGTH * 4);
+                final FrameInflater inflater = new FrameInflater(Config.MAX_LINE_LENGTH * 4);
+                final Name[] names = new Name[BinaryProtocol.NAME_SLOTS];
+                boolean binary_input = false;
+                ByteBuffer out = ByteBuffer.allocate(1024);
+                SelectionKey key;
+                boolean connected = false;
+                boolean closed = false;
+                int oks = 0;
+
+                Client (int id, int room, SocketChannel channel)
+                {
+                        this.id = id;
+                        this.room = room;
+                        this.channel = channel;
+                }
+        }
+
+        private final Selector selector;
+        private final InetSocketAddress[] servers;
+        private final Client[] clients = new Client[CLIENTS];
+        private final int[] room_sizes = new int[ROOMS];
+        private final Random random = new Random(42);
+        private final ByteBuffer in = ByteBuffer.allocate(65536);
+        private final byte[] line_bytes = new byte[Config.MAX_LINE_LENGTH];
+        private final String padding;
+
+        private final Histogram latency = new Histogram();
+        private int opened = 0;
+        private int connecting = 0;
+        private int ready = 0;
+        private int failed = 0;
+        private long scheduled = 0;
+        private long sent = 0;
+        private long expected = 0;
+        private long delivered = 0;
+        private long errors = 0;
+
+        /**
+         * Constructor
+         *
+         * @param servers
+         * @throws IOException
+         */
+        public LoadGenerator (InetSocketAddress[] servers)
+        throws IOException
+        {
+                this.selector = Selector.open();
+                this.servers = servers;
+
+                StringBuilder padding = new StringBuilder();
+                for (int i = 0; i < SIZE; ++i)
+                {
+                        padding.append((char) ('a' + i % 26));
+                }
+                this.padding = padding.toString();
+        }
+
+        /**
+         * @param args host port [port...]
+         * @throws IOException
+         */
+        public static void
+        main (String[] args)
+        throws IOException
+        {
+                InetSocketAddress[] servers = new InetSocketAddress[args.length - 1];
+                for (int i = 0; i < servers.length; ++i)
+                {
+                        servers[i] = new InetSocketAddress(args[0], Integer.parseInt(args[i + 1]));
+                }
+                new LoadGenerator(servers).run();
+        }
+
+        /**
+         * Connect everyone, then run the measured traffic
+         *
+         * @throws IOException
+         */
+        private void
+        run ()
+        throws IOException
+        {
+                long start = System.nanoTime();
+                while (this.ready + this.failed < CLIENTS)
+                {
+                        open_connections();
+                        poll(10);
+                }
+                System.out.printf("%d clients ready in %d ms, %d failed%n",
+                                  this.ready, (System.nanoTime() - start) / 1_000_000, this.failed);
+                for (int i = 0; i < ROOMS; ++i)
+                {
+                        if (this.room_sizes[i] > 0)
+                        {
+                                System.out.printf("  room%d: %d members%n", i, this.room_sizes[i]);
+                        }
+                }
+
+                start = System.nanoTime();
+                long end = start + SECONDS * 1_000_000_000L;
+                long next_report = start + 1_000_000_000L;
+                long last_delivered = 0;
+                long now;
+
+                while ((now = System.nanoTime()) < end)
+                {
+                        // Keep the overall send rate, whatever the loop timing
+                        long due = (now - start) * RATE / 1_000_000_000L;
+                        while (this.scheduled < due)
+                        {
+                                send_timed(now);
+                        }
+
+                        poll(1);
+
+                        if (now >= next_report)
+                        {
+                                System.out.printf("t=%ds sent=%d delivered=%d (%d/s) p50=%.2fms p99=%.2fms%n",
+                                                  (now - start) / 1_000_000_000L, this.sent, this.delivered,
+                                                  this.delivered - last_delivered,
+                                                  this.latency.get_percentile(0.50) / 1e6,
+                                                  this.latency.get_percentile(0.99) / 1e6);
+                                last_delivered = this.delivered;
+                                next_report += 1_000_000_000L;
+                        }
+                }
+
+                // Give what is still in flight a moment to arrive
+                long drain_end = System.nanoTime() + 2_000_000_000L;
+                while (this.delivered < this.expected && System.nanoTime() < drain_end)
+                {
+                        poll(10);
+                }
+
+                report((double) (System.nanoTime() - start) / 1e9);
+        }
+
+        /**
+         * @param seconds
+         */
+        private void
+        report (double seconds)
+        {
+                System.out.println();
+                System.out.printf("sent:       %d messages, %.0f/s%n", this.sent, this.sent / seconds);
+                System.out.printf("delivered:  %d of %d expected, %.0f/s%n",
+                                  this.delivered, this.expected, this.delivered / seconds);
+                System.out.printf("errors:     %d%n", this.errors);
+                System.out.printf("latency:    p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms mean=%.3fms%n",
+                                  this.latency.get_percentile(0.50) / 1e6,
+                                  this.latency.get_percentile(0.99) / 1e6,
+                                  this.latency.get_percentile(0.999) / 1e6,
+                                  this.latency.get_max() / 1e6,
+                                  this.latency.get_count() == 0
+                                          ? 0.0
+                                          : (double) this.latency.get_sum() / this.latency.get_count() / 1e6);
+        }
+
+        /**
+         * Start more connections, a few at a time
+         *
+         * @throws IOException
+         */
+        private void
+        open_connections ()
+        throws IOException
+        {
+                while (this.opened < CLIENTS && this.connecting < CONNECTING_MAX)
+                {
+                        SocketChannel channel = SocketChannel.open();
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                        Client client = new Client(this.opened, pick_room(), channel);
+                        this.clients[this.opened++] = client;
+                        ++this.connecting;
+
+                        if (channel.connect(this.servers[client.id % this.servers.length]))
+                        {
+                                connected(client);
+                        }
+                        else
+                        {
+                                client.key = channel.register(this.selector, SelectionKey.OP_CONNECT, client);
+                        }
+                }
+        }
+
+        /**
+         * Zipf-distributed room, so a few rooms are big and most are small
+         *
+         * @return int
+         */
+        private int
+        pick_room ()
+        {
+                double total = 0;
+                for (int i = 1; i <= ROOMS; ++i)
+                {
+                        total += 1 / Math.pow(i, ZIPF);
+                }
+
+                double target = this.random.nextDouble() * total;
+                for (int i = 1; i <= ROOMS; ++i)
+                {
+                        target -= 1 / Math.pow(i, ZIPF);
+                        if (target <= 0)
+                        {
+                                return i - 1;
+                        }
+                }
+                return ROOMS - 1;
+        }
+
+        /**
+         * @param client
+         * @throws IOException
+         */
+        private void
+        connected (Client client)
+        throws IOException
+        {
+                --this.connecting;
+                client.connected = true;
+                if (client.key == null)
+                {
+                        client.key = client.channel.register(this.selector, SelectionKey.OP_READ, client);
+                }
+                else
+                {
+                        client.key.interestOps(SelectionKey.OP_READ);
+                }
+                if (BINARY)
+                {
+                        send(client, ("/proto " + PROTO + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                send(client, "/nick " + PREFIX + client.id);
+                send(client, "/join room" + client.room);
+        }
+
+        /**
+         * Send one timed message from a random ready client
+         *
+         * @param now
+         * @throws IOException
+         */
+        private void
+        send_timed (long now)
+        throws IOException
+        {
+                Client client = this.clients[this.random.nextInt(CLIENTS)];
+                ++this.scheduled;
+                if (client.oks < READY_OKS || client.closed)
+                {
+                        return;
+                }
+                ++this.sent;
+
+                if (this.random.nextDouble() < PRIVATE)
+                {
+                        Client receiver = this.clients[this.random.nextInt(CLIENTS)];
+                        send(client, "/priv " + PREFIX + receiver.id + " " + STAMP + now + " " + this.padding);
+                        ++this.expected;
+                }
+                else
+                {
+                        send(client, STAMP + now + " " + this.padding);
+                        this.expected += this.room_sizes[client.room];
+                }
+        }
+
+        /**
+         * Send a line, as a frame when speaking the binary protocol
+         *
+         * @param client
+         * @param line without its '\n'
+         * @throws IOException
+         */
+        private void
+        send (Client client, String line)
+        throws IOException
+        {
+                if (!BINARY)
+                {
+                        send(client, (line + "\n").getBytes(StandardCharsets.UTF_8));
+                        return;
+                }
+
+                ByteBuffer frame = BinaryProtocol.encode_command(line);
+                byte[] bytes = new byte[frame.remaining()];
+                frame.get(bytes);
+                send(client, bytes);
+        }
+
+        /**
+         * @param client
+         * @param bytes
+         * @throws IOException
+         */
+        private void
+        send (Client client, byte[] bytes)
+        throws IOException
+        {
+                if (client.out.remaining() < bytes.length)
+                {
+                        ByteBuffer grown = ByteBuffer.allocate(Math.max(client.out.capacity() * 2,
+                                                                        client.out.position() + bytes.length));
+                        client.out.flip();
+                        grown.put(client.out);
+                        client.out = grown;
+                }
+                client.out.put(bytes);
+                flush(client);
+        }
+
+        /**
+         * @param client
+         * @throws IOException
+         */
+        private void
+        flush (Client client)
+        throws IOException
+        {
+                client.out.flip();
+                try
+                {
+                        client.channel.write(client.out);
+                }
+                catch (IOException ie)
+                {
+                        client.out.clear();
+                        close(client);
+                        return;
+                }
+                client.out.compact();
+
+                int ops = SelectionKey.OP_READ;
+                if (client.out.position() > 0)
+                {
+                        ops |= SelectionKey.OP_WRITE;
+                }
+                if (client.key.isValid())
+                {
+                        client.key.interestOps(ops);
+                }
+        }
+
+        /**
+         * Handle whatever the selector has for us
+         *
+         * @param timeout milliseconds
+         * @throws IOException
+         */
+        private void
+        poll (long timeout)
+        throws IOException
+        {
+                this.selector.select(timeout);
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Client client = (Client) key.attachment();
+
+                        try
+                        {
+                                if (key.isValid() && key.isConnectable() && client.channel.finishConnect())
+                                {
+                                        connected(client);
+                                }
+                                if (key.isValid() && key.isReadable())
+                                {
+                                        read(client);
+                                }
+                                if (key.isValid() && key.isWritable())
+                                {
+                                        flush(client);
+                                }
+                        }
+                        catch (IOException ie)
+                        {
+                                close(client);
+                        }
+                }
+        }
+
+        /**
+         * @param client
+         * @throws IOException
+         */
+        private void
+        read (Client client)
+        throws IOException
+        {
+                this.in.clear();
+                if (client.channel.read(this.in) < 0)
+                {
+                        close(client);
+                        return;
+                }
+                this.in.flip();
+
+                long now = System.nanoTime();
+                String line;
+                while (!client.binary_input && (line = client.framer.next_line(this.in, this.line_bytes)) != null)
+                {
+                        received(client, line, now);
+
+                        // Frames follow the answer to /proto
+                        client.binary_input = BINARY;
+                }
+
+                ByteBuffer body;
+                while (client.binary_input && (body = client.frames.next_frame(this.in)) != null)
+                {
+                        Message message;
+                        try
+                        {
+                                message = Message.parse_binary(client.inflater.unwrap(body), client.names, this.line_bytes);
+                        }
+                        catch (RuntimeException re)
+                        {
+                                ++this.errors;
+                                continue;
+                        }
+
+                        // Nickname definitions give nothing
+                        if (message != null)
+                        {
+                                line = message.toString();
+                                received(client, line.substring(0, line.length() - 1), now);
+                        }
+                }
+        }
+
+        /**
+         * @param client
+         * @param line a reply, in the text protocol
+         * @param now
+         * @throws IOException
+         */
+        private void
+        received (Client client, String line, long now)
+        throws IOException
+        {
+                if (line.equals("OK"))
+                {
+                        // The first ones are for /proto, /nick and /join
+                        if (++client.oks == READY_OKS)
+                        {
+                                ++this.ready;
+                                ++this.room_sizes[client.room];
+                        }
+                }
+                else if (line.startsWith("ERROR"))
+                {
+                        ++this.errors;
+                }
+                else if (line.equals("PING"))
+                {
+                        send(client, "/pong");
+                }
+                else
+                {
+                        int stamp = line.indexOf(STAMP);
+                        if (stamp >= 0 && (line.startsWith("MESSAGE ") || line.startsWith("PRIVATE ")))
+                        {
+                                int from = stamp + STAMP.length();
+                                int to = line.indexOf(' ', from);
+                                long sent_at = Long.parseLong(line, from, to < 0 ? line.length() : to, 10);
+                                this.latency.record(now - sent_at);
+                                ++this.delivered;
+                        }
+                }
+        }
+
+        /**
+         * @param client
+         */
+        private void
+        close (Client client)
+        {
+                if (client.closed)
+                {
+                        return;
+                }
+                client.closed = true;
+
+                // Lost before it ever joined; don't wait for it
+                if (client.oks < READY_OKS)
+                {
+                        if (!client.connected)
+                        {
+                                --this.connecting;
+                        }
+                        ++this.failed;
+                }
+
+                if (client.key != null)
+                {
+                        client.key.cancel();
+                }
+                try
+                {
+                        client.channel.close();
+                }
+                catch (IOException ie)
+                {
+                        // Already gone
+                }
+        }
+}
@@ -0,0 +1,175 @@
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * A connected-looking channel that takes every write whole and throws the
+ * bytes away, so benchmarks can run the real send path without a network
+ */
+class
+NullSocketChannel
+extends SocketChannel
+{
+        private long written = 0;
+
+        /**
+         * Constructor
+         */
+        public NullSocketChannel ()
+        {
+                super(SelectorProvider.provider());
+        }
+
+        /**
+         * @return long bytes written so far
+         */
+        public long
+        get_written ()
+        {
+                return this.written;
+        }
+
+        @Override
+        public int
+        write (ByteBuffer src)
+        {
+                int length = src.remaining();
+                src.position(src.limit());
+                this.written += length;
+                return length;
+        }
+
+        @Override
+        public long
+        write (ByteBuffer[] srcs, int offset, int length)
+        {
+                long total = 0;
+                for (int i = offset; i < offset + length; ++i)
+                {
+                        total += write(srcs[i]);
+                }
+                return total;
+        }
+
+        @Override
+        public int
+        read (ByteBuffer dst)
+        {
+                return 0;
+        }
+
+        @Override
+        public long
+        read (ByteBuffer[] dsts, int offset, int length)
+        {
+                return 0;
+        }
+
+        @Override
+        public SocketChannel
+        bind (SocketAddress local)
+        {
+                return this;
+        }
+
+        @Override
+        public <T> SocketChannel
+        setOption (SocketOption<T> name, T value)
+        {
+                return this;
+        }
+
+        @Override
+        public <T> T
+        getOption (SocketOption<T> name)
+        {
+                return null;
+        }
+
+        @Override
+        public Set<SocketOption<?>>
+        supportedOptions ()
+        {
+                return Collections.emptySet();
+        }
+
+        @Override
+        public SocketChannel
+        shutdownInput ()
+        {
+                return this;
+        }
+
+        @Override
+        public SocketChannel
+        shutdownOutput ()
+        {
+                return this;
+        }
+
+        @Override
+        public Socket
+        socket ()
+        {
+                return null;
+        }
+
+        @Override
+        public boolean
+        isConnected ()
+        {
+                return true;
+        }
+
+        @Override
+        public boolean
+        isConnectionPending ()
+        {
+                return false;
+        }
+
+        @Override
+        public boolean
+        connect (SocketAddress remote)
+        {
+                return true;
+        }
+
+        @Override
+        public boolean
+        finishConnect ()
+        {
+                return true;
+        }
+
+        @Override
+        public SocketAddress
+        getRemoteAddress ()
+        {
+                return null;
+        }
+
+        @Override
+        public SocketAddress
+        getLocalAddress ()
+        {
+                return null;
+        }
+
+        @Override
+        protected void
+        implCloseSelectableChannel ()
+        {
+        }
+
+        @Override
+        protected void
+        implConfigureBlocking (boolean block)
+        {
+        }
+}
@@ -0,0 +1,81 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times saving and restoring the snapshot of a hot restart, which must stay
+ * well under a second for 100k users
+ *
+ * Run with: make bench
+ */
+public class
+SnapshotBenchmark
+{
+        private static final int[] USER_COUNTS = { 1000, 10000, 100000 };
+        private static final int ROUNDS = 10;
+
+        /**
+         * @param args
+         * @throws Exception
+         */
+        public static void
+        main (String[] args)
+        throws Exception
+        {
+                Path path = Files.createTempFile("chatserv", ".snapshot");
+                try
+                {
+                        System.out.printf("%-10s %12s %12s %12s%n", "users", "bytes", "save ms", "restore ms");
+                        for (int count : USER_COUNTS)
+                        {
+                                measure(path, count);
+                        }
+                }
+                finally
+                {
+                        Files.deleteIfExists(path);
+                }
+        }
+
+        /**
+         * @param path
+         * @param count
+         * @throws Exception
+         */
+        private static void
+        measure (Path path, int count)
+        throws Exception
+        {
+                List<Snapshot.Entry> entries = new ArrayList<>(count);
+                for (int i = 0; i < count; ++i)
+                {
+                        entries.add(Snapshot.issue("user" + i, false,
+                                                   i % 4 == 0 ? new String[0] : new String[] { "room" + i % 500 }));
+                }
+
+                // The first rounds only warm up
+                double save = 0;
+                double restore = 0;
+                for (int round = 0; round < 2 * ROUNDS; ++round)
+                {
+                        long start = System.nanoTime();
+                        Snapshot.write(path, entries);
+                        long saved = System.nanoTime();
+                        if (Snapshot.read(path) != count)
+                        {
+                                throw new IllegalStateException("Restored the wrong number of users");
+                        }
+                        long restored = System.nanoTime();
+
+                        if (round >= ROUNDS)
+                        {
+                                save += (saved - start) / 1e6;
+                                restore += (restored - saved) / 1e6;
+                        }
+                }
+
+                System.out.printf("%-10d %12d %12.1f %12.1f%n",
+                                  count, Files.size(path), save / ROUNDS, restore / ROUNDS);
+        }
+}